@@ -0,0 +1,80 @@
+package no.stelar7.vulkan.engine.buffer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes an upload copies after a frame of small updates to a staged buffer, against the size of copying the whole buffer.
+ * <p>
+ * Every frame writes UPDATE_SIZE bytes at random aligned offsets, like matrices of objects that moved, and then takes the dirty ranges like an upload does.
+ * Only the range tracking runs, so no device is needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirtyRangeBenchmark
+{
+    private static final long BUFFER_SIZE = 1024 * 1024;
+    private static final int  UPDATE_SIZE = 64;
+    private static final int  FRAMES      = 1024;
+    private static final long SEED        = 0x5EED;
+    
+    @Param({"1", "16", "64", "256", "1024"})
+    public int updatesPerFrame;
+    
+    private StagedBuffer buffer;
+    private long[]       offsets;
+    private int          frame;
+    
+    /**
+     * Summed over the iteration, divide by the number of frames to get the average per frame
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Copied
+    {
+        public long copiedBytes;
+        public long writtenBytes;
+        public long regions;
+    }
+    
+    @Setup(Level.Trial)
+    public void create()
+    {
+        Buffer deviceBuffer = new Buffer();
+        deviceBuffer.setSize(BUFFER_SIZE);
+        buffer = new StagedBuffer(new Buffer(), deviceBuffer);
+        
+        Random random = new Random(SEED);
+        offsets = new long[FRAMES * updatesPerFrame];
+        for (int i = 0; i < offsets.length; i++)
+        {
+            offsets[i] = random.nextInt((int) (BUFFER_SIZE / UPDATE_SIZE)) * (long) UPDATE_SIZE;
+        }
+    }
+    
+    @Benchmark
+    public long[] frame(Copied copied)
+    {
+        int first = frame * updatesPerFrame;
+        for (int i = 0; i < updatesPerFrame; i++)
+        {
+            buffer.markDirty(offsets[first + i], UPDATE_SIZE);
+        }
+        frame = (frame + 1) % FRAMES;
+        
+        long[] ranges = buffer.takeDirtyRanges();
+        for (int i = 1; i < ranges.length; i += 2)
+        {
+            copied.copiedBytes += ranges[i];
+        }
+        copied.writtenBytes += (long) updatesPerFrame * UPDATE_SIZE;
+        copied.regions += ranges.length / 2;
+        return ranges;
+    }
+}
@@ -0,0 +1,92 @@
+package no.stelar7.vulkan.engine.memory;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken by a single allocation, on the off-heap backend so it runs without a GPU.
+ * <p>
+ * Every invocation allocates a batch of blocks with mixed sizes into a warm allocator, freeing the batch again is not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocationLatencyBenchmark
+{
+    private static final int BATCH = 4096;
+    
+    @Param({"TLSF", "BUDDY"})
+    public AllocationStrategy strategy;
+    
+    // The largest request, 4KB keeps every request in slab range
+    @Param({"4096", "1048576"})
+    public long maxSize;
+    
+    private MemoryAllocator allocator;
+    private long[]          sizes;
+    
+    private long[]        handles = new long[BATCH];
+    private MemoryBlock[] blocks  = new MemoryBlock[BATCH];
+    
+    @Setup(Level.Trial)
+    public void create()
+    {
+        allocator = new MemoryAllocator(new OffHeapMemoryBackend(1, Workload.HEAP_SIZE), Collections.singletonMap(0, strategy));
+        sizes = Workload.getSizes(BATCH, Workload.MIN_SIZE, maxSize, Workload.SEED);
+    }
+    
+    @TearDown(Level.Trial)
+    public void destroy()
+    {
+        allocator.free();
+    }
+    
+    @TearDown(Level.Invocation)
+    public void freeBatch()
+    {
+        for (int i = 0; i < BATCH; i++)
+        {
+            if (handles[i] != MemoryChunk.NO_HANDLE)
+            {
+                allocator.deallocateHandle(handles[i]);
+                handles[i] = MemoryChunk.NO_HANDLE;
+            }
+            
+            if (blocks[i] != null)
+            {
+                allocator.deallocate(blocks[i]);
+                blocks[i] = null;
+            }
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long[] allocateHandle()
+    {
+        for (int i = 0; i < BATCH; i++)
+        {
+            handles[i] = allocator.allocateHandle(sizes[i], Workload.ALIGNMENT, 0);
+        }
+        return handles;
+    }
+    
+    /**
+     * Allocates views, small sizes are served from the thread cache filled by the previous batch
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public MemoryBlock[] allocateBlock()
+    {
+        for (int i = 0; i < BATCH; i++)
+        {
+            blocks[i] = allocator.allocate(sizes[i], Workload.ALIGNMENT, 0);
+        }
+        return blocks;
+    }
+}
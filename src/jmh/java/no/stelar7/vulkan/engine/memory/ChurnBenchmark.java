@@ -0,0 +1,107 @@
+package no.stelar7.vulkan.engine.memory;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fragmentation and committed memory while a steady set of live blocks is replaced one at a time.
+ * <p>
+ * Every operation frees a random live block and allocates a new one of another size in its place.
+ * Trim runs every FRAME_OPERATIONS operations like it would once per frame, and the counters are sampled right after it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChurnBenchmark
+{
+    private static final int LIVE_BLOCKS      = 8192;
+    private static final int SEQUENCE_LENGTH  = 1 << 16;
+    private static final int FRAME_OPERATIONS = 1024;
+    
+    @Param({"TLSF", "BUDDY"})
+    public AllocationStrategy strategy;
+    
+    // The largest request, 4KB keeps every request in slab range
+    @Param({"4096", "1048576"})
+    public long maxSize;
+    
+    private OffHeapMemoryBackend backend;
+    private MemoryAllocator      allocator;
+    private long[]               sizes;
+    private int[]                victims;
+    
+    private long[] live = new long[LIVE_BLOCKS];
+    private int    operation;
+    
+    /**
+     * Sampled after the last trim of the iteration, the values are not summed over the iteration
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Usage
+    {
+        // Percent of the free memory that can not be handed out as one block
+        public double externalFragmentation;
+        
+        // Percent of the used memory lost to rounding and padding
+        public double internalFragmentation;
+        
+        public long committedBytes;
+        public long peakCommittedBytes;
+        public long requestedBytes;
+    }
+    
+    @Setup(Level.Trial)
+    public void create()
+    {
+        backend = new OffHeapMemoryBackend(1, Workload.HEAP_SIZE);
+        allocator = new MemoryAllocator(backend, Collections.singletonMap(0, strategy));
+        sizes = Workload.getSizes(SEQUENCE_LENGTH, Workload.MIN_SIZE, maxSize, Workload.SEED);
+        victims = Workload.getIndices(SEQUENCE_LENGTH, LIVE_BLOCKS, Workload.SEED + 1);
+        
+        for (int i = 0; i < LIVE_BLOCKS; i++)
+        {
+            live[i] = allocator.allocateHandle(sizes[i], Workload.ALIGNMENT, 0);
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void destroy()
+    {
+        allocator.free();
+    }
+    
+    @Benchmark
+    public long replace(Usage usage)
+    {
+        int step   = operation++ & (SEQUENCE_LENGTH - 1);
+        int victim = victims[step];
+        
+        allocator.deallocateHandle(live[victim]);
+        live[victim] = allocator.allocateHandle(sizes[step], Workload.ALIGNMENT, 0);
+        
+        if (operation % FRAME_OPERATIONS == 0)
+        {
+            allocator.trim();
+            sample(usage);
+        }
+        
+        return live[victim];
+    }
+    
+    private void sample(Usage usage)
+    {
+        FragmentationReport report = allocator.getFragmentationReport(0);
+        
+        usage.externalFragmentation = report.getExternalFragmentation() * 100;
+        usage.internalFragmentation = report.getInternalFragmentation() * 100;
+        usage.committedBytes = allocator.getCommittedSize();
+        usage.peakCommittedBytes = backend.getPeakAllocatedSize();
+        usage.requestedBytes = report.getRequestedSize();
+    }
+}
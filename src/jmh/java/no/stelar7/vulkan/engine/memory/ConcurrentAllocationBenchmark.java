@@ -0,0 +1,128 @@
+package no.stelar7.vulkan.engine.memory;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Allocation throughput of one allocator shared by several threads.
+ * <p>
+ * Threads either all use the same memory type, so they share its lock, or each use their own type, so only the counters are shared.
+ * Run the main method to get the scaling from 1 thread up to the number of processors, or pick a thread count with -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentAllocationBenchmark
+{
+    private static final int BATCH        = 64;
+    private static final int MEMORY_TYPES = 16;
+    
+    @Param({"true", "false"})
+    public boolean sharedType;
+    
+    private MemoryAllocator allocator;
+    private long[]          sizes;
+    private AtomicInteger   nextThread = new AtomicInteger();
+    
+    @State(Scope.Thread)
+    public static class Worker
+    {
+        private int           memoryIndex;
+        private long[]        handles = new long[BATCH];
+        private MemoryBlock[] blocks  = new MemoryBlock[BATCH];
+        
+        @Setup(Level.Trial)
+        public void create(ConcurrentAllocationBenchmark benchmark)
+        {
+            int thread = benchmark.nextThread.getAndIncrement();
+            memoryIndex = benchmark.sharedType ? 0 : thread % MEMORY_TYPES;
+        }
+    }
+    
+    @Setup(Level.Trial)
+    public void create()
+    {
+        allocator = new MemoryAllocator(new OffHeapMemoryBackend(MEMORY_TYPES, Workload.HEAP_SIZE), Collections.emptyMap());
+        sizes = Workload.getSizes(BATCH, Workload.MIN_SIZE, 64 * 1024, Workload.SEED);
+    }
+    
+    @TearDown(Level.Trial)
+    public void destroy()
+    {
+        allocator.free();
+    }
+    
+    /**
+     * Views of small blocks, served from the thread cache after the first batch
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void blocks(Worker worker)
+    {
+        for (int i = 0; i < BATCH; i++)
+        {
+            worker.blocks[i] = allocator.allocate(sizes[i], Workload.ALIGNMENT, worker.memoryIndex);
+        }
+        
+        for (int i = 0; i < BATCH; i++)
+        {
+            allocator.deallocate(worker.blocks[i]);
+        }
+    }
+    
+    /**
+     * Handles, every allocation and free takes the lock of the memory type
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void handles(Worker worker)
+    {
+        for (int i = 0; i < BATCH; i++)
+        {
+            worker.handles[i] = allocator.allocateHandle(sizes[i], Workload.ALIGNMENT, worker.memoryIndex);
+        }
+        
+        for (int i = 0; i < BATCH; i++)
+        {
+            allocator.deallocateHandle(worker.handles[i]);
+        }
+    }
+    
+    /**
+     * Runs the benchmark at every power of two thread count up to the number of processors, and prints the speedup over 1 thread
+     */
+    public static void main(String[] args) throws RunnerException
+    {
+        int maxThreads = Integer.max(Runtime.getRuntime().availableProcessors(), 1);
+        
+        Map<String, Double> singleThreaded = new HashMap<>();
+        StringBuilder       table          = new StringBuilder(String.format("%-40s %8s %14s %8s%n", "Benchmark", "Threads", "ops/us", "Speedup"));
+        
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            Options options = new OptionsBuilder().include(ConcurrentAllocationBenchmark.class.getSimpleName())
+                                                  .threads(threads)
+                                                  .build();
+            
+            for (RunResult result : new Runner(options).run())
+            {
+                String name  = result.getParams().getBenchmark().replaceAll(".*\\.", "") + " sharedType=" + result.getParams().getParam("sharedType");
+                double score = result.getPrimaryResult().getScore();
+                
+                singleThreaded.putIfAbsent(name, score);
+                table.append(String.format("%-40s %8d %14.3f %7.2fx%n", name, threads, score, score / singleThreaded.get(name)));
+            }
+        }
+        
+        System.out.print(table);
+    }
+}
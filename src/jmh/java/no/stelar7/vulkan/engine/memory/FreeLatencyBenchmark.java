@@ -0,0 +1,97 @@
+package no.stelar7.vulkan.engine.memory;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken by a single free, on the off-heap backend so it runs without a GPU.
+ * <p>
+ * Every invocation frees a batch of blocks with mixed sizes in a random order, so neighbours are merged in every combination.
+ * Allocating the batch is not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FreeLatencyBenchmark
+{
+    private static final int BATCH = 4096;
+    
+    @Param({"TLSF", "BUDDY"})
+    public AllocationStrategy strategy;
+    
+    // The largest request, 4KB keeps every request in slab range
+    @Param({"4096", "1048576"})
+    public long maxSize;
+    
+    private MemoryAllocator allocator;
+    private long[]          sizes;
+    private int[]           order;
+    
+    private long[]        handles = new long[BATCH];
+    private MemoryBlock[] blocks  = new MemoryBlock[BATCH];
+    
+    @Setup(Level.Trial)
+    public void create()
+    {
+        allocator = new MemoryAllocator(new OffHeapMemoryBackend(1, Workload.HEAP_SIZE), Collections.singletonMap(0, strategy));
+        sizes = Workload.getSizes(BATCH, Workload.MIN_SIZE, maxSize, Workload.SEED);
+        order = Workload.getShuffledOrder(BATCH, Workload.SEED);
+    }
+    
+    @TearDown(Level.Trial)
+    public void destroy()
+    {
+        allocator.free();
+    }
+    
+    @Setup(Level.Invocation)
+    public void allocateBatch()
+    {
+        for (int i = 0; i < BATCH; i++)
+        {
+            handles[i] = allocator.allocateHandle(sizes[i], Workload.ALIGNMENT, 0);
+            blocks[i] = allocator.allocate(sizes[i], Workload.ALIGNMENT, 0);
+        }
+    }
+    
+    /**
+     * Frees what the benchmark left, stale handles and freed views are ignored by the allocator
+     */
+    @TearDown(Level.Invocation)
+    public void freeBatch()
+    {
+        for (int i = 0; i < BATCH; i++)
+        {
+            allocator.deallocateHandle(handles[i]);
+            allocator.deallocate(blocks[i]);
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void deallocateHandle()
+    {
+        for (int i = 0; i < BATCH; i++)
+        {
+            allocator.deallocateHandle(handles[order[i]]);
+        }
+    }
+    
+    /**
+     * Frees views, small blocks go to the thread cache until their bin is full
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void deallocateBlock()
+    {
+        for (int i = 0; i < BATCH; i++)
+        {
+            allocator.deallocate(blocks[order[i]]);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package no.stelar7.vulkan.engine.memory;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocates and frees batches of handles with mixed sizes, covering the slab and TLSF paths, to show they create no garbage.
+ * <p>
+ * Run with -prof gc to see gc.alloc.rate.norm, it should be 0 B/op.
+ * The trial also ends with a million operations counted by the thread allocation counter, and fails if they allocated anything.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandleGarbageBenchmark
+{
+    private static final int BATCH              = 256;
+    private static final int VERIFY_BATCHES     = 4096;
+    private static final int VERIFY_OPERATIONS  = VERIFY_BATCHES * BATCH;
+    private static final int MAX_ALLOCATED_BYTES = 1;
+    
+    @Param({"TLSF", "BUDDY"})
+    public AllocationStrategy strategy;
+    
+    private MemoryAllocator allocator;
+    private long[]          sizes;
+    private int[]           order;
+    
+    private long[] handles = new long[BATCH];
+    
+    @Setup(Level.Trial)
+    public void create()
+    {
+        allocator = new MemoryAllocator(new OffHeapMemoryBackend(1, Workload.HEAP_SIZE), Collections.singletonMap(0, strategy));
+        sizes = Workload.getSizes(BATCH, Workload.MIN_SIZE, 256 * 1024, Workload.SEED);
+        order = Workload.getShuffledOrder(BATCH, Workload.SEED);
+    }
+    
+    /**
+     * Counts what a million more operations allocate, by now the chunks have grown and the code is compiled
+     */
+    @TearDown(Level.Trial)
+    public void verify()
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long                            thread  = Thread.currentThread().getId();
+        
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < VERIFY_BATCHES; i++)
+        {
+            allocateAndFree();
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        
+        allocator.free();
+        
+        if (allocated / VERIFY_OPERATIONS >= MAX_ALLOCATED_BYTES)
+        {
+            throw new IllegalStateException(allocated + " bytes of garbage from " + VERIFY_OPERATIONS + " handle allocations and frees");
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void allocateAndFree()
+    {
+        for (int i = 0; i < BATCH; i++)
+        {
+            handles[i] = allocator.allocateHandle(sizes[i], Workload.ALIGNMENT, 0);
+        }
+        
+        for (int i = 0; i < BATCH; i++)
+        {
+            allocator.deallocateHandle(handles[order[i]]);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package no.stelar7.vulkan.engine.memory;
+
+import no.stelar7.vulkan.engine.memory.legacy.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frees 100k blocks spread over 16 chunks in a random order, against the allocator from before block handles.
+ * <p>
+ * The old allocator searches every chunk and then every block of the chunk it finds, so each run is one shot of all 100k frees.
+ * The block size is picked so the blocks fill the 16 chunks the size policy hands out first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScatteredFreeBenchmark
+{
+    private static final int BLOCKS = 100_000;
+    private static final int CHUNKS = 16;
+    
+    private MemoryAllocator       allocator;
+    private LegacyMemoryAllocator legacyAllocator;
+    private long[]                chunkSizes = new long[CHUNKS];
+    private long                  blockSize;
+    private int[]                 order;
+    
+    private long[]              handles      = new long[BLOCKS];
+    private MemoryBlock[]       blocks       = new MemoryBlock[BLOCKS];
+    private LegacyMemoryBlock[] legacyBlocks = new LegacyMemoryBlock[BLOCKS];
+    
+    @Setup(Level.Trial)
+    public void create()
+    {
+        VirtualMemoryBackend backend = new VirtualMemoryBackend();
+        
+        long totalSize = 0;
+        for (int i = 0; i < CHUNKS; i++)
+        {
+            chunkSizes[i] = new ChunkSizePolicy(backend).getChunkSize(0, i);
+            totalSize += chunkSizes[i];
+        }
+        
+        // Every chunk can lose up to one block to its tail, so leave room for one extra block per chunk
+        blockSize = (totalSize / (BLOCKS + CHUNKS)) & -Workload.ALIGNMENT;
+        order = Workload.getShuffledOrder(BLOCKS, Workload.SEED);
+        
+        allocator = new MemoryAllocator(backend, Collections.emptyMap());
+    }
+    
+    @TearDown(Level.Trial)
+    public void destroy()
+    {
+        allocator.free();
+    }
+    
+    /**
+     * Allocates the blocks the benchmark about to run frees
+     */
+    @Setup(Level.Invocation)
+    public void allocate(BenchmarkParams params)
+    {
+        String benchmark = params.getBenchmark();
+        if (benchmark.endsWith("deallocateHandle"))
+        {
+            for (int i = 0; i < BLOCKS; i++)
+            {
+                handles[i] = allocator.allocateHandle(blockSize, Workload.ALIGNMENT, 0);
+            }
+            checkChunkCount();
+        } else if (benchmark.endsWith("deallocateBlock"))
+        {
+            for (int i = 0; i < BLOCKS; i++)
+            {
+                blocks[i] = allocator.allocate(blockSize, Workload.ALIGNMENT, 0);
+            }
+            checkChunkCount();
+        } else
+        {
+            allocateLegacy();
+        }
+    }
+    
+    /**
+     * Returns the blocks still in the thread cache, so the next invocation starts with the same chunks
+     */
+    @TearDown(Level.Invocation)
+    public void flush()
+    {
+        allocator.flushThreadCache();
+    }
+    
+    @Benchmark
+    public void deallocateHandle()
+    {
+        for (int i = 0; i < BLOCKS; i++)
+        {
+            allocator.deallocateHandle(handles[order[i]]);
+        }
+    }
+    
+    @Benchmark
+    public void deallocateBlock()
+    {
+        for (int i = 0; i < BLOCKS; i++)
+        {
+            allocator.deallocate(blocks[order[i]]);
+        }
+    }
+    
+    @Benchmark
+    public void deallocateLegacy()
+    {
+        for (int i = 0; i < BLOCKS; i++)
+        {
+            legacyAllocator.deallocate(legacyBlocks[order[i]]);
+        }
+    }
+    
+    /**
+     * Fills the chunks one at a time, going through the old allocator would rescan every full chunk for each block
+     */
+    private void allocateLegacy()
+    {
+        legacyAllocator = new LegacyMemoryAllocator();
+        
+        int block = 0;
+        for (int i = 0; i < CHUNKS && block < BLOCKS; i++)
+        {
+            LegacyMemoryChunk chunk = legacyAllocator.addChunk(chunkSizes[i], 0);
+            while (block < BLOCKS)
+            {
+                LegacyMemoryBlock next = chunk.allocate(blockSize, Workload.ALIGNMENT);
+                if (next == null)
+                {
+                    break;
+                }
+                
+                legacyBlocks[block++] = next;
+            }
+        }
+    }
+    
+    private void checkChunkCount()
+    {
+        int chunkCount = allocator.getFragmentationReport(0).getChunkCount();
+        if (chunkCount != CHUNKS)
+        {
+            throw new IllegalStateException("Blocks are spread over " + chunkCount + " chunks instead of " + CHUNKS);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package no.stelar7.vulkan.engine.memory;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A million random allocations and frees with random alignments against a single TLSF chunk, reporting throughput and fragmentation.
+ * The buddy chunk runs the same sequence for reference.
+ * <p>
+ * Every offset handed out is checked against its alignment, and once the run is over everything is freed and the chunk
+ * must be back to one free block covering all of it, so broken coalescing fails the run instead of skewing the numbers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlsfStressBenchmark
+{
+    private static final int  OPERATIONS = 1_000_000;
+    private static final int  SLOTS      = 16 * 1024;
+    private static final long CHUNK_SIZE = 1024L * 1024 * 1024;
+    
+    // Requests go up to 256KB, with alignments from 1 byte up to 4KB
+    private static final long MAX_SIZE      = 256 * 1024;
+    private static final int  MAX_ALIGNMENT = 12;
+    
+    @Param({"TLSF", "BUDDY"})
+    public AllocationStrategy strategy;
+    
+    private MemoryChunk chunk;
+    private long[]      sizes;
+    private long[]      alignments;
+    private int[]       slots;
+    
+    private long[] live = new long[SLOTS];
+    
+    /**
+     * Sampled at the end of every run, while the slots are about half full
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Usage
+    {
+        // Percent of the free memory that can not be handed out as one block
+        public double externalFragmentation;
+        
+        // Percent of the used memory lost to rounding and padding
+        public double internalFragmentation;
+        
+        public long failedAllocations;
+    }
+    
+    @Setup(Level.Trial)
+    public void create()
+    {
+        VirtualMemoryBackend backend = new VirtualMemoryBackend();
+        chunk = (strategy == AllocationStrategy.BUDDY) ? new BuddyMemoryChunk(backend, 0, CHUNK_SIZE) : new TlsfMemoryChunk(backend, 0, CHUNK_SIZE);
+        
+        sizes = Workload.getSizes(OPERATIONS, 1, MAX_SIZE, Workload.SEED);
+        slots = Workload.getIndices(OPERATIONS, SLOTS, Workload.SEED + 1);
+        
+        Random random = new Random(Workload.SEED + 2);
+        alignments = new long[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; i++)
+        {
+            alignments[i] = 1L << random.nextInt(MAX_ALIGNMENT + 1);
+        }
+        
+        Arrays.fill(live, MemoryChunk.NO_HANDLE);
+    }
+    
+    @TearDown(Level.Trial)
+    public void destroy()
+    {
+        if (!chunk.isEmpty() || chunk.getLargestFreeBlock() != CHUNK_SIZE)
+        {
+            throw new IllegalStateException("Chunk did not coalesce back into one block: " + new FragmentationReport(0, strategy, Collections.singletonList(chunk)));
+        }
+        
+        chunk.free();
+    }
+    
+    /**
+     * Every operation frees the block in a random slot, or allocates one into it if it is empty
+     */
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void run(Usage usage)
+    {
+        long failed = 0;
+        for (int i = 0; i < OPERATIONS; i++)
+        {
+            int slot = slots[i];
+            if (live[slot] != MemoryChunk.NO_HANDLE)
+            {
+                chunk.deallocate(live[slot]);
+                live[slot] = MemoryChunk.NO_HANDLE;
+                continue;
+            }
+            
+            long handle = chunk.allocateHandle(sizes[i], alignments[i]);
+            if (handle == MemoryChunk.NO_HANDLE)
+            {
+                failed++;
+                continue;
+            }
+            
+            if (chunk.getOffset(handle) % alignments[i] != 0)
+            {
+                throw new IllegalStateException("Offset " + chunk.getOffset(handle) + " is not aligned to " + alignments[i]);
+            }
+            live[slot] = handle;
+        }
+        
+        FragmentationReport report = new FragmentationReport(0, strategy, Collections.singletonList(chunk));
+        usage.externalFragmentation = report.getExternalFragmentation() * 100;
+        usage.internalFragmentation = report.getInternalFragmentation() * 100;
+        usage.failedAllocations = failed;
+    }
+    
+    /**
+     * Frees what the run left, so every run starts from an empty chunk
+     */
+    @TearDown(Level.Invocation)
+    public void freeAll()
+    {
+        for (int i = 0; i < SLOTS; i++)
+        {
+            if (live[i] != MemoryChunk.NO_HANDLE)
+            {
+                chunk.deallocate(live[i]);
+                live[i] = MemoryChunk.NO_HANDLE;
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package no.stelar7.vulkan.engine.memory;
+
+import java.util.Random;
+
+/**
+ * Request patterns shared by the benchmarks, generated up front from a fixed seed so every run sees the same sequence
+ */
+final class Workload
+{
+    // Smallest request, and the alignment every request is made with, matching a typical minUniformBufferOffsetAlignment
+    static final long MIN_SIZE  = 256;
+    static final long ALIGNMENT = 256;
+    
+    // Size reported for the heap of every off-heap memory type, gives the chunk size policy 128MB chunks
+    static final long HEAP_SIZE = 1024L * 1024 * 1024;
+    
+    static final long SEED = 0x5EED;
+    
+    private Workload()
+    {
+        // Hide constructor
+    }
+    
+    /**
+     * Gets sizes spread evenly over the powers of two from minSize to maxSize, each picked inside (2^(n-1), 2^n]
+     */
+    static long[] getSizes(int count, long minSize, long maxSize, long seed)
+    {
+        Random random   = new Random(seed);
+        int    minShift = 63 - Long.numberOfLeadingZeros(minSize);
+        int    maxShift = 63 - Long.numberOfLeadingZeros(maxSize);
+        
+        long[] sizes = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            long classSize = 1L << (minShift + random.nextInt(maxShift - minShift + 1));
+            sizes[i] = Math.max(classSize - (long) (random.nextDouble() * (classSize / 2)), minSize);
+        }
+        return sizes;
+    }
+    
+    /**
+     * Gets the numbers 0 until count in a random order
+     */
+    static int[] getShuffledOrder(int count, long seed)
+    {
+        Random random = new Random(seed);
+        
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            order[i] = i;
+        }
+        
+        for (int i = count - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        return order;
+    }
+    
+    /**
+     * Gets count random numbers from 0 until bound
+     */
+    static int[] getIndices(int count, int bound, long seed)
+    {
+        Random random = new Random(seed);
+        
+        int[] indices = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            indices[i] = random.nextInt(bound);
+        }
+        return indices;
+    }
+}
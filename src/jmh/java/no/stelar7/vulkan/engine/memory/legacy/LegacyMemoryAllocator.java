@@ -0,0 +1,46 @@
+package no.stelar7.vulkan.engine.memory.legacy;
+
+import java.util.*;
+
+/**
+ * The allocator from before block handles, kept so benchmarks can compare against it.
+ * Freeing searches every chunk for the block, and every block of that chunk again.
+ */
+public class LegacyMemoryAllocator
+{
+    private List<LegacyMemoryChunk> chunks = new ArrayList<>();
+    
+    /**
+     * Adds a chunk, the old allocator made these itself from a fixed chunk size
+     */
+    public LegacyMemoryChunk addChunk(long size, int memoryIndex)
+    {
+        LegacyMemoryChunk chunk = new LegacyMemoryChunk(chunks.size() + 1, memoryIndex, size);
+        chunks.add(chunk);
+        return chunk;
+    }
+    
+    /**
+     * @return the block, or null if no chunk has room for it
+     */
+    public LegacyMemoryBlock allocate(long size, long alignment, int memoryIndex)
+    {
+        for (LegacyMemoryChunk chunk : chunks)
+        {
+            if (chunk.getMemoryIndex() == memoryIndex)
+            {
+                LegacyMemoryBlock block = chunk.allocate(size, alignment);
+                if (block != null)
+                {
+                    return block;
+                }
+            }
+        }
+        return null;
+    }
+    
+    public void deallocate(LegacyMemoryBlock block)
+    {
+        chunks.stream().filter(s -> s.hasBlock(block)).findFirst().ifPresent(c -> c.deallocate(block));
+    }
+}
@@ -0,0 +1,94 @@
+package no.stelar7.vulkan.engine.memory.legacy;
+
+import java.util.*;
+
+/**
+ * The first-fit chunk from before TLSF, with the device memory replaced by a plain id so it runs without a GPU
+ */
+public class LegacyMemoryChunk
+{
+    private long memory;
+    private long size;
+    private int  index;
+    
+    private List<LegacyMemoryBlock> blocks = new ArrayList<>();
+    
+    public LegacyMemoryChunk(long memory, int memoryIndex, long size)
+    {
+        this.memory = memory;
+        this.index = memoryIndex;
+        this.size = size;
+        
+        LegacyMemoryBlock block = new LegacyMemoryBlock();
+        block.setMemory(memory);
+        block.setOffset(0);
+        block.setSize(size);
+        block.free();
+        
+        blocks.add(block);
+    }
+    
+    public int getMemoryIndex()
+    {
+        return index;
+    }
+    
+    public void deallocate(LegacyMemoryBlock block)
+    {
+        blocks.stream().filter(a -> a.equals(block)).findFirst().ifPresent(LegacyMemoryBlock::free);
+    }
+    
+    public LegacyMemoryBlock allocate(long requestSize, long alignment)
+    {
+        if (requestSize > size)
+        {
+            return null;
+        }
+        
+        for (int i = 0; i < blocks.size(); i++)
+        {
+            LegacyMemoryBlock currentBlock = blocks.get(i);
+            
+            if (currentBlock.isFree())
+            {
+                if (i > 0)
+                {
+                    LegacyMemoryBlock prevBlock = blocks.get(i - 1);
+                    if (prevBlock.isFree())
+                    {
+                        prevBlock.setSize(prevBlock.getSize() + currentBlock.getSize());
+                        blocks.remove(currentBlock);
+                        return allocate(requestSize, alignment);
+                    }
+                }
+                
+                if (currentBlock.getSize() >= requestSize)
+                {
+                    if (currentBlock.getSize() == requestSize)
+                    {
+                        currentBlock.take();
+                        return currentBlock;
+                    }
+                    
+                    LegacyMemoryBlock nextBlock = new LegacyMemoryBlock();
+                    nextBlock.setSize(currentBlock.getSize() - requestSize);
+                    nextBlock.setOffset(currentBlock.getOffset() + requestSize);
+                    nextBlock.setMemory(memory);
+                    nextBlock.free();
+                    blocks.add(nextBlock);
+                    
+                    currentBlock.setSize(requestSize);
+                    currentBlock.take();
+                    
+                    return currentBlock;
+                }
+            }
+        }
+        return null;
+    }
+    
+    public boolean hasBlock(LegacyMemoryBlock block)
+    {
+        return blocks.stream().anyMatch(a -> a.equals(block));
+    }
+}
@@ -0,0 +1,120 @@
+package no.stelar7.vulkan.engine.mesh;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Time taken to import a generated OBJ file of about a million triangles, on fork-join pools of different sizes.
+ * <p>
+ * The file is a grid of GRID_SIZE by GRID_SIZE vertices with random heights, split into two triangles per cell,
+ * and the faces refer to texture coordinates and normals so the corner parsing is measured too.
+ * Run the main method to get the speedup from 1 thread up to the number of processors, or pick the pool size with -p parallelism.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjParseBenchmark
+{
+    // (GRID_SIZE - 1)^2 * 2 is just over a million triangles
+    private static final int GRID_SIZE = 708;
+    
+    // The heights are random, but the same in every run
+    private static final long SEED = 0x5EED;
+    
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+    
+    private byte[]       data;
+    private ForkJoinPool pool;
+    
+    @Setup(Level.Trial)
+    public void create()
+    {
+        data = createGrid(GRID_SIZE, SEED);
+        pool = new ForkJoinPool(parallelism);
+    }
+    
+    @TearDown(Level.Trial)
+    public void destroy()
+    {
+        pool.shutdown();
+    }
+    
+    @Benchmark
+    public ImportedMesh parse()
+    {
+        return ObjImporter.load(data, pool);
+    }
+    
+    /**
+     * Writes a grid of size by size vertices, with two triangles for every cell
+     */
+    static byte[] createGrid(int size, long seed)
+    {
+        Random        random  = new Random(seed);
+        StringBuilder builder = new StringBuilder();
+        
+        for (int y = 0; y < size; y++)
+        {
+            for (int x = 0; x < size; x++)
+            {
+                builder.append(String.format(Locale.ROOT, "v %.6f %.6f %.6f%n", x * 0.01f, y * 0.01f, random.nextFloat()));
+            }
+        }
+        
+        for (int y = 0; y < size - 1; y++)
+        {
+            for (int x = 0; x < size - 1; x++)
+            {
+                int corner = y * size + x + 1;
+                builder.append("f ").append(corner).append("/1/1 ").append(corner + 1).append("/1/1 ").append(corner + size).append("/1/1\n");
+                builder.append("f ").append(corner + 1).append("/1/1 ").append(corner + size + 1).append("/1/1 ").append(corner + size).append("/1/1\n");
+            }
+        }
+        
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * Runs the benchmark at every power of two pool size up to the number of processors, and prints the speedup over 1 thread
+     */
+    public static void main(String[] args) throws RunnerException
+    {
+        int maxThreads = Integer.max(Runtime.getRuntime().availableProcessors(), 1);
+        
+        List<String> parallelism = new ArrayList<>();
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            parallelism.add(String.valueOf(threads));
+        }
+        
+        Options options = new OptionsBuilder().include(ObjParseBenchmark.class.getSimpleName())
+                                              .param("parallelism", parallelism.toArray(new String[0]))
+                                              .build();
+        
+        double        singleThreaded = 0;
+        StringBuilder table          = new StringBuilder(String.format("%-12s %8s %12s %8s%n", "Benchmark", "Threads", "ms/op", "Speedup"));
+        for (RunResult result : new Runner(options).run())
+        {
+            int    threads = Integer.parseInt(result.getParams().getParam("parallelism"));
+            double score   = result.getPrimaryResult().getScore();
+            
+            if (threads == 1)
+            {
+                singleThreaded = score;
+            }
+            table.append(String.format("%-12s %8d %12.1f %7.2fx%n", "parse", threads, score, singleThreaded / score));
+        }
+        
+        System.out.print(table);
+    }
+}
@@ -182,6 +182,39 @@ public final class EngineUtils
         throw new RuntimeException("No memory matching required type found");
     }
     
+    /**
+     * Checks if there are memory types with all of the required properties, and that every one of them is in a device-local heap at least half as large as the largest.
+     * Discrete GPUs without resizable BAR have a host-visible device-local type too, but it sits in a small heap (usually 256MB) that is easily filled.
+     */
+    public static boolean hasMemoryTypeInMainHeap(VkPhysicalDeviceMemoryProperties gpuMemory, int requiredProperties)
+    {
+        long largestHeap = 0;
+        for (int i = 0; i < gpuMemory.memoryHeapCount(); i++)
+        {
+            if ((gpuMemory.memoryHeaps(i).flags() & VK_MEMORY_HEAP_DEVICE_LOCAL_BIT) != 0)
+            {
+                largestHeap = Long.max(largestHeap, gpuMemory.memoryHeaps(i).size());
+            }
+        }
+        
+        boolean found = false;
+        for (int i = 0; i < gpuMemory.memoryTypeCount(); i++)
+        {
+            if ((gpuMemory.memoryTypes(i).propertyFlags() & requiredProperties) != requiredProperties)
+            {
+                continue;
+            }
+            
+            // Any of them may be picked by findMemoryTypeIndex, so all of them have to be large enough
+            if (gpuMemory.memoryHeaps(gpuMemory.memoryTypes(i).heapIndex()).size() < largestHeap / 2)
+            {
+                return false;
+            }
+            found = true;
+        }
+        return found;
+    }
+    
     public static String vkFormatToString(int format)
     {
         if (format == 44)
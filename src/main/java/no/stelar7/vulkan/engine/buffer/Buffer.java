@@ -1,15 +1,20 @@
 package no.stelar7.vulkan.engine.buffer;
 
-import no.stelar7.vulkan.engine.memory.MemoryBlock;
+import no.stelar7.vulkan.engine.memory.*;
 import org.lwjgl.vulkan.*;
 
 import static org.lwjgl.vulkan.VK10.*;
 
-public class Buffer
+public class Buffer implements MovableBuffer
 {
     private MemoryBlock memoryBlock;
     private long        bufferHandle;
     private long        bufferSize;
+    private int         usage;
+    
+    // Buffers from a pool are a range of a shared VkBuffer, starting at the offset
+    private long       offset;
+    private BufferPool pool;
     
     public MemoryBlock getMemoryBlock()
     {
@@ -21,6 +26,33 @@ public class Buffer
         this.memoryBlock = memoryBlock;
     }
     
+    /**
+     * Gets where this buffer starts in the VkBuffer, this must be added to every offset used with the handle
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+    
+    public void setOffset(long offset)
+    {
+        this.offset = offset;
+    }
+    
+    /**
+     * Gets the pool this buffer is a range of, or null if it has a VkBuffer of its own
+     */
+    public BufferPool getPool()
+    {
+        return pool;
+    }
+    
+    public void setPool(BufferPool pool)
+    {
+        this.pool = pool;
+    }
+    
+    @Override
     public long getBufferHandle()
     {
         return bufferHandle;
@@ -32,14 +64,57 @@ public class Buffer
     }
     
     
+    /**
+     * Gets the VkBufferUsageFlags the buffer was created with
+     */
+    @Override
+    public int getUsage()
+    {
+        return usage;
+    }
+    
+    public void setUsage(int usage)
+    {
+        this.usage = usage;
+    }
+    
+    /**
+     * Gets the host address of the start of this buffer, or 0 if it is not in host-visible memory.
+     * The pointer stays valid until the buffer is freed or moved by the defragmenter.
+     */
+    public long getMappedPointer()
+    {
+        if (pool != null)
+        {
+            return pool.getMappedPointer(this);
+        }
+        
+        return memoryBlock.getMappedPointer();
+    }
+    
+    @Override
+    public void moveTo(long bufferHandle, MemoryBlock block)
+    {
+        this.bufferHandle = bufferHandle;
+        this.memoryBlock = block;
+    }
+    
     public void free(VkDevice device)
     {
+        if (pool != null)
+        {
+            pool.free(this);
+            return;
+        }
+        
         vkDestroyBuffer(device, bufferHandle, null);
+        MemoryAllocator.getInstance().deallocate(memoryBlock);
     }
     
     /**
      * Gets the size of the buffer (In bytes)
      */
+    @Override
     public long getSize()
     {
         return bufferSize;
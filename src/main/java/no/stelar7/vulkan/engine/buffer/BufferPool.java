@@ -0,0 +1,306 @@
+package no.stelar7.vulkan.engine.buffer;
+
+import no.stelar7.vulkan.engine.EngineUtils;
+import no.stelar7.vulkan.engine.memory.*;
+import no.stelar7.vulkan.engine.memory.MemoryAllocator;
+import no.stelar7.vulkan.engine.renderer.DeviceFamily;
+import org.lwjgl.vulkan.*;
+
+import java.nio.LongBuffer;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Hands out Buffers that are ranges of a few large VkBuffers, instead of a VkBuffer each.
+ * <p>
+ * Every page is one VkBuffer bound to a block from the MemoryAllocator, with a chunk over a virtual backend that keeps track of which ranges of it are taken.
+ * The page is the owner of its block, so the defragmenter moves whole pages and the buffers in them are pointed at the new VkBuffer.
+ * All buffers from a pool share the same usage flags and memory properties, and buffers in the same page can be bound together.
+ * <p>
+ * Small buffers, like uniform buffers and the index buffers of small meshes, go to slab pages instead.
+ * A slab page is cut into equal slots found through a bitmap, so each one costs a bit in the bitmap and they never fragment the general pages.
+ */
+public class BufferPool
+{
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private final DeviceMemoryBackend backend = new VirtualMemoryBackend();
+    
+    private VkDevice     device;
+    private DeviceFamily deviceFamily;
+    
+    private int  usage;
+    private int  properties;
+    private long pageSize;
+    private long alignment;
+    
+    private List<Page> pages = new ArrayList<>();
+    
+    // Buffers up to MAX_SLOT_SIZE go to slab pages, in slots of the next power of two of at least MIN_SLOT_SIZE
+    private static final long MIN_SLOT_SIZE  = 256;
+    private static final long MAX_SLOT_SIZE  = 4 * 1024;
+    private static final long SLAB_PAGE_SIZE = 1024 * 1024;
+    
+    /**
+     * A VkBuffer, the block it is bound to, and the ranges taken in it
+     */
+    private class Page implements MovableBuffer
+    {
+        private MemoryBlock memory;
+        private MemoryChunk chunk;
+        private long        bufferHandle;
+        private long        size;
+        private Set<Buffer> views = new HashSet<>();
+        
+        // The size of every slot for slab pages, 0 for general pages
+        private long slotSize;
+        
+        @Override
+        public long getBufferHandle()
+        {
+            return bufferHandle;
+        }
+        
+        @Override
+        public long getSize()
+        {
+            return size;
+        }
+        
+        @Override
+        public int getUsage()
+        {
+            return usage;
+        }
+        
+        @Override
+        public void moveTo(long bufferHandle, MemoryBlock block)
+        {
+            lock.lock();
+            try
+            {
+                this.bufferHandle = bufferHandle;
+                this.memory = block;
+                views.forEach(view -> view.setBufferHandle(bufferHandle));
+            } finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * @param usage      the VkBufferUsageFlags every page is created with, pages can always be copied both ways so the defragmenter is able to move them
+     * @param properties the VkMemoryPropertyFlags the pages must have
+     * @param pageSize   the size of a page, larger buffers get a page of their own (In bytes)
+     * @param alignment  the alignment of every buffer in a page, must cover the offset alignment of every way the buffers are used
+     */
+    public BufferPool(DeviceFamily deviceFamily, int usage, int properties, long pageSize, long alignment)
+    {
+        this.device = deviceFamily.getDevice();
+        this.deviceFamily = deviceFamily;
+        this.usage = usage | VK_BUFFER_USAGE_TRANSFER_SRC_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT;
+        this.properties = properties;
+        this.pageSize = pageSize;
+        this.alignment = alignment;
+    }
+    
+    public int getUsage()
+    {
+        return usage;
+    }
+    
+    public Buffer allocate(long size)
+    {
+        lock.lock();
+        try
+        {
+            long slotSize = getSlotSize(size);
+            for (Page page : pages)
+            {
+                if (page.slotSize != slotSize)
+                {
+                    continue;
+                }
+                
+                MemoryBlock block = page.chunk.allocate(size, alignment);
+                if (block != null)
+                {
+                    return createView(page, block, size);
+                }
+            }
+            
+            Page        page  = (slotSize != 0) ? createPage(SLAB_PAGE_SIZE, slotSize) : createPage(Math.max(size, pageSize), 0);
+            MemoryBlock block = page.chunk.allocate(size, alignment);
+            return createView(page, block, size);
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Gives the range back to its page. Pages that end up empty are destroyed, except for the last one of their kind.
+     */
+    void free(Buffer buffer)
+    {
+        lock.lock();
+        try
+        {
+            Page page = getPage(buffer);
+            page.chunk.deallocate(buffer.getMemoryBlock());
+            page.views.remove(buffer);
+            
+            if (page.chunk.isEmpty() && getPageCount(page.slotSize) > 1)
+            {
+                destroyPage(page);
+                pages.remove(page);
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Gets the host address of the start of the buffer, or 0 if the pool is not host-visible
+     */
+    long getMappedPointer(Buffer buffer)
+    {
+        lock.lock();
+        try
+        {
+            long pointer = getPage(buffer).memory.getMappedPointer();
+            return (pointer != 0) ? pointer + buffer.getOffset() : 0;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private Page getPage(Buffer buffer)
+    {
+        MemoryChunk chunk = buffer.getMemoryBlock().getChunk();
+        for (Page page : pages)
+        {
+            if (page.chunk == chunk)
+            {
+                return page;
+            }
+        }
+        
+        throw new IllegalArgumentException("The buffer is not from this pool");
+    }
+    
+    /**
+     * Gets the amount of VkBuffers this pool has created
+     */
+    public int getPageCount()
+    {
+        return pages.size();
+    }
+    
+    /**
+     * Gets the size of the slot a buffer goes in, or 0 if it is too large for a slab page
+     */
+    private long getSlotSize(long size)
+    {
+        if (size > MAX_SLOT_SIZE || alignment > MAX_SLOT_SIZE)
+        {
+            return 0;
+        }
+        
+        long slotSize = Long.highestOneBit(Long.max(size, alignment) - 1) << 1;
+        return Long.max(slotSize, MIN_SLOT_SIZE);
+    }
+    
+    private int getPageCount(long slotSize)
+    {
+        int count = 0;
+        for (Page page : pages)
+        {
+            if (page.slotSize == slotSize)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    public void free()
+    {
+        lock.lock();
+        try
+        {
+            pages.forEach(this::destroyPage);
+            pages.clear();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private Buffer createView(Page page, MemoryBlock block, long size)
+    {
+        Buffer buffer = new Buffer();
+        buffer.setSize(size);
+        buffer.setUsage(usage);
+        buffer.setBufferHandle(page.bufferHandle);
+        buffer.setOffset(block.getOffset());
+        buffer.setMemoryBlock(block);
+        buffer.setPool(this);
+        
+        block.setOwner(buffer);
+        page.views.add(buffer);
+        return buffer;
+    }
+    
+    /**
+     * @param slotSize the size of every slot for a slab page, 0 for a general page
+     */
+    private Page createPage(long size, long slotSize)
+    {
+        Page page = new Page();
+        page.slotSize = slotSize;
+        page.size = size;
+        
+        LongBuffer handleHolder = memAllocLong(1);
+        VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.calloc()
+                                                                .sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+                                                                .size(size)
+                                                                .usage(usage);
+        deviceFamily.setSharingMode(bufferCreateInfo);
+        
+        EngineUtils.checkError(vkCreateBuffer(device, bufferCreateInfo, null, handleHolder));
+        page.bufferHandle = handleHolder.get(0);
+        
+        bufferCreateInfo.free();
+        memFree(handleHolder);
+        
+        VkMemoryRequirements requirements = VkMemoryRequirements.calloc();
+        vkGetBufferMemoryRequirements(device, page.bufferHandle, requirements);
+        int index = EngineUtils.findMemoryTypeIndex(deviceFamily.getMemoryProperties(), requirements, properties);
+        
+        page.memory = MemoryAllocator.getInstance().allocate(requirements.size(), requirements.alignment(), index);
+        page.memory.setOwner(page);
+        requirements.free();
+        
+        // Offsets in the chunk are offsets into the VkBuffer, wherever the page is bound
+        page.chunk = (slotSize != 0) ? new SlabMemoryChunk(backend, 0, size, slotSize) : new TlsfMemoryChunk(backend, 0, size);
+        
+        EngineUtils.checkError(vkBindBufferMemory(device, page.bufferHandle, page.memory.getMemory(), page.memory.getOffset()));
+        
+        pages.add(page);
+        return page;
+    }
+    
+    private void destroyPage(Page page)
+    {
+        vkDestroyBuffer(device, page.bufferHandle, null);
+        MemoryAllocator.getInstance().deallocate(page.memory);
+        page.chunk.free();
+    }
+}
@@ -0,0 +1,164 @@
+package no.stelar7.vulkan.engine.buffer;
+
+import no.stelar7.vulkan.engine.EngineUtils;
+import no.stelar7.vulkan.engine.memory.*;
+import no.stelar7.vulkan.engine.renderer.DeviceFamily;
+import org.lwjgl.vulkan.*;
+
+import java.nio.LongBuffer;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A persistently mapped buffer for data that only lives for a single frame.
+ * <p>
+ * The buffer is split into one partition per frame in flight, and allocating is a pointer bump inside the current partition.
+ * Nothing is freed on its own, the whole partition is released at once when its frame comes around again.
+ */
+public class FrameRingBuffer
+{
+    private VkDevice    device;
+    private MemoryChunk chunk;
+    private Buffer      buffer;
+    private long        mappedPointer;
+    
+    private int    frameCount;
+    private long   frameSize;
+    private long[] heads;
+    private int    currentFrame;
+    
+    public FrameRingBuffer(DeviceFamily deviceFamily, int frameCount, long frameSize, int usage)
+    {
+        this.device = deviceFamily.getDevice();
+        this.frameCount = frameCount;
+        this.frameSize = frameSize;
+        this.heads = new long[frameCount];
+        
+        buffer = new Buffer();
+        buffer.setSize(frameCount * frameSize);
+        
+        LongBuffer handleHolder = memAllocLong(1);
+        VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.calloc()
+                                                                .sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+                                                                .size(buffer.getSize())
+                                                                .usage(usage);
+        deviceFamily.setSharingMode(bufferCreateInfo);
+        
+        EngineUtils.checkError(vkCreateBuffer(device, bufferCreateInfo, null, handleHolder));
+        buffer.setBufferHandle(handleHolder.get(0));
+        
+        bufferCreateInfo.free();
+        memFree(handleHolder);
+        
+        VkMemoryRequirements requirements = VkMemoryRequirements.calloc();
+        vkGetBufferMemoryRequirements(device, buffer.getBufferHandle(), requirements);
+        int index = EngineUtils.findMemoryTypeIndex(deviceFamily.getMemoryProperties(), requirements, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+        
+        // The ring gets a chunk of its own, so the general allocator never sees per-frame traffic
+        chunk = new TlsfMemoryChunk(new VulkanMemoryBackend(deviceFamily), index, requirements.size());
+        buffer.setMemoryBlock(chunk.allocate(requirements.size(), requirements.alignment()));
+        requirements.free();
+        
+        MemoryBlock block = buffer.getMemoryBlock();
+        EngineUtils.checkError(vkBindBufferMemory(device, buffer.getBufferHandle(), block.getMemory(), block.getOffset()));
+        
+        mappedPointer = block.getMappedPointer();
+        
+        for (int i = 0; i < frameCount; i++)
+        {
+            releaseFrame(i);
+        }
+    }
+    
+    /**
+     * Makes the frame current and releases everything it allocated last time around.
+     * The GPU must be done with the previous use of this frame.
+     */
+    public void beginFrame(int frame)
+    {
+        releaseFrame(frame);
+        currentFrame = frame;
+    }
+    
+    /**
+     * Releases every allocation made in the frame
+     */
+    public void releaseFrame(int frame)
+    {
+        heads[frame] = getFrameOffset(frame);
+    }
+    
+    /**
+     * Allocates from the current frame
+     *
+     * @return the offset into the buffer, or -1 if the frame is out of space
+     */
+    public long allocate(long size, long alignment)
+    {
+        long align  = Math.max(alignment, 1);
+        long offset = ((heads[currentFrame] + align - 1) / align) * align;
+        
+        if (offset + size > (currentFrame + 1) * frameSize)
+        {
+            return -1;
+        }
+        
+        heads[currentFrame] = offset + size;
+        return offset;
+    }
+    
+    /**
+     * Gets the host address of an offset returned by allocate
+     */
+    public long getAddress(long offset)
+    {
+        return mappedPointer + offset;
+    }
+    
+    public long getBufferHandle()
+    {
+        return buffer.getBufferHandle();
+    }
+    
+    public int getFrameCount()
+    {
+        return frameCount;
+    }
+    
+    public int getCurrentFrame()
+    {
+        return currentFrame;
+    }
+    
+    /**
+     * Gets the size of each frame partition (In bytes)
+     */
+    public long getFrameSize()
+    {
+        return frameSize;
+    }
+    
+    /**
+     * Gets the offset of the frame partition, the first allocation of a frame always lands here (In bytes)
+     */
+    public long getFrameOffset(int frame)
+    {
+        return frame * frameSize;
+    }
+    
+    /**
+     * Gets the amount of bytes allocated in the frame
+     */
+    public long getUsedSize(int frame)
+    {
+        return heads[frame] - getFrameOffset(frame);
+    }
+    
+    public void free()
+    {
+        // The block is from the private chunk, Buffer.free would hand it to the general allocator
+        vkDestroyBuffer(device, buffer.getBufferHandle(), null);
+        chunk.free();
+    }
+}
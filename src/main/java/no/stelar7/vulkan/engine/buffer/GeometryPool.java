@@ -0,0 +1,238 @@
+package no.stelar7.vulkan.engine.buffer;
+
+import no.stelar7.vulkan.engine.game.objects.Model;
+import no.stelar7.vulkan.engine.memory.*;
+import no.stelar7.vulkan.engine.renderer.RetirementQueue;
+import no.stelar7.vulkan.engine.spec.VertexLayout;
+import org.lwjgl.vulkan.VkDevice;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Packs the vertices and indices of every mesh into a few large buffers, so a pass binds them once instead of once per mesh.
+ * <p>
+ * Every page is one StagedBuffer used as both vertex and index buffer, with a chunk that keeps track of which ranges of it are taken.
+ * Vertex ranges are aligned to the vertex stride and index ranges to the index size,
+ * so a mesh is drawn from its page with a first index and a vertex offset instead of buffer offsets.
+ */
+public class GeometryPool
+{
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private final DeviceMemoryBackend backend = new VirtualMemoryBackend();
+    
+    private VkDevice                   device;
+    private RetirementQueue            retirementQueue;
+    private VertexLayout               layout;
+    private long                       pageSize;
+    private LongFunction<StagedBuffer> pageFactory;
+    
+    private List<Page> pages = new ArrayList<>();
+    
+    /**
+     * A buffer and the ranges taken in it
+     */
+    private static class Page
+    {
+        private StagedBuffer buffer;
+        private MemoryChunk  chunk;
+    }
+    
+    /**
+     * @param retirementQueue holds on to freed ranges until the frames that could draw them are done
+     * @param layout          the layout of every vertex in the pool
+     * @param pageSize        the size of a page, meshes that are larger get a page of their own (In bytes)
+     * @param pageFactory     creates a buffer of the given size that can be used as both vertex and index buffer
+     */
+    public GeometryPool(VkDevice device, RetirementQueue retirementQueue, VertexLayout layout, long pageSize, LongFunction<StagedBuffer> pageFactory)
+    {
+        this.device = device;
+        this.retirementQueue = retirementQueue;
+        this.layout = layout;
+        this.pageSize = pageSize;
+        this.pageFactory = pageFactory;
+    }
+    
+    public VertexLayout getLayout()
+    {
+        return layout;
+    }
+    
+    /**
+     * Reserves room for a mesh, the data is written to the buffer of the model at getVertexDataOffset and getIndexDataOffset
+     *
+     * @param indexType the VkIndexType of the indices, the indices are relative to the first vertex of the mesh
+     */
+    public Model allocate(int vertexCount, int indexCount, int indexType)
+    {
+        if (vertexCount <= 0 || indexCount <= 0)
+        {
+            throw new IllegalArgumentException("A mesh needs at least one vertex and one index, got " + vertexCount + " and " + indexCount);
+        }
+        
+        int  stride      = layout.getStride();
+        int  indexSize   = indexType == VK_INDEX_TYPE_UINT16 ? Short.BYTES : Integer.BYTES;
+        long vertexBytes = (long) vertexCount * stride;
+        long indexBytes  = (long) indexCount * indexSize;
+        
+        lock.lock();
+        try
+        {
+            for (Page page : pages)
+            {
+                Model model = allocate(page, vertexBytes, indexBytes, indexType);
+                if (model != null)
+                {
+                    return model;
+                }
+            }
+            
+            // Room for the worst case padding in front of both ranges
+            Page page = createPage(Long.max(pageSize, vertexBytes + indexBytes + stride + indexSize));
+            return allocate(page, vertexBytes, indexBytes, indexType);
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Gives the ranges of the model back to its page once the frames that could draw it are done.
+     * Nothing may draw the model once this is called.
+     */
+    public void free(Model model)
+    {
+        retirementQueue.retire(() -> release(model));
+    }
+    
+    /**
+     * Gives the ranges of the model back to its page right away. Pages that end up empty are freed, except for the first one.
+     */
+    private void release(Model model)
+    {
+        lock.lock();
+        try
+        {
+            for (int i = 0; i < pages.size(); i++)
+            {
+                Page page = pages.get(i);
+                if (page.buffer != model.getBuffer())
+                {
+                    continue;
+                }
+                
+                page.chunk.deallocate(model.getVertexHandle());
+                page.chunk.deallocate(model.getIndexHandle());
+                
+                if (i > 0 && page.chunk.isEmpty())
+                {
+                    destroyPage(page);
+                    pages.remove(i);
+                }
+                return;
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Gets where the vertices of the model start in its buffer (In bytes)
+     */
+    public long getVertexDataOffset(Model model)
+    {
+        return (long) model.getVertexOffset() * layout.getStride();
+    }
+    
+    /**
+     * Gets where the indices of the model start in its buffer (In bytes)
+     */
+    public long getIndexDataOffset(Model model)
+    {
+        return (long) model.getFirstIndex() * model.getIndexSize();
+    }
+    
+    /**
+     * Gets the amount of buffers this pool has created
+     */
+    public int getPageCount()
+    {
+        return pages.size();
+    }
+    
+    /**
+     * Gets how many bytes are taken by meshes, over every page
+     */
+    public long getUsedSize()
+    {
+        lock.lock();
+        try
+        {
+            return pages.stream().mapToLong(page -> page.chunk.getSize() - page.chunk.getFreeSize()).sum();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Frees every page at once, the device must be idle
+     */
+    public void free()
+    {
+        lock.lock();
+        try
+        {
+            pages.forEach(this::destroyPage);
+            pages.clear();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private Model allocate(Page page, long vertexBytes, long indexBytes, int indexType)
+    {
+        int indexSize = indexType == VK_INDEX_TYPE_UINT16 ? Short.BYTES : Integer.BYTES;
+        
+        long vertexHandle = page.chunk.allocateHandle(vertexBytes, layout.getStride());
+        if (vertexHandle == MemoryChunk.NO_HANDLE)
+        {
+            return null;
+        }
+        
+        long indexHandle = page.chunk.allocateHandle(indexBytes, indexSize);
+        if (indexHandle == MemoryChunk.NO_HANDLE)
+        {
+            page.chunk.deallocate(vertexHandle);
+            return null;
+        }
+        
+        int vertexOffset = (int) (page.chunk.getOffset(vertexHandle) / layout.getStride());
+        int firstIndex   = (int) (page.chunk.getOffset(indexHandle) / indexSize);
+        int indexCount   = (int) (indexBytes / indexSize);
+        
+        return new Model(this, page.buffer, vertexHandle, indexHandle, vertexOffset, firstIndex, indexCount, indexType);
+    }
+    
+    private Page createPage(long size)
+    {
+        Page page = new Page();
+        page.buffer = pageFactory.apply(size);
+        page.chunk = new TlsfMemoryChunk(backend, 0, size);
+        
+        pages.add(page);
+        return page;
+    }
+    
+    private void destroyPage(Page page)
+    {
+        page.buffer.free(device);
+        page.chunk.free();
+    }
+}
@@ -0,0 +1,31 @@
+package no.stelar7.vulkan.engine.buffer;
+
+import no.stelar7.vulkan.engine.memory.MemoryBlock;
+
+/**
+ * A VkBuffer bound to a block from the MemoryAllocator, set as the owner of that block so the defragmenter can move it.
+ * <p>
+ * Buffers can not be rebound, so a move creates a new VkBuffer bound to the destination, copies the old one into it, and hands it over with moveTo.
+ */
+public interface MovableBuffer
+{
+    long getBufferHandle();
+    
+    /**
+     * Gets the size of the VkBuffer (In bytes)
+     */
+    long getSize();
+    
+    /**
+     * Gets the VkBufferUsageFlags the VkBuffer was created with
+     */
+    int getUsage();
+    
+    /**
+     * Switches over to a new VkBuffer holding a copy of the data, the old one is destroyed by the caller once the copy is done
+     *
+     * @param bufferHandle the new VkBuffer
+     * @param block        the block the new VkBuffer is bound to
+     */
+    void moveTo(long bufferHandle, MemoryBlock block);
+}
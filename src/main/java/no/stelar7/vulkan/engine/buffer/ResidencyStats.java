@@ -0,0 +1,90 @@
+package no.stelar7.vulkan.engine.buffer;
+
+import java.util.Locale;
+
+/**
+ * A snapshot of how much of a sparse buffer is backed by memory, and how pages have come and gone
+ */
+public class ResidencyStats
+{
+    private final boolean sparse;
+    private final long    pageSize;
+    private final int     pageCount;
+    private final int     residentPageCount;
+    private final int     peakResidentPageCount;
+    private final long    committedPageCount;
+    private final long    evictedPageCount;
+    
+    ResidencyStats(boolean sparse, long pageSize, int pageCount, int residentPageCount, int peakResidentPageCount, long committedPageCount, long evictedPageCount)
+    {
+        this.sparse = sparse;
+        this.pageSize = pageSize;
+        this.pageCount = pageCount;
+        this.residentPageCount = residentPageCount;
+        this.peakResidentPageCount = peakResidentPageCount;
+        this.committedPageCount = committedPageCount;
+        this.evictedPageCount = evictedPageCount;
+    }
+    
+    /**
+     * Checks if the buffer commits pages on demand, buffers that fell back to a plain buffer have every page resident
+     */
+    public boolean isSparse()
+    {
+        return sparse;
+    }
+    
+    /**
+     * Gets the size of a page (In bytes)
+     */
+    public long getPageSize()
+    {
+        return pageSize;
+    }
+    
+    public int getPageCount()
+    {
+        return pageCount;
+    }
+    
+    public int getResidentPageCount()
+    {
+        return residentPageCount;
+    }
+    
+    public int getPeakResidentPageCount()
+    {
+        return peakResidentPageCount;
+    }
+    
+    /**
+     * Gets how many pages have been bound in total
+     */
+    public long getCommittedPageCount()
+    {
+        return committedPageCount;
+    }
+    
+    /**
+     * Gets how many pages have been unbound in total, because they were not used for long enough
+     */
+    public long getEvictedPageCount()
+    {
+        return evictedPageCount;
+    }
+    
+    /**
+     * Gets how much memory backs the buffer right now (In bytes)
+     */
+    public long getResidentSize()
+    {
+        return residentPageCount * pageSize;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.ROOT, "%s %d/%d pages resident (%d bytes, peak %d pages), %d committed, %d evicted",
+                             sparse ? "sparse" : "non-sparse", residentPageCount, pageCount, getResidentSize(), peakResidentPageCount, committedPageCount, evictedPageCount);
+    }
+}
@@ -0,0 +1,421 @@
+package no.stelar7.vulkan.engine.buffer;
+
+import no.stelar7.vulkan.engine.EngineUtils;
+import no.stelar7.vulkan.engine.memory.MemoryAllocator;
+import no.stelar7.vulkan.engine.memory.MemoryBlock;
+import no.stelar7.vulkan.engine.renderer.DeviceFamily;
+import org.lwjgl.vulkan.*;
+
+import java.nio.LongBuffer;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A large buffer where only the pages that are in use are backed by memory.
+ * <p>
+ * The whole range is reserved up front, and pages get a block from the allocator when data is committed to them.
+ * Pages that have not been touched for a number of frames are unbound and their blocks given back.
+ * The blocks are bound through the sparse queue and have no owner, so the defragmenter never moves them.
+ * <p>
+ * When the device can not leave a buffer partially bound, this falls back to a plain buffer of the whole size where every page is always resident.
+ */
+public class SparseBuffer
+{
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private VkDevice device;
+    private VkQueue  queue;
+    private long     fence;
+    
+    private long bufferHandle;
+    private long size;
+    private long pageSize;
+    private int  memoryIndex;
+    private int  usage;
+    
+    private boolean sparse;
+    private int     evictAfterFrames;
+    private long    frame;
+    
+    // One entry per page, a null block is a page with no memory behind it
+    private MemoryBlock[] pages;
+    private long[]        lastUsed;
+    
+    // Only set when falling back to a plain buffer
+    private MemoryBlock fallbackBlock;
+    
+    private int  residentPageCount;
+    private int  peakResidentPageCount;
+    private long committedPageCount;
+    private long evictedPageCount;
+    
+    /**
+     * @param queue            a queue from a family with sparse binding support, only used when the buffer is sparse
+     * @param size             the size of the range to reserve (In bytes)
+     * @param properties       the VkMemoryPropertyFlags every page must have
+     * @param sparse           if pages are committed on demand, this must only be set when the device supports sparse residency for buffers
+     * @param evictAfterFrames how many frames a page may go untouched before it is evicted
+     */
+    public SparseBuffer(DeviceFamily deviceFamily, VkQueue queue, long size, int usage, int properties, boolean sparse, int evictAfterFrames)
+    {
+        this.device = deviceFamily.getDevice();
+        this.queue = queue;
+        this.usage = usage;
+        this.sparse = sparse;
+        this.evictAfterFrames = evictAfterFrames;
+        
+        LongBuffer handleHolder = memAllocLong(1);
+        VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.calloc()
+                                                                .sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+                                                                .flags(sparse ? VK_BUFFER_CREATE_SPARSE_BINDING_BIT | VK_BUFFER_CREATE_SPARSE_RESIDENCY_BIT : 0)
+                                                                .size(size)
+                                                                .usage(usage);
+        deviceFamily.setSharingMode(bufferCreateInfo);
+        
+        EngineUtils.checkError(vkCreateBuffer(device, bufferCreateInfo, null, handleHolder));
+        bufferHandle = handleHolder.get(0);
+        bufferCreateInfo.free();
+        
+        VkMemoryRequirements requirements = VkMemoryRequirements.calloc();
+        vkGetBufferMemoryRequirements(device, bufferHandle, requirements);
+        memoryIndex = EngineUtils.findMemoryTypeIndex(deviceFamily.getMemoryProperties(), requirements, properties);
+        
+        // The alignment of a sparse buffer is its page size, and the size is rounded up to whole pages
+        this.size = requirements.size();
+        this.pageSize = sparse ? requirements.alignment() : requirements.size();
+        
+        int pageCount = (int) ((this.size + pageSize - 1) / pageSize);
+        pages = new MemoryBlock[pageCount];
+        lastUsed = new long[pageCount];
+        
+        if (sparse)
+        {
+            VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.calloc().sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+            EngineUtils.checkError(vkCreateFence(device, fenceInfo, null, handleHolder));
+            fence = handleHolder.get(0);
+            fenceInfo.free();
+        } else
+        {
+            fallbackBlock = MemoryAllocator.getInstance().allocate(requirements.size(), requirements.alignment(), memoryIndex);
+            if (fallbackBlock == null)
+            {
+                throw new RuntimeException("Unable to allocate " + requirements.size() + " bytes for a non-sparse fallback buffer");
+            }
+            EngineUtils.checkError(vkBindBufferMemory(device, bufferHandle, fallbackBlock.getMemory(), fallbackBlock.getOffset()));
+            
+            Arrays.fill(pages, fallbackBlock);
+            residentPageCount = pageCount;
+            peakResidentPageCount = pageCount;
+            committedPageCount = pageCount;
+        }
+        
+        requirements.free();
+        memFree(handleHolder);
+    }
+    
+    public boolean isSparse()
+    {
+        return sparse;
+    }
+    
+    public long getBufferHandle()
+    {
+        return bufferHandle;
+    }
+    
+    /**
+     * Gets the size of the reserved range (In bytes)
+     */
+    public long getSize()
+    {
+        return size;
+    }
+    
+    /**
+     * Gets the size of a page, commits and evictions happen in whole pages (In bytes)
+     */
+    public long getPageSize()
+    {
+        return pageSize;
+    }
+    
+    /**
+     * Creates a view of the whole range, to write to it through the upload manager. The view must never be freed, free this buffer instead.
+     */
+    public Buffer createView()
+    {
+        Buffer buffer = new Buffer();
+        buffer.setBufferHandle(bufferHandle);
+        buffer.setSize(size);
+        buffer.setUsage(usage);
+        return buffer;
+    }
+    
+    /**
+     * Makes sure every page of the range has memory behind it, and marks them as used this frame.
+     * Blocks until the new pages are bound, so the range can be written as soon as this returns.
+     *
+     * @param offset the start of the range (In bytes)
+     * @param length the size of the range (In bytes)
+     * @return how many pages had to be bound
+     */
+    public int commit(long offset, long length)
+    {
+        checkRange(offset, length);
+        
+        lock.lock();
+        try
+        {
+            touch(offset, length);
+            if (!sparse)
+            {
+                return 0;
+            }
+            
+            List<Integer> missing = new ArrayList<>();
+            for (int page = firstPage(offset); page <= lastPage(offset, length); page++)
+            {
+                if (pages[page] == null)
+                {
+                    missing.add(page);
+                }
+            }
+            
+            if (missing.isEmpty())
+            {
+                return 0;
+            }
+            
+            VkSparseMemoryBind.Buffer binds = VkSparseMemoryBind.calloc(missing.size());
+            for (int i = 0; i < missing.size(); i++)
+            {
+                int         page  = missing.get(i);
+                MemoryBlock block = MemoryAllocator.getInstance().allocate(pageSize, pageSize, memoryIndex);
+                if (block == null)
+                {
+                    // Pages allocated so far are still bound below, the caller can evict and try again
+                    binds.limit(i);
+                    bind(binds);
+                    binds.free();
+                    throw new RuntimeException("Unable to allocate a page of " + pageSize + " bytes for a sparse buffer");
+                }
+                
+                pages[page] = block;
+                binds.get(i)
+                     .resourceOffset(page * pageSize)
+                     .size(pageSize)
+                     .memory(block.getMemory())
+                     .memoryOffset(block.getOffset());
+                
+                residentPageCount++;
+                committedPageCount++;
+            }
+            peakResidentPageCount = Integer.max(peakResidentPageCount, residentPageCount);
+            
+            bind(binds);
+            binds.free();
+            
+            return missing.size();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Marks the pages of the range as used this frame, so they are not evicted.
+     * Every range a frame reads from has to be touched, or its pages can be evicted while they are still drawn from.
+     */
+    public void touch(long offset, long length)
+    {
+        checkRange(offset, length);
+        
+        lock.lock();
+        try
+        {
+            for (int page = firstPage(offset); page <= lastPage(offset, length); page++)
+            {
+                lastUsed[page] = frame;
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Checks if every page of the range has memory behind it
+     */
+    public boolean isResident(long offset, long length)
+    {
+        checkRange(offset, length);
+        
+        lock.lock();
+        try
+        {
+            for (int page = firstPage(offset); page <= lastPage(offset, length); page++)
+            {
+                if (pages[page] == null)
+                {
+                    return false;
+                }
+            }
+            return true;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Starts a new frame, and evicts every page that has not been touched for evictAfterFrames frames.
+     * Should be called once per frame, after the submit of the frame.
+     *
+     * @return how many pages were evicted
+     */
+    public int beginFrame()
+    {
+        lock.lock();
+        try
+        {
+            frame++;
+            if (!sparse)
+            {
+                return 0;
+            }
+            
+            List<Integer> stale = new ArrayList<>();
+            for (int page = 0; page < pages.length; page++)
+            {
+                if (pages[page] != null && frame - lastUsed[page] > evictAfterFrames)
+                {
+                    stale.add(page);
+                }
+            }
+            
+            if (stale.isEmpty())
+            {
+                return 0;
+            }
+            
+            // A bind without memory makes the range unbound again
+            VkSparseMemoryBind.Buffer binds = VkSparseMemoryBind.calloc(stale.size());
+            for (int i = 0; i < stale.size(); i++)
+            {
+                binds.get(i)
+                     .resourceOffset(stale.get(i) * pageSize)
+                     .size(pageSize)
+                     .memory(VK_NULL_HANDLE);
+            }
+            
+            bind(binds);
+            binds.free();
+            
+            // The unbind is done once bind returns, so the blocks are free to be reused
+            for (int page : stale)
+            {
+                MemoryAllocator.getInstance().deallocate(pages[page]);
+                pages[page] = null;
+            }
+            
+            residentPageCount -= stale.size();
+            evictedPageCount += stale.size();
+            return stale.size();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    public ResidencyStats getStats()
+    {
+        lock.lock();
+        try
+        {
+            return new ResidencyStats(sparse, pageSize, pages.length, residentPageCount, peakResidentPageCount, committedPageCount, evictedPageCount);
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Destroys the buffer and gives every page back, the device must be done with it
+     */
+    public void free()
+    {
+        lock.lock();
+        try
+        {
+            vkDestroyBuffer(device, bufferHandle, null);
+            
+            if (sparse)
+            {
+                for (int page = 0; page < pages.length; page++)
+                {
+                    if (pages[page] != null)
+                    {
+                        MemoryAllocator.getInstance().deallocate(pages[page]);
+                        pages[page] = null;
+                    }
+                }
+                vkDestroyFence(device, fence, null);
+            } else
+            {
+                MemoryAllocator.getInstance().deallocate(fallbackBlock);
+            }
+            
+            residentPageCount = 0;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Submits the binds to the sparse queue and waits for them, nothing else on any queue is ordered against a sparse bind
+     */
+    private void bind(VkSparseMemoryBind.Buffer binds)
+    {
+        if (binds.remaining() == 0)
+        {
+            return;
+        }
+        
+        VkSparseBufferMemoryBindInfo.Buffer bindInfo = VkSparseBufferMemoryBindInfo.calloc(1)
+                                                                                   .buffer(bufferHandle)
+                                                                                   .pBinds(binds);
+        
+        VkBindSparseInfo sparseInfo = VkBindSparseInfo.calloc()
+                                                      .sType(VK_STRUCTURE_TYPE_BIND_SPARSE_INFO)
+                                                      .pBufferBinds(bindInfo);
+        
+        EngineUtils.checkError(vkQueueBindSparse(queue, sparseInfo, fence));
+        EngineUtils.checkError(vkWaitForFences(device, fence, true, Long.MAX_VALUE));
+        EngineUtils.checkError(vkResetFences(device, fence));
+        
+        sparseInfo.free();
+        bindInfo.free();
+    }
+    
+    private void checkRange(long offset, long length)
+    {
+        if (offset < 0 || length <= 0 || offset + length > size)
+        {
+            throw new IllegalArgumentException("Range " + offset + " + " + length + " is outside of the buffer, which is " + size + " bytes");
+        }
+    }
+    
+    private int firstPage(long offset)
+    {
+        return (int) (offset / pageSize);
+    }
+    
+    private int lastPage(long offset, long length)
+    {
+        return (int) ((offset + length - 1) / pageSize);
+    }
+}
@@ -2,11 +2,32 @@ package no.stelar7.vulkan.engine.buffer;
 
 import org.lwjgl.vulkan.*;
 
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.lwjgl.vulkan.VK10.*;
+
 public class StagedBuffer
 {
-    private Buffer  hostBuffer;
-    private Buffer  deviceBuffer;
-    private boolean dirty;
+    // Ranges closer than this are merged, copying a gap this small is cheaper than another copy region (In bytes)
+    public static final long MERGE_GAP = 256;
+    
+    // Once this share of the buffer is dirty, the whole buffer is copied as one region
+    private static final double WHOLE_COPY_RATIO = 0.5;
+    
+    private final ReentrantLock dirtyLock = new ReentrantLock();
+    
+    private Buffer hostBuffer;
+    private Buffer deviceBuffer;
+    
+    // Only used by index buffers
+    private int indexType = VK_INDEX_TYPE_UINT32;
+    
+    // Byte ranges that changed since the last upload, sorted and at least MERGE_GAP apart. Only touched with dirtyLock held.
+    private long[] dirtyStart = new long[16];
+    private long[] dirtyEnd   = new long[16];
+    private int    dirtyCount;
+    private long   dirtyBytes;
     
     public StagedBuffer(Buffer staged, Buffer used)
     {
@@ -14,6 +35,30 @@ public class StagedBuffer
         this.deviceBuffer = used;
     }
     
+    /**
+     * Creates a staged buffer that is written to directly, the buffer must be both device-local and host-visible
+     */
+    public StagedBuffer(Buffer unified)
+    {
+        this(unified, unified);
+    }
+    
+    /**
+     * Checks if the buffer keeps a host copy of its data, buffers without one are written through the staging ring of the upload manager
+     */
+    public boolean hasHostBuffer()
+    {
+        return hostBuffer != null;
+    }
+    
+    /**
+     * Checks if the host and device buffer are the same, in which case there is nothing to copy
+     */
+    public boolean isUnified()
+    {
+        return hostBuffer == deviceBuffer;
+    }
+    
     /**
      * Sets the host-local buffer
      */
@@ -47,19 +92,258 @@ public class StagedBuffer
         this.deviceBuffer = deviceBuffer;
     }
     
-    public void free(VkDevice device)
+    /**
+     * Destroys both buffers right away, only for buffers the device is known to be done with.
+     * Anything else goes through RetirementQueue.retire.
+     */
+    void free(VkDevice device)
+    {
+        if (hasHostBuffer())
+        {
+            hostBuffer.free(device);
+        }
+        
+        if (!isUnified())
+        {
+            deviceBuffer.free(device);
+        }
+    }
+    
+    /**
+     * Gets the VkIndexType of the data, if this is an index buffer
+     */
+    public int getIndexType()
+    {
+        return indexType;
+    }
+    
+    public void setIndexType(int indexType)
+    {
+        this.indexType = indexType;
+    }
+    
+    /**
+     * Gets the size of one index (In bytes)
+     */
+    public int getIndexSize()
     {
-        hostBuffer.free(device);
-        deviceBuffer.free(device);
+        return indexType == VK_INDEX_TYPE_UINT16 ? Short.BYTES : Integer.BYTES;
     }
     
     public boolean isDirty()
     {
-        return dirty;
+        dirtyLock.lock();
+        try
+        {
+            return dirtyCount > 0;
+        } finally
+        {
+            dirtyLock.unlock();
+        }
     }
     
+    /**
+     * Marks the whole buffer as changed, or clears every changed range
+     */
     public void setDirty(boolean dirty)
     {
-        this.dirty = dirty;
+        dirtyLock.lock();
+        try
+        {
+            dirtyCount = 0;
+            dirtyBytes = 0;
+            if (dirty)
+            {
+                markDirty(0, deviceBuffer.getSize());
+            }
+        } finally
+        {
+            dirtyLock.unlock();
+        }
+    }
+    
+    /**
+     * Marks a range as changed, merging it with every range that is less than MERGE_GAP away.
+     * Safe to call from any thread, also while an upload takes the ranges.
+     *
+     * @param offset the offset into the buffer (In bytes)
+     * @param size   the size of the range (In bytes)
+     */
+    public void markDirty(long offset, long size)
+    {
+        if (size <= 0)
+        {
+            return;
+        }
+        
+        dirtyLock.lock();
+        try
+        {
+            long start = offset;
+            long end   = offset + size;
+            
+            int first = 0;
+            while (first < dirtyCount && dirtyEnd[first] + MERGE_GAP < start)
+            {
+                first++;
+            }
+            
+            int last = first;
+            while (last < dirtyCount && dirtyStart[last] <= end + MERGE_GAP)
+            {
+                start = Math.min(start, dirtyStart[last]);
+                end = Math.max(end, dirtyEnd[last]);
+                dirtyBytes -= dirtyEnd[last] - dirtyStart[last];
+                last++;
+            }
+            
+            replaceRanges(first, last, start, end);
+            dirtyBytes += end - start;
+            
+            if (dirtyCount > 1 && dirtyBytes > deviceBuffer.getSize() * WHOLE_COPY_RATIO)
+            {
+                // Past this point one large copy beats many small ones, so the gaps between the ranges are copied too
+                replaceRanges(0, dirtyCount, dirtyStart[0], dirtyEnd[dirtyCount - 1]);
+                dirtyBytes = dirtyEnd[0] - dirtyStart[0];
+            }
+        } finally
+        {
+            dirtyLock.unlock();
+        }
+    }
+    
+    /**
+     * Removes a range from the changed ranges, for writes that are copied to the device some other way
+     *
+     * @param offset the offset into the buffer (In bytes)
+     * @param size   the size of the range (In bytes)
+     */
+    public void clearDirty(long offset, long size)
+    {
+        dirtyLock.lock();
+        try
+        {
+            long start = offset;
+            long end   = offset + size;
+            
+            for (int i = dirtyCount - 1; i >= 0; i--)
+            {
+                if (dirtyEnd[i] <= start || dirtyStart[i] >= end)
+                {
+                    continue;
+                }
+                
+                long rangeStart = dirtyStart[i];
+                long rangeEnd   = dirtyEnd[i];
+                dirtyBytes -= rangeEnd - rangeStart;
+                removeRange(i);
+                
+                // Whatever sticks out on either side stays dirty
+                if (rangeEnd > end)
+                {
+                    insertRange(i, end, rangeEnd);
+                }
+                if (rangeStart < start)
+                {
+                    insertRange(i, rangeStart, start);
+                }
+            }
+        } finally
+        {
+            dirtyLock.unlock();
+        }
+    }
+    
+    /**
+     * Takes every changed range and clears them in one step, so a range marked by another thread is either taken here or left for the next upload
+     *
+     * @return the offset and size of every range, one after the other (In bytes)
+     */
+    public long[] takeDirtyRanges()
+    {
+        dirtyLock.lock();
+        try
+        {
+            long[] ranges = new long[dirtyCount * 2];
+            for (int i = 0; i < dirtyCount; i++)
+            {
+                ranges[i * 2] = dirtyStart[i];
+                ranges[i * 2 + 1] = dirtyEnd[i] - dirtyStart[i];
+            }
+            
+            dirtyCount = 0;
+            dirtyBytes = 0;
+            return ranges;
+        } finally
+        {
+            dirtyLock.unlock();
+        }
+    }
+    
+    public int getDirtyRangeCount()
+    {
+        dirtyLock.lock();
+        try
+        {
+            return dirtyCount;
+        } finally
+        {
+            dirtyLock.unlock();
+        }
+    }
+    
+    /**
+     * Gets how many bytes the next upload copies
+     */
+    public long getDirtyBytes()
+    {
+        dirtyLock.lock();
+        try
+        {
+            return dirtyBytes;
+        } finally
+        {
+            dirtyLock.unlock();
+        }
+    }
+    
+    /**
+     * Replaces the ranges from first up to last with one range
+     */
+    private void replaceRanges(int first, int last, long start, long end)
+    {
+        if (first == last)
+        {
+            insertRange(first, start, end);
+            return;
+        }
+        
+        System.arraycopy(dirtyStart, last, dirtyStart, first + 1, dirtyCount - last);
+        System.arraycopy(dirtyEnd, last, dirtyEnd, first + 1, dirtyCount - last);
+        dirtyStart[first] = start;
+        dirtyEnd[first] = end;
+        dirtyCount -= last - first - 1;
+    }
+    
+    private void removeRange(int index)
+    {
+        System.arraycopy(dirtyStart, index + 1, dirtyStart, index, dirtyCount - index - 1);
+        System.arraycopy(dirtyEnd, index + 1, dirtyEnd, index, dirtyCount - index - 1);
+        dirtyCount--;
+    }
+    
+    private void insertRange(int index, long start, long end)
+    {
+        if (dirtyCount == dirtyStart.length)
+        {
+            dirtyStart = Arrays.copyOf(dirtyStart, dirtyCount * 2);
+            dirtyEnd = Arrays.copyOf(dirtyEnd, dirtyCount * 2);
+        }
+        
+        System.arraycopy(dirtyStart, index, dirtyStart, index + 1, dirtyCount - index);
+        System.arraycopy(dirtyEnd, index, dirtyEnd, index + 1, dirtyCount - index);
+        dirtyStart[index] = start;
+        dirtyEnd[index] = end;
+        dirtyCount++;
     }
 }
@@ -0,0 +1,854 @@
+package no.stelar7.vulkan.engine.buffer;
+
+import no.stelar7.vulkan.engine.EngineUtils;
+import no.stelar7.vulkan.engine.renderer.DeviceFamily;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.vulkan.*;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Collects host to device copies from any thread, and submits them in batches from the render thread.
+ * <p>
+ * Every batch is one command buffer with a fence and a semaphore. The semaphore of the newest batch has to be waited on by the next graphics submit,
+ * so nothing reads the buffers before they are written. Older semaphores are waited on by the batch after them, so none is left signaled. The other way around, a batch waits on the read semaphore of the last graphics submit,
+ * so nothing is overwritten while a frame in flight still reads it. The fences are polled once a frame, and the futures of finished batches are completed from there.
+ * Because of that, the render thread must never wait on an upload future.
+ * <p>
+ * Buffers without a host copy of their own are written through a shared staging ring. The space a batch used in the ring is reclaimed when its fence is signaled,
+ * and writes larger than the free space are split up, waiting for earlier batches to finish in between.
+ */
+public class UploadManager
+{
+    // Pieces of a write start on this alignment in the ring
+    private static final long RING_ALIGNMENT = 256;
+    
+    // If less than this is left before the end of the ring, the next piece starts over at the front instead
+    private static final long MIN_RING_PIECE = 64 * 1024;
+    
+    private final ReentrantLock lock      = new ReentrantLock();
+    private final Condition     ringFreed = lock.newCondition();
+    
+    private VkDevice device;
+    private VkQueue  queue;
+    private long     commandPoolHandle;
+    
+    // Only this thread submits, other threads wait for it to free ring space. Unset means any thread may submit.
+    private volatile Thread submitThread;
+    
+    private Map<StagedBuffer, CompletableFuture<StagedBuffer>> pending = new LinkedHashMap<>();
+    
+    private Buffer stagingRing;
+    private long   ringPointer;
+    private long   ringHead;
+    private long   ringTail;
+    private long   ringUsed;
+    private long   pendingRingBytes;
+    private long   reservedLength;
+    
+    private List<RingCopy>                                     ringCopies = new ArrayList<>();
+    private Map<StagedBuffer, CompletableFuture<StagedBuffer>> writes     = new HashMap<>();
+    
+    // Signaled by the last graphics submit and not waited on by a batch yet
+    private long readSemaphore = VK_NULL_HANDLE;
+    
+    // Signaled by the newest batch and not waited on by a graphics submit yet
+    private long batchSemaphore = VK_NULL_HANDLE;
+    
+    private Deque<Batch> inFlight = new ArrayDeque<>();
+    private Deque<Batch> unused   = new ArrayDeque<>();
+    
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    
+    /**
+     * A command buffer that can be reused once its fence is signaled
+     */
+    private static class Batch
+    {
+        private VkCommandBuffer commandBuffer;
+        private long            fence;
+        private long            semaphore;
+        
+        // The ring is free up to ringEnd once the batch is done
+        private long ringEnd;
+        private long ringBytes;
+        
+        private List<CompletableFuture<StagedBuffer>> futures = new ArrayList<>();
+        private List<StagedBuffer>                    buffers = new ArrayList<>();
+    }
+    
+    /**
+     * A piece of a write, waiting in the ring to be copied to its buffer
+     */
+    private static class RingCopy
+    {
+        private StagedBuffer buffer;
+        private long         ringOffset;
+        private long         bufferOffset;
+        private long         size;
+        
+        // Only set on the last piece of a write
+        private CompletableFuture<StagedBuffer> future;
+    }
+    
+    /**
+     * @param queue       a queue from the transfer family of the device
+     * @param stagingRing a host-visible buffer that is only used by this manager, it must not be moved while the manager is in use
+     */
+    public UploadManager(DeviceFamily deviceFamily, VkQueue queue, Buffer stagingRing)
+    {
+        this.device = deviceFamily.getDevice();
+        this.queue = queue;
+        this.stagingRing = stagingRing;
+        this.ringPointer = stagingRing.getMemoryBlock().getMappedPointer();
+        
+        VkCommandPoolCreateInfo createInfo = VkCommandPoolCreateInfo.calloc()
+                                                                    .sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
+                                                                    .queueFamilyIndex(deviceFamily.getTransferQueueFamily())
+                                                                    .flags(VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT | VK_COMMAND_POOL_CREATE_TRANSIENT_BIT);
+        
+        LongBuffer handleHolder = memAllocLong(1);
+        EngineUtils.checkError(vkCreateCommandPool(device, createInfo, null, handleHolder));
+        commandPoolHandle = handleHolder.get(0);
+        
+        memFree(handleHolder);
+        createInfo.free();
+    }
+    
+    /**
+     * Sets the thread that flushes the manager, writes from any other thread wait for it when the ring is full
+     */
+    public void setSubmitThread(Thread submitThread)
+    {
+        this.submitThread = submitThread;
+    }
+    
+    /**
+     * Queues a copy of the host buffer into the device buffer. Uploading a buffer that is already queued returns the same future.
+     * Buffers without a host copy return the future of their last write.
+     *
+     * @return a future that is completed once the device buffer holds the data
+     */
+    public CompletableFuture<StagedBuffer> upload(StagedBuffer buffer)
+    {
+        if (buffer.isUnified())
+        {
+            buffer.setDirty(false);
+            return CompletableFuture.completedFuture(buffer);
+        }
+        
+        lock.lock();
+        try
+        {
+            if (!buffer.hasHostBuffer())
+            {
+                CompletableFuture<StagedBuffer> write = writes.get(buffer);
+                return write != null ? write : CompletableFuture.completedFuture(buffer);
+            }
+            
+            return pending.computeIfAbsent(buffer, b -> new CompletableFuture<>());
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Copies data into the staging ring, to be written to the device buffer with the next flush.
+     * The data can be reused as soon as this returns, but this blocks while the ring is full.
+     *
+     * @param offset  where in the device buffer the data goes
+     * @param address the host address of the data
+     * @param size    how many bytes to write
+     * @return a future that is completed once the device buffer holds the data
+     */
+    public CompletableFuture<StagedBuffer> write(StagedBuffer buffer, long offset, long address, long size)
+    {
+        return write(buffer, offset, null, address, size, false);
+    }
+    
+    /**
+     * Copies floats from an array into the staging ring, without any temporary buffer
+     *
+     * @param offset where in the device buffer the data goes (In bytes)
+     * @param start  the first float to write
+     * @param count  how many floats to write
+     * @see #write(StagedBuffer, long, long, long)
+     */
+    public CompletableFuture<StagedBuffer> write(StagedBuffer buffer, long offset, float[] data, int start, int count)
+    {
+        return write(buffer, offset, data, start, (long) count * Float.BYTES, false);
+    }
+    
+    /**
+     * Copies ints from an array into the staging ring, without any temporary buffer
+     *
+     * @param offset where in the device buffer the data goes (In bytes)
+     * @param start  the first int to write
+     * @param count  how many ints to write
+     * @see #write(StagedBuffer, long, long, long)
+     */
+    public CompletableFuture<StagedBuffer> write(StagedBuffer buffer, long offset, int[] data, int start, int count)
+    {
+        return write(buffer, offset, data, start, (long) count * Integer.BYTES, false);
+    }
+    
+    /**
+     * Copies ints from an array into the staging ring as 16 bit values, every int must fit in 16 bits
+     *
+     * @param offset where in the device buffer the data goes (In bytes)
+     * @param start  the first int to write
+     * @param count  how many ints to write
+     * @see #write(StagedBuffer, long, long, long)
+     */
+    public CompletableFuture<StagedBuffer> writeShorts(StagedBuffer buffer, long offset, int[] data, int start, int count)
+    {
+        return write(buffer, offset, data, start, (long) count * Short.BYTES, true);
+    }
+    
+    /**
+     * Copies ints from a host address into the staging ring as 16 bit values, every int must fit in 16 bits
+     *
+     * @param offset  where in the device buffer the data goes (In bytes)
+     * @param address the host address of the ints
+     * @param count   how many ints to write
+     * @see #write(StagedBuffer, long, long, long)
+     */
+    public CompletableFuture<StagedBuffer> writeShorts(StagedBuffer buffer, long offset, long address, int count)
+    {
+        return write(buffer, offset, null, address, (long) count * Short.BYTES, true);
+    }
+    
+    /**
+     * @param source the array to copy from, or null to copy from a host address
+     * @param start  the first element of the array, or the host address
+     * @param size   how many bytes to write to the device buffer
+     * @param narrow if ints are written as 16 bit values
+     */
+    private CompletableFuture<StagedBuffer> write(StagedBuffer buffer, long offset, Object source, long start, long size, boolean narrow)
+    {
+        CompletableFuture<StagedBuffer> future = new CompletableFuture<>();
+        if (size == 0)
+        {
+            future.complete(buffer);
+            return future;
+        }
+        
+        buffer.markDirty(offset, size);
+        
+        long written = 0;
+        while (written < size)
+        {
+            boolean full;
+            
+            lock.lock();
+            try
+            {
+                long ringOffset = reserveRing(size - written);
+                full = ringOffset == -1;
+                
+                if (full && !canSubmit())
+                {
+                    ringFreed.awaitUninterruptibly();
+                    continue;
+                }
+                
+                if (!full)
+                {
+                    copyPiece(source, start, written, ringPointer + ringOffset, reservedLength, narrow);
+                    
+                    RingCopy copy = new RingCopy();
+                    copy.buffer = buffer;
+                    copy.ringOffset = ringOffset;
+                    copy.bufferOffset = offset + written;
+                    copy.size = reservedLength;
+                    
+                    written += reservedLength;
+                    if (written == size)
+                    {
+                        copy.future = future;
+                        writes.put(buffer, future);
+                    }
+                    
+                    ringCopies.add(copy);
+                }
+            } finally
+            {
+                lock.unlock();
+            }
+            
+            if (full)
+            {
+                // The next graphics submit waits on this batch through the batches after it, the wait here only frees ring space
+                submit();
+                waitOldest();
+                poll();
+            }
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Records every queued copy into one command buffer and submits it, without waiting for it to finish.
+     * Must only be called from the thread that submits to the queue.
+     *
+     * @return the semaphore the next graphics submit has to wait on, or VK_NULL_HANDLE if nothing was submitted since the last flush
+     */
+    public long flush()
+    {
+        submit();
+        
+        lock.lock();
+        try
+        {
+            long semaphore = batchSemaphore;
+            batchSemaphore = VK_NULL_HANDLE;
+            return semaphore;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Completes the futures of every batch the device is done with, and recycles their command buffers
+     */
+    public void poll()
+    {
+        while (true)
+        {
+            Batch batch;
+            
+            lock.lock();
+            try
+            {
+                batch = inFlight.peek();
+                if (batch == null || vkGetFenceStatus(device, batch.fence) != VK_SUCCESS)
+                {
+                    return;
+                }
+                
+                inFlight.pop();
+            } finally
+            {
+                lock.unlock();
+            }
+            
+            retire(batch);
+        }
+    }
+    
+    /**
+     * Blocks until every submitted batch is done, queued copies that have not been flushed are left alone
+     */
+    public void waitIdle()
+    {
+        lock.lock();
+        try
+        {
+            for (Batch batch : inFlight)
+            {
+                EngineUtils.checkError(vkWaitForFences(device, batch.fence, true, Long.MAX_VALUE));
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+        
+        poll();
+    }
+    
+    /**
+     * Gets the amount of copies waiting for the next flush
+     */
+    public int getPendingCount()
+    {
+        lock.lock();
+        try
+        {
+            return pending.size() + ringCopies.size();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Sets the semaphore signaled by the last graphics submit, the next batch waits on it before it copies anything.
+     * The semaphore that was set before must have been taken with takeReadSemaphore.
+     */
+    public void setReadSemaphore(long semaphore)
+    {
+        lock.lock();
+        try
+        {
+            readSemaphore = semaphore;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Takes the read semaphore if no batch has waited on it yet, the caller has to wait on it instead so it is unsignaled before it is signaled again
+     *
+     * @return the read semaphore, or VK_NULL_HANDLE if a batch waited on it
+     */
+    public long takeReadSemaphore()
+    {
+        lock.lock();
+        try
+        {
+            long semaphore = readSemaphore;
+            readSemaphore = VK_NULL_HANDLE;
+            return semaphore;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Gets how many bytes have been copied to device buffers in total, sample it once a frame to get the bytes per frame
+     */
+    public long getUploadedBytes()
+    {
+        return uploadedBytes.get();
+    }
+    
+    /**
+     * Gets how many bytes of the staging ring are written but not yet copied out
+     */
+    public long getRingUsage()
+    {
+        lock.lock();
+        try
+        {
+            return ringUsed;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Destroys every batch, the device must be idle. Copies that never got submitted have their futures cancelled.
+     * The staging ring is not freed, it belongs to the caller.
+     */
+    public void free()
+    {
+        waitIdle();
+        
+        lock.lock();
+        try
+        {
+            pending.values().forEach(future -> future.cancel(false));
+            pending.clear();
+            
+            ringCopies.stream().filter(copy -> copy.future != null).forEach(copy -> copy.future.cancel(false));
+            ringCopies.clear();
+            writes.clear();
+            
+            for (Batch batch : unused)
+            {
+                vkDestroyFence(device, batch.fence, null);
+                vkDestroySemaphore(device, batch.semaphore, null);
+            }
+            unused.clear();
+            
+            vkDestroyCommandPool(device, commandPoolHandle, null);
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Copies the piece of a write that starts the given amount of bytes into the device data
+     */
+    private static void copyPiece(Object source, long start, long written, long target, long length, boolean narrow)
+    {
+        if (source instanceof float[])
+        {
+            float[] data  = (float[]) source;
+            int     first = (int) (start + written / Float.BYTES);
+            for (int i = 0; i < length / Float.BYTES; i++)
+            {
+                memPutFloat(target + i * Float.BYTES, data[first + i]);
+            }
+        } else if (source instanceof int[] && narrow)
+        {
+            int[] data  = (int[]) source;
+            int   first = (int) (start + written / Short.BYTES);
+            for (int i = 0; i < length / Short.BYTES; i++)
+            {
+                memPutShort(target + i * Short.BYTES, (short) data[first + i]);
+            }
+        } else if (source instanceof int[])
+        {
+            int[] data  = (int[]) source;
+            int   first = (int) (start + written / Integer.BYTES);
+            for (int i = 0; i < length / Integer.BYTES; i++)
+            {
+                memPutInt(target + i * Integer.BYTES, data[first + i]);
+            }
+        } else if (narrow)
+        {
+            long first = start + written / Short.BYTES * Integer.BYTES;
+            for (int i = 0; i < length / Short.BYTES; i++)
+            {
+                memPutShort(target + i * Short.BYTES, (short) memGetInt(first + i * Integer.BYTES));
+            }
+        } else
+        {
+            memCopy(start + written, target, (int) length);
+        }
+    }
+    
+    private boolean canSubmit()
+    {
+        return submitThread == null || submitThread == Thread.currentThread();
+    }
+    
+    /**
+     * Reserves the next piece of the ring, the length of the piece is left in reservedLength
+     *
+     * @param wanted the most that is needed
+     * @return the offset of the piece, or -1 if the ring is full
+     */
+    private long reserveRing(long wanted)
+    {
+        long size = stagingRing.getSize();
+        if (ringUsed == 0)
+        {
+            // Nothing is in use, so start over at the front to have the whole ring in one piece
+            ringHead = 0;
+            ringTail = 0;
+        }
+        
+        long start     = align(ringHead);
+        long available = 0;
+        
+        if (ringUsed == 0 || ringHead > ringTail)
+        {
+            available = size - start;
+            if (available < Math.min(wanted, MIN_RING_PIECE) && ringTail > 0)
+            {
+                // The end of the ring is counted as used until the batch before it is done
+                long skipped = size - ringHead;
+                pendingRingBytes += skipped;
+                ringUsed += skipped;
+                
+                ringHead = 0;
+                start = 0;
+                available = ringTail;
+            }
+        } else if (ringHead < ringTail)
+        {
+            available = ringTail - start;
+        }
+        
+        // Pieces are kept to whole floats and ints, so array writes never split a value
+        available &= ~3L;
+        if (available <= 0)
+        {
+            return -1;
+        }
+        
+        long length   = Math.min(wanted, available);
+        long consumed = start - ringHead + length;
+        
+        pendingRingBytes += consumed;
+        ringUsed += consumed;
+        ringHead = (start + length) % size;
+        
+        reservedLength = length;
+        return start;
+    }
+    
+    private static long align(long offset)
+    {
+        return (offset + RING_ALIGNMENT - 1) & ~(RING_ALIGNMENT - 1);
+    }
+    
+    /**
+     * Waits for the oldest batch in flight, if there is one
+     */
+    private void waitOldest()
+    {
+        lock.lock();
+        try
+        {
+            Batch batch = inFlight.peek();
+            if (batch != null)
+            {
+                EngineUtils.checkError(vkWaitForFences(device, batch.fence, true, Long.MAX_VALUE));
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private void submit()
+    {
+        Batch          batch;
+        List<RingCopy> copies;
+        long           waitSemaphore;
+        long           previousSemaphore;
+        
+        lock.lock();
+        try
+        {
+            if (pending.isEmpty() && ringCopies.isEmpty())
+            {
+                return;
+            }
+            
+            batch = takeUnusedBatch();
+            waitSemaphore = readSemaphore;
+            readSemaphore = VK_NULL_HANDLE;
+            previousSemaphore = batchSemaphore;
+            batchSemaphore = batch.semaphore;
+            for (Map.Entry<StagedBuffer, CompletableFuture<StagedBuffer>> entry : pending.entrySet())
+            {
+                batch.buffers.add(entry.getKey());
+                batch.futures.add(entry.getValue());
+            }
+            pending.clear();
+            
+            copies = ringCopies;
+            ringCopies = new ArrayList<>();
+            
+            batch.ringEnd = ringHead;
+            batch.ringBytes = pendingRingBytes;
+            pendingRingBytes = 0;
+        } finally
+        {
+            lock.unlock();
+        }
+        
+        VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.calloc()
+                                                                     .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+                                                                     .flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+        
+        EngineUtils.checkError(vkBeginCommandBuffer(batch.commandBuffer, beginInfo));
+        beginInfo.free();
+        
+        long                bytes      = 0;
+        VkBufferCopy.Buffer bufferCopy = VkBufferCopy.calloc(16);
+        for (StagedBuffer buffer : batch.buffers)
+        {
+            Buffer hostBuffer   = buffer.getHostBuffer();
+            Buffer deviceBuffer = buffer.getDeviceBuffer();
+            
+            // The ranges are taken and cleared in one step, so anything marked after this is left for the next upload
+            long[] ranges  = buffer.takeDirtyRanges();
+            int    regions = ranges.length / 2;
+            if (bufferCopy.capacity() < regions)
+            {
+                bufferCopy.free();
+                bufferCopy = VkBufferCopy.calloc(regions);
+            }
+            
+            // One region per changed range, a buffer that did not change is not copied at all
+            for (int i = 0; i < regions; i++)
+            {
+                long offset = ranges[i * 2];
+                long size   = Math.min(ranges[i * 2 + 1], deviceBuffer.getSize() - offset);
+                
+                bufferCopy.get(i)
+                          .srcOffset(hostBuffer.getOffset() + offset)
+                          .dstOffset(deviceBuffer.getOffset() + offset)
+                          .size(size);
+                bytes += size;
+            }
+            
+            if (regions > 0)
+            {
+                bufferCopy.limit(regions);
+                vkCmdCopyBuffer(batch.commandBuffer, hostBuffer.getBufferHandle(), deviceBuffer.getBufferHandle(), bufferCopy);
+                bufferCopy.clear();
+            }
+        }
+        
+        for (RingCopy copy : copies)
+        {
+            Buffer deviceBuffer = copy.buffer.getDeviceBuffer();
+            
+            bufferCopy.get(0)
+                      .srcOffset(stagingRing.getOffset() + copy.ringOffset)
+                      .dstOffset(deviceBuffer.getOffset() + copy.bufferOffset)
+                      .size(copy.size);
+            bytes += copy.size;
+            
+            bufferCopy.limit(1);
+            vkCmdCopyBuffer(batch.commandBuffer, stagingRing.getBufferHandle(), deviceBuffer.getBufferHandle(), bufferCopy);
+            bufferCopy.clear();
+            
+            // Only the range of this piece, other writes to the buffer may still be on their way into the ring
+            copy.buffer.clearDirty(copy.bufferOffset, copy.size);
+            
+            if (copy.future != null)
+            {
+                batch.buffers.add(copy.buffer);
+                batch.futures.add(copy.future);
+            }
+        }
+        bufferCopy.free();
+        uploadedBytes.addAndGet(bytes);
+        
+        EngineUtils.checkError(vkEndCommandBuffer(batch.commandBuffer));
+        
+        PointerBuffer commandBuffers  = memAllocPointer(1).put(0, batch.commandBuffer);
+        LongBuffer    signalSemaphore = memAllocLong(1).put(0, batch.semaphore);
+        LongBuffer    waitSemaphores  = memAllocLong(2);
+        IntBuffer     waitMask        = memAllocInt(2);
+        VkSubmitInfo submitInfo = VkSubmitInfo.calloc()
+                                              .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+                                              .pCommandBuffers(commandBuffers)
+                                              .pSignalSemaphores(signalSemaphore);
+        
+        // The copies only start once the last frame is done reading, earlier frames are covered by the same wait
+        int waitCount = 0;
+        if (waitSemaphore != VK_NULL_HANDLE)
+        {
+            waitSemaphores.put(waitCount, waitSemaphore);
+            waitMask.put(waitCount, VK_PIPELINE_STAGE_TRANSFER_BIT);
+            waitCount++;
+        }
+        
+        // The previous batch is earlier on the same queue, so the semaphore of this one covers it for the graphics submit
+        if (previousSemaphore != VK_NULL_HANDLE)
+        {
+            waitSemaphores.put(waitCount, previousSemaphore);
+            waitMask.put(waitCount, VK_PIPELINE_STAGE_TRANSFER_BIT);
+            waitCount++;
+        }
+        
+        if (waitCount > 0)
+        {
+            submitInfo.waitSemaphoreCount(waitCount)
+                      .pWaitSemaphores(waitSemaphores)
+                      .pWaitDstStageMask(waitMask);
+        }
+        
+        EngineUtils.checkError(vkQueueSubmit(queue, submitInfo, batch.fence));
+        
+        submitInfo.free();
+        memFree(waitMask);
+        memFree(waitSemaphores);
+        memFree(signalSemaphore);
+        memFree(commandBuffers);
+        
+        lock.lock();
+        try
+        {
+            inFlight.add(batch);
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Gets a batch that can be recorded, must be called with the lock held.
+     * The batch whose semaphore no graphics submit has waited on yet is skipped, its semaphore is still signaled.
+     */
+    private Batch takeUnusedBatch()
+    {
+        Iterator<Batch> iterator = unused.iterator();
+        while (iterator.hasNext())
+        {
+            Batch batch = iterator.next();
+            if (batch.semaphore != batchSemaphore)
+            {
+                iterator.remove();
+                return batch;
+            }
+        }
+        
+        return createBatch();
+    }
+    
+    private void retire(Batch batch)
+    {
+        EngineUtils.checkError(vkResetFences(device, batch.fence));
+        
+        List<StagedBuffer>                    buffers = new ArrayList<>(batch.buffers);
+        List<CompletableFuture<StagedBuffer>> futures = new ArrayList<>(batch.futures);
+        batch.buffers.clear();
+        batch.futures.clear();
+        
+        lock.lock();
+        try
+        {
+            if (batch.ringBytes > 0)
+            {
+                ringTail = batch.ringEnd;
+                ringUsed -= batch.ringBytes;
+                batch.ringBytes = 0;
+                ringFreed.signalAll();
+            }
+            
+            for (int i = 0; i < buffers.size(); i++)
+            {
+                writes.remove(buffers.get(i), futures.get(i));
+            }
+            
+            unused.push(batch);
+        } finally
+        {
+            lock.unlock();
+        }
+        
+        // Completed outside the lock, so callbacks are free to queue new uploads
+        for (int i = 0; i < futures.size(); i++)
+        {
+            futures.get(i).complete(buffers.get(i));
+        }
+    }
+    
+    private Batch createBatch()
+    {
+        Batch batch = new Batch();
+        
+        VkCommandBufferAllocateInfo allocateInfo = VkCommandBufferAllocateInfo.calloc()
+                                                                              .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+                                                                              .commandPool(commandPoolHandle)
+                                                                              .level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
+                                                                              .commandBufferCount(1);
+        
+        PointerBuffer commandHolder = memAllocPointer(1);
+        EngineUtils.checkError(vkAllocateCommandBuffers(device, allocateInfo, commandHolder));
+        batch.commandBuffer = new VkCommandBuffer(commandHolder.get(0), device);
+        
+        memFree(commandHolder);
+        allocateInfo.free();
+        
+        VkFenceCreateInfo     fenceInfo     = VkFenceCreateInfo.calloc().sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+        VkSemaphoreCreateInfo semaphoreInfo = VkSemaphoreCreateInfo.calloc().sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
+        LongBuffer            handleHolder  = memAllocLong(1);
+        
+        EngineUtils.checkError(vkCreateFence(device, fenceInfo, null, handleHolder));
+        batch.fence = handleHolder.get(0);
+        
+        EngineUtils.checkError(vkCreateSemaphore(device, semaphoreInfo, null, handleHolder));
+        batch.semaphore = handleHolder.get(0);
+        
+        memFree(handleHolder);
+        semaphoreInfo.free();
+        fenceInfo.free();
+        
+        return batch;
+    }
+}
@@ -1,6 +1,5 @@
 package no.stelar7.vulkan.engine.game;
 
-import no.stelar7.vulkan.engine.buffer.StagedBuffer;
 import no.stelar7.vulkan.engine.game.objects.*;
 import no.stelar7.vulkan.engine.renderer.*;
 import org.joml.*;
@@ -46,7 +45,7 @@ public class TestGame extends Game
     public void destroy()
     {
         
-        model.destroy(renderer.getDeviceFamily().getDevice());
+        model.destroy();
         clear.destroy();
     }
     
@@ -56,11 +55,9 @@ public class TestGame extends Game
         renderer.setClearColor(clear);
         
         
-        GameObject   item         = new GameObject();
-        StagedBuffer vertexBuffer = renderer.createVertexBuffer(pos, color);
-        StagedBuffer indexBuffer  = renderer.createIndexBuffer(indecies);
+        GameObject item = new GameObject();
         
-        model = new Model(vertexBuffer, indexBuffer);
+        model = renderer.createModel(pos, color, indecies);
         item.setModel(model);
         gameObjects.add(item);
         
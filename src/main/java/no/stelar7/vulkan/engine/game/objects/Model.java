@@ -1,24 +1,69 @@
 package no.stelar7.vulkan.engine.game.objects;
 
-import no.stelar7.vulkan.engine.buffer.StagedBuffer;
-import org.lwjgl.vulkan.*;
+import no.stelar7.vulkan.engine.buffer.*;
 
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A mesh in a page of a geometry pool, drawn with vkCmdDrawIndexed(indexCount, 1, firstIndex, vertexOffset)
+ * after the buffer of the page is bound as both vertex and index buffer
+ */
 public class Model
 {
-    private StagedBuffer vertexBuffer;
-    private StagedBuffer indexBuffer;
-    private int          indexCount;
+    private GeometryPool pool;
+    private StagedBuffer buffer;
+    private long         vertexHandle;
+    private long         indexHandle;
+    
+    private int vertexOffset;
+    private int firstIndex;
+    private int indexCount;
+    private int indexType;
+    
+    public Model(GeometryPool pool, StagedBuffer buffer, long vertexHandle, long indexHandle, int vertexOffset, int firstIndex, int indexCount, int indexType)
+    {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.vertexHandle = vertexHandle;
+        this.indexHandle = indexHandle;
+        this.vertexOffset = vertexOffset;
+        this.firstIndex = firstIndex;
+        this.indexCount = indexCount;
+        this.indexType = indexType;
+    }
     
-    public Model(StagedBuffer vertexBuffer, StagedBuffer indexBuffer)
+    /**
+     * Gets the buffer that holds both the vertices and indices, shared with every other model in the same page
+     */
+    public StagedBuffer getBuffer()
     {
-        this.vertexBuffer = vertexBuffer;
-        this.indexBuffer = indexBuffer;
-        indexCount = (int) (indexBuffer.getHostBuffer().getSize() / Integer.BYTES);
+        return buffer;
     }
     
-    public StagedBuffer getVertexBuffer()
+    public long getVertexHandle()
     {
-        return vertexBuffer;
+        return vertexHandle;
+    }
+    
+    public long getIndexHandle()
+    {
+        return indexHandle;
+    }
+    
+    /**
+     * Gets the first vertex of the mesh, counted in vertices from the start of the buffer
+     */
+    public int getVertexOffset()
+    {
+        return vertexOffset;
+    }
+    
+    /**
+     * Gets the first index of the mesh, counted in indices from the start of the buffer
+     */
+    public int getFirstIndex()
+    {
+        return firstIndex;
     }
     
     public int getIndexCount()
@@ -26,14 +71,27 @@ public class Model
         return indexCount;
     }
     
-    public void destroy(VkDevice device)
+    /**
+     * Gets the VkIndexType to bind the index buffer with
+     */
+    public int getIndexType()
+    {
+        return indexType;
+    }
+    
+    /**
+     * Gets the size of one index (In bytes)
+     */
+    public int getIndexSize()
     {
-        vertexBuffer.free(device);
-        indexBuffer.free(device);
+        return indexType == VK_INDEX_TYPE_UINT16 ? Short.BYTES : Integer.BYTES;
     }
     
-    public StagedBuffer getIndexBuffer()
+    /**
+     * Gives the ranges of the model back to its pool once the frames that could draw it are done, nothing may draw the model after this
+     */
+    public void destroy()
     {
-        return indexBuffer;
+        pool.free(this);
     }
 }
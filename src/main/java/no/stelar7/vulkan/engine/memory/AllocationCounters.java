@@ -0,0 +1,105 @@
+package no.stelar7.vulkan.engine.memory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Running totals of allocator traffic per memory type, cheap enough to update on every call from any thread
+ */
+class AllocationCounters
+{
+    // Allocation sizes are counted per power of two, bucket n holds sizes in (2^(n-1), 2^n]
+    static final int SIZE_BUCKETS = 41;
+    
+    private final AtomicLongArray allocationCount    = new AtomicLongArray(VK_MAX_MEMORY_TYPES);
+    private final AtomicLongArray allocationNanos    = new AtomicLongArray(VK_MAX_MEMORY_TYPES);
+    private final AtomicLongArray maxAllocationNanos = new AtomicLongArray(VK_MAX_MEMORY_TYPES);
+    private final AtomicLongArray cacheHitCount      = new AtomicLongArray(VK_MAX_MEMORY_TYPES);
+    private final AtomicLongArray failedCount        = new AtomicLongArray(VK_MAX_MEMORY_TYPES);
+    private final AtomicLongArray freeCount          = new AtomicLongArray(VK_MAX_MEMORY_TYPES);
+    private final AtomicLongArray freeNanos          = new AtomicLongArray(VK_MAX_MEMORY_TYPES);
+    private final AtomicLongArray maxFreeNanos       = new AtomicLongArray(VK_MAX_MEMORY_TYPES);
+    private final AtomicLongArray sizeHistogram      = new AtomicLongArray(VK_MAX_MEMORY_TYPES * SIZE_BUCKETS);
+    
+    void recordAllocation(int memoryIndex, long size, long nanos, boolean cacheHit)
+    {
+        allocationCount.incrementAndGet(memoryIndex);
+        allocationNanos.addAndGet(memoryIndex, nanos);
+        maxAllocationNanos.accumulateAndGet(memoryIndex, nanos, Math::max);
+        sizeHistogram.incrementAndGet(memoryIndex * SIZE_BUCKETS + getSizeBucket(size));
+        
+        if (cacheHit)
+        {
+            cacheHitCount.incrementAndGet(memoryIndex);
+        }
+    }
+    
+    void recordFailure(int memoryIndex)
+    {
+        failedCount.incrementAndGet(memoryIndex);
+    }
+    
+    void recordFree(int memoryIndex, long nanos)
+    {
+        freeCount.incrementAndGet(memoryIndex);
+        freeNanos.addAndGet(memoryIndex, nanos);
+        maxFreeNanos.accumulateAndGet(memoryIndex, nanos, Math::max);
+    }
+    
+    long getAllocationCount(int memoryIndex)
+    {
+        return allocationCount.get(memoryIndex);
+    }
+    
+    long getAllocationNanos(int memoryIndex)
+    {
+        return allocationNanos.get(memoryIndex);
+    }
+    
+    long getMaxAllocationNanos(int memoryIndex)
+    {
+        return maxAllocationNanos.get(memoryIndex);
+    }
+    
+    long getCacheHitCount(int memoryIndex)
+    {
+        return cacheHitCount.get(memoryIndex);
+    }
+    
+    long getFailedCount(int memoryIndex)
+    {
+        return failedCount.get(memoryIndex);
+    }
+    
+    long getFreeCount(int memoryIndex)
+    {
+        return freeCount.get(memoryIndex);
+    }
+    
+    long getFreeNanos(int memoryIndex)
+    {
+        return freeNanos.get(memoryIndex);
+    }
+    
+    long getMaxFreeNanos(int memoryIndex)
+    {
+        return maxFreeNanos.get(memoryIndex);
+    }
+    
+    long[] getSizeHistogram(int memoryIndex)
+    {
+        long[] histogram = new long[SIZE_BUCKETS];
+        for (int i = 0; i < SIZE_BUCKETS; i++)
+        {
+            histogram[i] = sizeHistogram.get(memoryIndex * SIZE_BUCKETS + i);
+        }
+        return histogram;
+    }
+    
+    private static int getSizeBucket(long size)
+    {
+        int bucket = 64 - Long.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.min(bucket, SIZE_BUCKETS - 1);
+    }
+}
@@ -0,0 +1,19 @@
+package no.stelar7.vulkan.engine.memory;
+
+public enum AllocationStrategy
+{
+    /**
+     * Two-level segregated fit, good for mixed allocation sizes
+     */
+    TLSF,
+    
+    /**
+     * Power-of-two buddy system, good for heaps dominated by power-of-two sizes. Small allocations stay in the buddy chunks too
+     */
+    BUDDY,
+    
+    /**
+     * Equal power-of-two slots found through a bitmap, used for the small allocations of memory types that are not BUDDY
+     */
+    SLAB
+}
@@ -0,0 +1,324 @@
+package no.stelar7.vulkan.engine.memory;
+
+import java.util.Arrays;
+
+/**
+ * A chunk handed out as variable sized blocks.
+ * <p>
+ * The blocks always tile the whole chunk and are linked in address order, how free blocks are found is up to the implementation.
+ * Block metadata lives in parallel primitive arrays indexed by node, and nodes dropped by a merge are reused by the next split,
+ * so allocating and freeing creates no garbage once the arrays have grown to fit.
+ */
+public abstract class BlockMemoryChunk extends MemoryChunk
+{
+    protected static final int NIL = -1;
+    
+    private static final int INITIAL_NODE_CAPACITY = 16;
+    
+    private int firstBlock = NIL;
+    
+    // Block metadata, one slot per node
+    private long[]    offsets        = new long[INITIAL_NODE_CAPACITY];
+    private long[]    sizes          = new long[INITIAL_NODE_CAPACITY];
+    private long[]    requestedSizes = new long[INITIAL_NODE_CAPACITY];
+    private long[]    alignments     = new long[INITIAL_NODE_CAPACITY];
+    private int[]     generations    = new int[INITIAL_NODE_CAPACITY];
+    private boolean[] freeFlags      = new boolean[INITIAL_NODE_CAPACITY];
+    private Object[]  owners         = new Object[INITIAL_NODE_CAPACITY];
+    
+    // Neighbours in address order, and in the free list the node is linked into (only valid while free)
+    private int[] prevPhysical = new int[INITIAL_NODE_CAPACITY];
+    private int[] nextPhysical = new int[INITIAL_NODE_CAPACITY];
+    private int[] prevFree     = new int[INITIAL_NODE_CAPACITY];
+    private int[] nextFree     = new int[INITIAL_NODE_CAPACITY];
+    
+    // Nodes not in use are kept in a stack linked through nextFree
+    private int unusedNodes = NIL;
+    private int nodeCount;
+    
+    
+    protected BlockMemoryChunk(DeviceMemoryBackend backend, int memoryIndex, long size)
+    {
+        super(backend, memoryIndex, size);
+    }
+    
+    /**
+     * @return the node of the block, taken out of the free lists, or NIL if it does not fit
+     */
+    protected abstract int allocateBlock(long requestSize, long alignment);
+    
+    /**
+     * Hands a node that was returned by allocateBlock back to the free lists
+     */
+    protected abstract void deallocateBlock(int node);
+    
+    @Override
+    public long allocateHandle(long requestSize, long alignment)
+    {
+        if (requestSize <= 0 || requestSize > getFreeSize())
+        {
+            return NO_HANDLE;
+        }
+        
+        long align = Math.max(alignment, 1);
+        int  node  = allocateBlock(requestSize, align);
+        if (node == NIL)
+        {
+            return NO_HANDLE;
+        }
+        
+        requestedSizes[node] = requestSize;
+        alignments[node] = align;
+        addUsedSpace(requestSize, 1);
+        
+        return handleOf(node);
+    }
+    
+    @Override
+    public void deallocate(long handle)
+    {
+        if (!isAllocated(handle))
+        {
+            return;
+        }
+        
+        int node = nodeOf(handle);
+        addUsedSpace(-requestedSizes[node], -1);
+        
+        generations[node] = (generations[node] + 1) & GENERATION_MASK;
+        owners[node] = null;
+        deallocateBlock(node);
+    }
+    
+    @Override
+    long reissue(long handle)
+    {
+        int node = nodeOf(handle);
+        generations[node] = (generations[node] + 1) & GENERATION_MASK;
+        owners[node] = null;
+        return handleOf(node);
+    }
+    
+    @Override
+    public boolean isAllocated(long handle)
+    {
+        int node = nodeOf(handle);
+        return node >= 0 && node < nodeCount && generations[node] == generationOf(handle) && !freeFlags[node];
+    }
+    
+    @Override
+    public long getOffset(long handle)
+    {
+        return offsets[nodeOf(handle)];
+    }
+    
+    @Override
+    public long getSize(long handle)
+    {
+        return sizes[nodeOf(handle)];
+    }
+    
+    @Override
+    public long getRequestedSize(long handle)
+    {
+        return requestedSizes[nodeOf(handle)];
+    }
+    
+    @Override
+    public long getAlignment(long handle)
+    {
+        return alignments[nodeOf(handle)];
+    }
+    
+    @Override
+    public Object getOwner(long handle)
+    {
+        return isAllocated(handle) ? owners[nodeOf(handle)] : null;
+    }
+    
+    @Override
+    public void setOwner(long handle, Object owner)
+    {
+        if (isAllocated(handle))
+        {
+            owners[nodeOf(handle)] = owner;
+        }
+    }
+    
+    long handleOf(int node)
+    {
+        return ((long) generations[node] << 32) | node;
+    }
+    
+    /**
+     * Gets the node at offset 0, the rest of the chunk can be walked from here in address order
+     */
+    int getFirstBlock()
+    {
+        return firstBlock;
+    }
+    
+    protected long getOffset(int node)
+    {
+        return offsets[node];
+    }
+    
+    protected long getSize(int node)
+    {
+        return sizes[node];
+    }
+    
+    protected boolean isFree(int node)
+    {
+        return freeFlags[node];
+    }
+    
+    protected int getPrevPhysical(int node)
+    {
+        return prevPhysical[node];
+    }
+    
+    protected int getNextPhysical(int node)
+    {
+        return nextPhysical[node];
+    }
+    
+    protected int getPrevFree(int node)
+    {
+        return prevFree[node];
+    }
+    
+    protected void setPrevFree(int node, int prev)
+    {
+        prevFree[node] = prev;
+    }
+    
+    protected int getNextFree(int node)
+    {
+        return nextFree[node];
+    }
+    
+    protected void setNextFree(int node, int next)
+    {
+        nextFree[node] = next;
+    }
+    
+    /**
+     * Creates the node spanning the whole chunk, this should be handed to the free lists by the implementation
+     */
+    protected int createRootBlock()
+    {
+        int node = createNode(0, getSize());
+        firstBlock = node;
+        return node;
+    }
+    
+    /**
+     * Must be called when a node is linked into a free list
+     */
+    protected void markFree(int node)
+    {
+        addFreeSpace(sizes[node], 1);
+        freeFlags[node] = true;
+    }
+    
+    /**
+     * Must be called when a node is unlinked from a free list
+     */
+    protected void markTaken(int node)
+    {
+        addFreeSpace(-sizes[node], -1);
+        freeFlags[node] = false;
+    }
+    
+    /**
+     * Splits the node at the offset, returning the upper part
+     */
+    protected int split(int node, long at)
+    {
+        int rest = createNode(offsets[node] + at, sizes[node] - at);
+        prevPhysical[rest] = node;
+        nextPhysical[rest] = nextPhysical[node];
+        
+        if (nextPhysical[node] != NIL)
+        {
+            prevPhysical[nextPhysical[node]] = rest;
+        }
+        
+        nextPhysical[node] = rest;
+        sizes[node] = at;
+        
+        return rest;
+    }
+    
+    /**
+     * Merges the upper node into the lower node, returning the lower node. The upper node is reused by later splits.
+     */
+    protected int absorb(int lower, int upper)
+    {
+        sizes[lower] += sizes[upper];
+        nextPhysical[lower] = nextPhysical[upper];
+        
+        if (nextPhysical[upper] != NIL)
+        {
+            prevPhysical[nextPhysical[upper]] = lower;
+        }
+        
+        // Outstanding handles to the upper node must stop matching
+        generations[upper] = (generations[upper] + 1) & GENERATION_MASK;
+        prevPhysical[upper] = NIL;
+        nextFree[upper] = unusedNodes;
+        unusedNodes = upper;
+        
+        return lower;
+    }
+    
+    private int createNode(long offset, long size)
+    {
+        int node = unusedNodes;
+        if (node != NIL)
+        {
+            unusedNodes = nextFree[node];
+        } else
+        {
+            if (nodeCount == offsets.length)
+            {
+                growNodes(nodeCount * 2);
+            }
+            node = nodeCount++;
+        }
+        
+        offsets[node] = offset;
+        sizes[node] = size;
+        requestedSizes[node] = 0;
+        alignments[node] = 0;
+        freeFlags[node] = false;
+        owners[node] = null;
+        prevPhysical[node] = NIL;
+        nextPhysical[node] = NIL;
+        prevFree[node] = NIL;
+        nextFree[node] = NIL;
+        
+        return node;
+    }
+    
+    private void growNodes(int capacity)
+    {
+        offsets = Arrays.copyOf(offsets, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        requestedSizes = Arrays.copyOf(requestedSizes, capacity);
+        alignments = Arrays.copyOf(alignments, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+        freeFlags = Arrays.copyOf(freeFlags, capacity);
+        owners = Arrays.copyOf(owners, capacity);
+        prevPhysical = Arrays.copyOf(prevPhysical, capacity);
+        nextPhysical = Arrays.copyOf(nextPhysical, capacity);
+        prevFree = Arrays.copyOf(prevFree, capacity);
+        nextFree = Arrays.copyOf(nextFree, capacity);
+    }
+    
+    protected static long alignUp(long value, long alignment)
+    {
+        return ((value + alignment - 1) / alignment) * alignment;
+    }
+}
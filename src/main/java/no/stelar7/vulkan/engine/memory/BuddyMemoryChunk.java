@@ -0,0 +1,165 @@
+package no.stelar7.vulkan.engine.memory;
+
+import java.util.Arrays;
+
+
+/**
+ * A chunk sub-allocated with a binary buddy system.
+ * <p>
+ * Every block is a power of two in size and is placed at a multiple of its own size, so it is always aligned to any smaller power of two.
+ * Requests are rounded up to the next order, which trades internal fragmentation for splits and merges bounded by the number of orders.
+ */
+public class BuddyMemoryChunk extends BlockMemoryChunk
+{
+    // 256 bytes, matches the largest minimum uniform buffer offset alignment we have seen
+    private static final int MIN_ORDER = 8;
+    
+    private int   maxOrder;
+    private long  orderBitmap;
+    private int[] freeBlocks = new int[Long.SIZE];
+    
+    public BuddyMemoryChunk(DeviceMemoryBackend backend, int memoryIndex, long size)
+    {
+        super(backend, memoryIndex, size);
+        
+        if (Long.bitCount(size) != 1 || size < (1L << MIN_ORDER))
+        {
+            throw new IllegalArgumentException("Buddy chunks must be a power of two of at least " + (1L << MIN_ORDER) + " bytes, got " + size);
+        }
+        
+        maxOrder = orderOf(size);
+        Arrays.fill(freeBlocks, NIL);
+        insertFreeBlock(createRootBlock());
+    }
+    
+    @Override
+    public AllocationStrategy getStrategy()
+    {
+        return AllocationStrategy.BUDDY;
+    }
+    
+    @Override
+    public long getLargestFreeBlock()
+    {
+        if (orderBitmap == 0)
+        {
+            return 0;
+        }
+        
+        return 1L << (63 - Long.numberOfLeadingZeros(orderBitmap));
+    }
+    
+    @Override
+    protected int allocateBlock(long requestSize, long alignment)
+    {
+        int order = Math.max(orderOf(requestSize), orderOf(alignment));
+        if (order > maxOrder)
+        {
+            return NIL;
+        }
+        
+        long available = orderBitmap & (-1L << order);
+        if (available == 0)
+        {
+            return NIL;
+        }
+        
+        int current = Long.numberOfTrailingZeros(available);
+        int node    = freeBlocks[current];
+        removeFreeBlock(node);
+        
+        // Split down to the requested order, handing the upper halves back
+        while (current > order)
+        {
+            current--;
+            insertFreeBlock(split(node, 1L << current));
+        }
+        
+        return node;
+    }
+    
+    @Override
+    protected void deallocateBlock(int node)
+    {
+        int order = orderOf(getSize(node));
+        
+        while (order < maxOrder)
+        {
+            long    buddyOffset  = getOffset(node) ^ getSize(node);
+            boolean buddyIsLower = buddyOffset < getOffset(node);
+            
+            int buddy = buddyIsLower ? getPrevPhysical(node) : getNextPhysical(node);
+            if (buddy == NIL || !isFree(buddy) || getOffset(buddy) != buddyOffset || getSize(buddy) != getSize(node))
+            {
+                break;
+            }
+            
+            removeFreeBlock(buddy);
+            node = buddyIsLower ? absorb(buddy, node) : absorb(node, buddy);
+            order++;
+        }
+        
+        insertFreeBlock(node);
+    }
+    
+    private void insertFreeBlock(int node)
+    {
+        int order = orderOf(getSize(node));
+        
+        int head = freeBlocks[order];
+        setPrevFree(node, NIL);
+        setNextFree(node, head);
+        if (head != NIL)
+        {
+            setPrevFree(head, node);
+        }
+        freeBlocks[order] = node;
+        orderBitmap |= 1L << order;
+        
+        markFree(node);
+    }
+    
+    private void removeFreeBlock(int node)
+    {
+        int order = orderOf(getSize(node));
+        
+        int prev = getPrevFree(node);
+        int next = getNextFree(node);
+        
+        if (prev != NIL)
+        {
+            setNextFree(prev, next);
+        }
+        if (next != NIL)
+        {
+            setPrevFree(next, prev);
+        }
+        
+        if (freeBlocks[order] == node)
+        {
+            freeBlocks[order] = next;
+            if (next == NIL)
+            {
+                orderBitmap &= ~(1L << order);
+            }
+        }
+        
+        setPrevFree(node, NIL);
+        setNextFree(node, NIL);
+        
+        markTaken(node);
+    }
+    
+    /**
+     * Gets the smallest order whose block size can hold the value
+     */
+    private static int orderOf(long value)
+    {
+        if (value <= (1L << MIN_ORDER))
+        {
+            return MIN_ORDER;
+        }
+        
+        return 64 - Long.numberOfLeadingZeros(value - 1);
+    }
+}
@@ -0,0 +1,58 @@
+package no.stelar7.vulkan.engine.memory;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Decides how large new chunks should be, based on the size of the heap backing each memory type.
+ * <p>
+ * Large heaps get 256MB chunks, heaps of 1GB or less get an eighth of the heap so one chunk never pins a large part of it.
+ * The first chunks of a memory type start smaller and double until they reach the full size,
+ * and resources larger than half a chunk get a dedicated allocation so they do not fragment the shared chunks.
+ */
+public class ChunkSizePolicy
+{
+    private static final long LARGE_HEAP_CHUNK_SIZE = 256L * 1024 * 1024;
+    private static final long SMALL_HEAP_LIMIT      = 1024L * 1024 * 1024;
+    private static final long MIN_CHUNK_SIZE        = 1024L * 1024;
+    
+    // The first chunk is 1/8th of the full size, then 1/4th, 1/2 and finally full size
+    private static final int GROWTH_STEPS = 3;
+    
+    private long[] maxChunkSize = new long[VK_MAX_MEMORY_TYPES];
+    
+    public ChunkSizePolicy(DeviceMemoryBackend backend)
+    {
+        for (int i = 0; i < backend.getMemoryTypeCount(); i++)
+        {
+            long heapSize = backend.getHeapSize(i);
+            
+            long chunkSize = (heapSize <= SMALL_HEAP_LIMIT) ? Long.highestOneBit(heapSize / 8) : LARGE_HEAP_CHUNK_SIZE;
+            maxChunkSize[i] = Math.max(chunkSize, MIN_CHUNK_SIZE);
+        }
+    }
+    
+    /**
+     * Gets the size of a fully grown chunk for the memory type (In bytes)
+     */
+    public long getMaxChunkSize(int memoryIndex)
+    {
+        return maxChunkSize[memoryIndex];
+    }
+    
+    /**
+     * Gets the size the next chunk should have, given how many shared chunks the memory type already has (In bytes)
+     */
+    public long getChunkSize(int memoryIndex, int existingChunks)
+    {
+        int step = Math.max(GROWTH_STEPS - existingChunks, 0);
+        return Math.max(maxChunkSize[memoryIndex] >> step, MIN_CHUNK_SIZE);
+    }
+    
+    /**
+     * Checks if an allocation is large enough that it should get a chunk of its own
+     */
+    public boolean isDedicated(int memoryIndex, long size)
+    {
+        return size > maxChunkSize[memoryIndex] / 2;
+    }
+}
@@ -0,0 +1,104 @@
+package no.stelar7.vulkan.engine.memory;
+
+import java.util.*;
+
+/**
+ * A set of blocks to move out of a sparse chunk.
+ * <p>
+ * The destinations are already allocated when the pass is handed out, the caller copies the data, rebinds the owners and then calls complete.
+ */
+public class DefragmentationPass
+{
+    private final MemoryAllocator     allocator;
+    private final int                 memoryIndex;
+    private final FragmentationReport before;
+    private       FragmentationReport after;
+    
+    private final List<MemoryBlock> sources      = new ArrayList<>();
+    private final List<MemoryBlock> destinations = new ArrayList<>();
+    private       long              movedSize;
+    
+    DefragmentationPass(MemoryAllocator allocator, int memoryIndex, FragmentationReport before)
+    {
+        this.allocator = allocator;
+        this.memoryIndex = memoryIndex;
+        this.before = before;
+    }
+    
+    void addMove(MemoryBlock source, MemoryBlock destination)
+    {
+        sources.add(source);
+        destinations.add(destination);
+        movedSize += source.getRequestedSize();
+    }
+    
+    public int getMemoryIndex()
+    {
+        return memoryIndex;
+    }
+    
+    public int getMoveCount()
+    {
+        return sources.size();
+    }
+    
+    public MemoryBlock getSource(int move)
+    {
+        return sources.get(move);
+    }
+    
+    public MemoryBlock getDestination(int move)
+    {
+        return destinations.get(move);
+    }
+    
+    /**
+     * Gets the amount of bytes this pass moves
+     */
+    public long getMovedSize()
+    {
+        return movedSize;
+    }
+    
+    /**
+     * Gets the fragmentation of the memory type before the pass
+     */
+    public FragmentationReport getBefore()
+    {
+        return before;
+    }
+    
+    /**
+     * Gets the fragmentation of the memory type after the pass, or null if it has not completed
+     */
+    public FragmentationReport getAfter()
+    {
+        return after;
+    }
+    
+    /**
+     * Frees the old locations, must only be called once the data has been copied and the owners point to the destinations
+     */
+    public void complete()
+    {
+        for (MemoryBlock source : sources)
+        {
+            allocator.release(source);
+        }
+        
+        after = allocator.getFragmentationReport(memoryIndex);
+    }
+    
+    /**
+     * Gives the destinations back, leaving everything where it was
+     */
+    public void cancel()
+    {
+        for (MemoryBlock destination : destinations)
+        {
+            allocator.release(destination);
+        }
+        
+        after = allocator.getFragmentationReport(memoryIndex);
+    }
+}
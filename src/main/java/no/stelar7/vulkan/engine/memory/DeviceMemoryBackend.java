@@ -0,0 +1,34 @@
+package no.stelar7.vulkan.engine.memory;
+
+/**
+ * Where chunks get their memory from.
+ * <p>
+ * Implementations must be safe to call from several threads, as chunks of different memory types are created concurrently.
+ */
+public interface DeviceMemoryBackend
+{
+    int getMemoryTypeCount();
+    
+    /**
+     * Gets the size of the heap backing the memory type (In bytes)
+     */
+    long getHeapSize(int memoryIndex);
+    
+    boolean isHostVisible(int memoryIndex);
+    
+    /**
+     * @return the handle of the new allocation
+     */
+    long allocate(int memoryIndex, long size);
+    
+    void free(long memory);
+    
+    /**
+     * Maps the whole allocation, must only be called for host-visible memory types
+     *
+     * @return the host address of offset 0
+     */
+    long map(long memory);
+    
+    void unmap(long memory);
+}
@@ -0,0 +1,129 @@
+package no.stelar7.vulkan.engine.memory;
+
+import java.util.*;
+
+public class FragmentationReport
+{
+    private final int                memoryIndex;
+    private final AllocationStrategy strategy;
+    
+    private int  chunkCount;
+    private int  usedBlockCount;
+    private int  freeBlockCount;
+    private long totalSize;
+    private long freeSize;
+    private long requestedSize;
+    private long largestFreeBlock;
+    
+    public FragmentationReport(int memoryIndex, AllocationStrategy strategy, Collection<MemoryChunk> chunks)
+    {
+        this.memoryIndex = memoryIndex;
+        this.strategy = strategy;
+        
+        for (MemoryChunk chunk : chunks)
+        {
+            if (chunk.getMemoryIndex() != memoryIndex)
+            {
+                continue;
+            }
+            
+            chunkCount++;
+            usedBlockCount += chunk.getUsedBlockCount();
+            freeBlockCount += chunk.getFreeBlockCount();
+            totalSize += chunk.getSize();
+            freeSize += chunk.getFreeSize();
+            requestedSize += chunk.getRequestedSize();
+            largestFreeBlock = Math.max(largestFreeBlock, chunk.getLargestFreeBlock());
+        }
+    }
+    
+    public int getMemoryIndex()
+    {
+        return memoryIndex;
+    }
+    
+    public AllocationStrategy getStrategy()
+    {
+        return strategy;
+    }
+    
+    public int getChunkCount()
+    {
+        return chunkCount;
+    }
+    
+    public int getUsedBlockCount()
+    {
+        return usedBlockCount;
+    }
+    
+    public int getFreeBlockCount()
+    {
+        return freeBlockCount;
+    }
+    
+    public long getTotalSize()
+    {
+        return totalSize;
+    }
+    
+    public long getFreeSize()
+    {
+        return freeSize;
+    }
+    
+    /**
+     * Gets the amount of bytes handed out, including rounding and padding
+     */
+    public long getUsedSize()
+    {
+        return totalSize - freeSize;
+    }
+    
+    /**
+     * Gets the amount of bytes callers asked for
+     */
+    public long getRequestedSize()
+    {
+        return requestedSize;
+    }
+    
+    public long getLargestFreeBlock()
+    {
+        return largestFreeBlock;
+    }
+    
+    /**
+     * How much of the free memory can not be handed out as one block (0 = none, 1 = all of it)
+     */
+    public double getExternalFragmentation()
+    {
+        if (freeSize == 0)
+        {
+            return 0;
+        }
+        
+        return 1 - ((double) largestFreeBlock / freeSize);
+    }
+    
+    /**
+     * How much of the used memory was wasted on rounding and padding (0 = none, 1 = all of it)
+     */
+    public double getInternalFragmentation()
+    {
+        if (getUsedSize() == 0)
+        {
+            return 0;
+        }
+        
+        return 1 - ((double) requestedSize / getUsedSize());
+    }
+    
+    @Override
+    public String toString()
+    {
+        return String.format("Memory type %d (%s): %d chunks, %d/%d bytes used (%d requested), %d used blocks, %d free blocks, largest free %d, external %.3f, internal %.3f",
+                             memoryIndex, strategy, chunkCount, getUsedSize(), totalSize, requestedSize, usedBlockCount, freeBlockCount, largestFreeBlock,
+                             getExternalFragmentation(), getInternalFragmentation());
+    }
+}
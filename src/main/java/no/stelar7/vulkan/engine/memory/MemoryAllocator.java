@@ -2,61 +2,904 @@ package no.stelar7.vulkan.engine.memory;
 
 import no.stelar7.vulkan.engine.renderer.DeviceFamily;
 
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
 
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Hands out MemoryBlocks from chunks of device memory, safe to use from any thread.
+ * <p>
+ * Every memory type has its own chunk list and lock, so threads working on different types never wait on each other.
+ * Small blocks freed by a thread are kept in a cache for that thread and reused for requests of the same size without searching a chunk.
+ * Every cache is registered here, so the defragmenter can drain all of them and caches of threads that died can be emptied.
+ * <p>
+ * Blocks can be allocated as MemoryBlock views, or as plain long handles that create no garbage.
+ * A handle holds the id of its chunk in the top 12 bits, the epoch of that id in the next 4, and the handle of the block inside that chunk in the rest.
+ * The epoch goes up every time a chunk gives its id back, so handles into a released chunk never match the chunk that gets the id next.
+ */
 public class MemoryAllocator
 {
-    // 256MB
-    private int defaultChunkSize = 256_000_000;
+    private List<List<MemoryChunk>> chunks = new ArrayList<>(VK_MAX_MEMORY_TYPES);
+    private ReentrantLock[]         locks  = new ReentrantLock[VK_MAX_MEMORY_TYPES];
+    
+    // The same as the smallest maxMemoryAllocationCount a device may have, so the ids never run out before the device does
+    private static final int MAX_CHUNKS  = 1 << 12;
+    private static final int CHUNK_SHIFT = 52;
+    private static final int EPOCH_SHIFT = 48;
+    private static final int EPOCH_MASK  = 0xF;
+    
+    // Chunks by id, so handles can find their chunk. Unused ids are handed out oldest first, so an id is reused as late as possible.
+    private AtomicReferenceArray<MemoryChunk> chunkTable    = new AtomicReferenceArray<>(MAX_CHUNKS);
+    private AtomicIntegerArray                epochs        = new AtomicIntegerArray(MAX_CHUNKS);
+    private int[]                             unusedIds     = new int[MAX_CHUNKS];
+    private int                               unusedIdFirst;
+    private int                               unusedIdCount;
+    private ReentrantLock                     tableLock     = new ReentrantLock();
+    
+    private AllocationCounters counters = new AllocationCounters();
+    
+    // Where free writes the final stats to, or null to skip it
+    private Path statsPath;
+    
+    private Set<ThreadBlockCache>         allCaches = ConcurrentHashMap.newKeySet();
+    private ThreadLocal<ThreadBlockCache> caches    = ThreadLocal.withInitial(this::createCache);
     
-    private List<MemoryChunk> chunks = new ArrayList<>();
-    private DeviceFamily deviceFamily;
+    private AllocationStrategy[] strategies = new AllocationStrategy[VK_MAX_MEMORY_TYPES];
+    private DeviceMemoryBackend  backend;
+    private ChunkSizePolicy      sizePolicy;
+    
+    // Empty chunks kept per memory type, and how many frames a chunk must stay empty before it is released
+    private volatile int keepEmptyChunks = 1;
+    private volatile int trimDelayFrames = 120;
+    
+    // Chunks using less than this fraction of their size are worth emptying
+    private static final double SPARSE_CHUNK_RATIO = 0.5;
+    
+    // Requests up to MAX_SLAB_SLOT go to slabs on memory types that are not BUDDY, in slots of the next power of two of at least MIN_SLAB_SLOT
+    private static final long MIN_SLAB_SLOT = 256;
+    private static final long MAX_SLAB_SLOT = 4 * 1024;
+    private static final long SLAB_SIZE     = 1024 * 1024;
+    
+    private volatile long          frame;
+    private          AtomicLong    reclaimedSize       = new AtomicLong();
+    private          AtomicInteger reclaimedChunkCount = new AtomicInteger();
     
     public static MemoryAllocator getInstance()
     {
         return instance;
     }
     
-    private static MemoryAllocator instance = null;
+    private static volatile MemoryAllocator instance = null;
     
     public MemoryAllocator(DeviceFamily deviceFamily)
     {
-        this.deviceFamily = deviceFamily;
+        this(new VulkanMemoryBackend(deviceFamily), Collections.emptyMap());
+    }
+    
+    /**
+     * @param strategies the allocation strategy to use per memory type index, types not in the map use TLSF
+     */
+    public MemoryAllocator(DeviceFamily deviceFamily, Map<Integer, AllocationStrategy> strategies)
+    {
+        this(new VulkanMemoryBackend(deviceFamily), strategies);
+    }
+    
+    /**
+     * @param backend    where chunks get their memory from
+     * @param strategies the allocation strategy to use per memory type index, types not in the map use TLSF
+     */
+    public MemoryAllocator(DeviceMemoryBackend backend, Map<Integer, AllocationStrategy> strategies)
+    {
+        this.backend = backend;
+        this.sizePolicy = new ChunkSizePolicy(backend);
+        
+        Arrays.fill(this.strategies, AllocationStrategy.TLSF);
+        strategies.forEach((index, strategy) -> this.strategies[index] = strategy);
+        
+        for (int i = 0; i < VK_MAX_MEMORY_TYPES; i++)
+        {
+            chunks.add(new ArrayList<>());
+            locks[i] = new ReentrantLock();
+        }
+        
+        for (int i = 0; i < MAX_CHUNKS; i++)
+        {
+            unusedIds[unusedIdCount++] = i;
+        }
+        
         instance = this;
     }
     
+    public AllocationStrategy getStrategy(int memoryIndex)
+    {
+        return strategies[memoryIndex];
+    }
+    
+    public DeviceMemoryBackend getBackend()
+    {
+        return backend;
+    }
+    
+    public ChunkSizePolicy getSizePolicy()
+    {
+        return sizePolicy;
+    }
+    
     public MemoryBlock allocate(long size, long alignment, int memoryIndex)
     {
-        for (MemoryChunk chunk : chunks)
+        if (size > 0 && size <= ThreadBlockCache.MAX_BLOCK_SIZE)
+        {
+            long        start = System.nanoTime();
+            MemoryBlock block = caches.get().take(size, Math.max(alignment, 1), memoryIndex);
+            if (block != null)
+            {
+                counters.recordAllocation(memoryIndex, size, System.nanoTime() - start, true);
+                return block;
+            }
+        }
+        
+        long handle = allocateHandle(size, alignment, memoryIndex);
+        if (handle == MemoryChunk.NO_HANDLE)
+        {
+            return null;
+        }
+        
+        // The view copies the placement out of the chunk, whose arrays another thread can be growing
+        ReentrantLock lock = locks[memoryIndex];
+        lock.lock();
+        try
+        {
+            return new MemoryBlock(this, getChunk(handle), getChunkHandle(handle));
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Allocates a block without creating any objects, the handle must be given back with deallocateHandle
+     *
+     * @return the handle of the block, or MemoryChunk.NO_HANDLE if it could not be allocated
+     */
+    public long allocateHandle(long size, long alignment, int memoryIndex)
+    {
+        long          start = System.nanoTime();
+        ReentrantLock lock  = locks[memoryIndex];
+        
+        long handle;
+        lock.lock();
+        try
+        {
+            handle = allocateHandle(size, alignment, memoryIndex, true);
+        } finally
+        {
+            lock.unlock();
+        }
+        
+        if (handle == MemoryChunk.NO_HANDLE)
+        {
+            counters.recordFailure(memoryIndex);
+        } else
+        {
+            counters.recordAllocation(memoryIndex, size, System.nanoTime() - start, false);
+        }
+        return handle;
+    }
+    
+    /**
+     * Must be called with the lock for the memory type held
+     *
+     * @param grow if new chunks can be created to fit the block
+     */
+    private long allocateHandle(long size, long alignment, int memoryIndex, boolean grow)
+    {
+        List<MemoryChunk> chunks = this.chunks.get(memoryIndex);
+        
+        if (usesSlabs(memoryIndex) && size <= MAX_SLAB_SLOT && alignment <= MAX_SLAB_SLOT)
+        {
+            long slotSize = Math.max(getNextPowerOfTwo(Math.max(size, alignment)), MIN_SLAB_SLOT);
+            return allocateSlot(size, slotSize, memoryIndex, grow);
+        }
+        
+        if (grow && sizePolicy.isDedicated(memoryIndex, size))
+        {
+            MemoryChunk chunk = new TlsfMemoryChunk(backend, memoryIndex, size);
+            chunk.setDedicated(true);
+            addChunk(chunk);
+            return toHandle(chunk, chunk.allocateHandle(size, alignment));
+        }
+        
+        for (int i = 0; i < chunks.size(); i++)
+        {
+            MemoryChunk chunk = chunks.get(i);
+            if (isShared(chunk) && !chunk.isDraining())
+            {
+                long handle = chunk.allocateHandle(size, alignment);
+                if (handle != MemoryChunk.NO_HANDLE)
+                {
+                    chunk.setEmptySince(-1);
+                    return toHandle(chunk, handle);
+                }
+            }
+        }
+        
+        if (!grow)
+        {
+            return MemoryChunk.NO_HANDLE;
+        }
+        
+        addChunk(allocateChunk(Math.max(size, alignment), memoryIndex));
+        return allocateHandle(size, alignment, memoryIndex, true);
+    }
+    
+    /**
+     * Must be called with the lock for the memory type held
+     */
+    private long allocateSlot(long size, long slotSize, int memoryIndex, boolean grow)
+    {
+        List<MemoryChunk> chunks = this.chunks.get(memoryIndex);
+        for (int i = 0; i < chunks.size(); i++)
         {
-            if (chunk.getMemoryIndex() == memoryIndex)
+            MemoryChunk chunk = chunks.get(i);
+            if (chunk.getStrategy() == AllocationStrategy.SLAB && ((SlabMemoryChunk) chunk).getSlotSize() == slotSize)
             {
-                MemoryBlock block = chunk.allocate(size, alignment);
-                if (block != null)
+                long handle = chunk.allocateHandle(size, slotSize);
+                if (handle != MemoryChunk.NO_HANDLE)
                 {
-                    return block;
+                    chunk.setEmptySince(-1);
+                    return toHandle(chunk, handle);
                 }
             }
         }
         
-        chunks.add(allocateChunk(alignment, memoryIndex));
-        return allocate(size, alignment, memoryIndex);
+        if (!grow)
+        {
+            return MemoryChunk.NO_HANDLE;
+        }
+        
+        addChunk(new SlabMemoryChunk(backend, memoryIndex, SLAB_SIZE, slotSize));
+        return allocateSlot(size, slotSize, memoryIndex, true);
+    }
+    
+    /**
+     * Buddy memory types keep small blocks in their buddy chunks, the other types put them in slabs
+     */
+    private boolean usesSlabs(int memoryIndex)
+    {
+        return strategies[memoryIndex] != AllocationStrategy.BUDDY;
+    }
+    
+    /**
+     * Checks if the chunk is one of the general chunks that blocks of any size are placed in, these are always BlockMemoryChunks
+     */
+    private static boolean isShared(MemoryChunk chunk)
+    {
+        return !chunk.isDedicated() && chunk.getStrategy() != AllocationStrategy.SLAB;
+    }
+    
+    /**
+     * Gets the chunk a handle from allocateHandle belongs to, or null if that chunk has been released
+     */
+    public MemoryChunk getChunk(long handle)
+    {
+        int         id    = (int) (handle >>> CHUNK_SHIFT);
+        MemoryChunk chunk = chunkTable.get(id);
+        
+        // The epoch is read after the chunk, so a chunk that replaced the released one in between is never returned
+        if (chunk == null || epochs.get(id) != ((int) (handle >>> EPOCH_SHIFT) & EPOCH_MASK))
+        {
+            return null;
+        }
+        
+        return chunk;
+    }
+    
+    /**
+     * Gets the handle of the block inside its chunk, for use with the getters on MemoryChunk
+     */
+    public static long getChunkHandle(long handle)
+    {
+        return handle & ((1L << EPOCH_SHIFT) - 1);
+    }
+    
+    public long getOffset(long handle)
+    {
+        return getLiveChunk(handle).getOffset(getChunkHandle(handle));
+    }
+    
+    /**
+     * Gets the host address of the block, or 0 if it is not in host-visible memory
+     */
+    public long getMappedPointer(long handle)
+    {
+        MemoryChunk chunk = getLiveChunk(handle);
+        if (chunk.getMappedPointer() == 0)
+        {
+            return 0;
+        }
+        
+        return chunk.getMappedPointer() + chunk.getOffset(getChunkHandle(handle));
+    }
+    
+    /**
+     * Gets the object bound to the block, or null if it has none or has been freed
+     */
+    public Object getOwner(MemoryBlock block)
+    {
+        ReentrantLock lock = locks[block.getChunk().getMemoryIndex()];
+        lock.lock();
+        try
+        {
+            return block.getChunk().getOwner(block.getHandle());
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Binds an object to the block, blocks without an owner are never moved.
+     * Safe to call from any thread, the owner is written under the same lock that lets the chunk grow its arrays.
+     */
+    public void setOwner(MemoryBlock block, Object owner)
+    {
+        ReentrantLock lock = locks[block.getChunk().getMemoryIndex()];
+        lock.lock();
+        try
+        {
+            block.getChunk().setOwner(block.getHandle(), owner);
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Checks that the block has not been freed, or handed to the thread cache under a new generation
+     */
+    public boolean isAllocated(MemoryBlock block)
+    {
+        ReentrantLock lock = locks[block.getChunk().getMemoryIndex()];
+        lock.lock();
+        try
+        {
+            return block.getChunk().isAllocated(block.getHandle());
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private MemoryChunk getLiveChunk(long handle)
+    {
+        MemoryChunk chunk = getChunk(handle);
+        if (chunk == null)
+        {
+            throw new IllegalArgumentException("The handle belongs to a chunk that has been released");
+        }
+        
+        return chunk;
+    }
+    
+    private long toHandle(MemoryChunk chunk, long handle)
+    {
+        if (handle == MemoryChunk.NO_HANDLE)
+        {
+            return MemoryChunk.NO_HANDLE;
+        }
+        
+        long epoch = epochs.get(chunk.getId());
+        return ((long) chunk.getId() << CHUNK_SHIFT) | (epoch << EPOCH_SHIFT) | handle;
+    }
+    
+    /**
+     * Must be called with the lock for the memory type held
+     */
+    private void addChunk(MemoryChunk chunk)
+    {
+        tableLock.lock();
+        try
+        {
+            if (unusedIdCount == 0)
+            {
+                chunk.free();
+                throw new IllegalStateException("More than " + MAX_CHUNKS + " chunks allocated");
+            }
+            
+            chunk.setId(unusedIds[unusedIdFirst]);
+            unusedIdFirst = (unusedIdFirst + 1) % MAX_CHUNKS;
+            unusedIdCount--;
+            chunkTable.set(chunk.getId(), chunk);
+        } finally
+        {
+            tableLock.unlock();
+        }
+        
+        chunks.get(chunk.getMemoryIndex()).add(chunk);
+    }
+    
+    /**
+     * Frees the chunk and gives its id back, must be called with the lock for the memory type held
+     */
+    private void removeChunk(MemoryChunk chunk)
+    {
+        chunk.free();
+        
+        tableLock.lock();
+        try
+        {
+            chunkTable.set(chunk.getId(), null);
+            epochs.set(chunk.getId(), (epochs.get(chunk.getId()) + 1) & EPOCH_MASK);
+            unusedIds[(unusedIdFirst + unusedIdCount) % MAX_CHUNKS] = chunk.getId();
+            unusedIdCount++;
+        } finally
+        {
+            tableLock.unlock();
+        }
     }
     
     public void deallocate(MemoryBlock block)
     {
-        chunks.stream().filter(s -> s.hasBlock(block)).findFirst().ifPresent(c -> c.deallocate(block));
+        MemoryChunk chunk = block.getChunk();
+        if (chunk == null || block.isFree())
+        {
+            return;
+        }
+        
+        long             start = System.nanoTime();
+        ThreadBlockCache cache = caches.get();
+        
+        if (cache.accepts(block))
+        {
+            cache(cache, block);
+        } else
+        {
+            release(block);
+        }
+        
+        counters.recordFree(chunk.getMemoryIndex(), System.nanoTime() - start);
+    }
+    
+    /**
+     * Moves the block into the cache under a new generation, so the freed view and every copy of its handle go stale
+     */
+    private void cache(ThreadBlockCache cache, MemoryBlock block)
+    {
+        MemoryChunk   chunk = block.getChunk();
+        ReentrantLock lock  = locks[chunk.getMemoryIndex()];
+        
+        MemoryBlock cached;
+        lock.lock();
+        try
+        {
+            // Lost a race with another free of the same block
+            if (!chunk.isAllocated(block.getHandle()))
+            {
+                return;
+            }
+            
+            cached = new MemoryBlock(this, chunk, chunk.reissue(block.getHandle()));
+        } finally
+        {
+            lock.unlock();
+        }
+        
+        if (!cache.put(cached))
+        {
+            release(cached);
+        }
+    }
+    
+    /**
+     * Frees a block from allocateHandle, handles that are stale or already freed are ignored
+     */
+    public void deallocateHandle(long handle)
+    {
+        long        start = System.nanoTime();
+        MemoryChunk chunk = getChunk(handle);
+        if (chunk != null && chunk.isAllocated(getChunkHandle(handle)))
+        {
+            release(chunk, getChunkHandle(handle));
+            counters.recordFree(chunk.getMemoryIndex(), System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Returns the block to its chunk, skipping the thread cache
+     */
+    void release(MemoryBlock block)
+    {
+        release(block.getChunk(), block.getHandle());
+    }
+    
+    private void release(MemoryChunk chunk, long handle)
+    {
+        ReentrantLock lock = locks[chunk.getMemoryIndex()];
+        lock.lock();
+        try
+        {
+            if (!chunk.isAllocated(handle))
+            {
+                return;
+            }
+            
+            chunk.deallocate(handle);
+            
+            if (chunk.isDedicated())
+            {
+                removeChunk(chunk);
+                chunks.get(chunk.getMemoryIndex()).remove(chunk);
+                
+                reclaimedSize.addAndGet(chunk.getSize());
+                reclaimedChunkCount.incrementAndGet();
+            } else if (chunk.isEmpty())
+            {
+                chunk.setEmptySince(frame);
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the blocks cached by the calling thread to their chunks.
+     * Threads that stop allocating should call this, or the cached blocks keep their chunks from being trimmed until the thread dies.
+     */
+    public void flushThreadCache()
+    {
+        caches.get().drain(this::release);
+    }
+    
+    private ThreadBlockCache createCache()
+    {
+        ThreadBlockCache cache = new ThreadBlockCache(Thread.currentThread());
+        allCaches.add(cache);
+        return cache;
+    }
+    
+    /**
+     * Returns the blocks of the memory type cached by every thread to their chunks
+     */
+    private void drainCaches(int memoryIndex)
+    {
+        for (ThreadBlockCache cache : allCaches)
+        {
+            cache.drain(memoryIndex, this::release);
+        }
+    }
+    
+    /**
+     * Empties and forgets the caches of threads that have died
+     */
+    private void drainOrphanedCaches()
+    {
+        for (ThreadBlockCache cache : allCaches)
+        {
+            if (cache.isOrphaned())
+            {
+                allCaches.remove(cache);
+                cache.drain(this::release);
+            }
+        }
+    }
+    
+    /**
+     * Sets how eagerly empty chunks are given back to the driver
+     *
+     * @param keepEmptyChunks how many empty chunks to keep around per memory type
+     * @param trimDelayFrames how many calls to trim a chunk must stay empty before it is released
+     */
+    public void setTrimPolicy(int keepEmptyChunks, int trimDelayFrames)
+    {
+        this.keepEmptyChunks = keepEmptyChunks;
+        this.trimDelayFrames = trimDelayFrames;
+    }
+    
+    /**
+     * Releases chunks that have been empty for long enough, should be called once per frame from a single thread
+     */
+    public void trim()
+    {
+        frame++;
+        
+        // Blocks left in the cache of a dead thread would keep their chunks from ever being released
+        drainOrphanedCaches();
+        
+        for (int index = 0; index < VK_MAX_MEMORY_TYPES; index++)
+        {
+            ReentrantLock lock = locks[index];
+            lock.lock();
+            try
+            {
+                trim(chunks.get(index));
+            } finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+    
+    private void trim(List<MemoryChunk> chunks)
+    {
+        int emptyChunks = 0;
+        for (int i = 0; i < chunks.size(); i++)
+        {
+            if (chunks.get(i).isEmpty())
+            {
+                emptyChunks++;
+            }
+        }
+        
+        for (int i = chunks.size() - 1; i >= 0 && emptyChunks > keepEmptyChunks; i--)
+        {
+            MemoryChunk chunk = chunks.get(i);
+            if (!chunk.isEmpty() || frame - chunk.getEmptySince() < trimDelayFrames)
+            {
+                continue;
+            }
+            
+            removeChunk(chunk);
+            chunks.remove(i);
+            emptyChunks--;
+            
+            reclaimedSize.addAndGet(chunk.getSize());
+            reclaimedChunkCount.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Gets the amount of bytes currently allocated from the driver
+     */
+    public long getCommittedSize()
+    {
+        long size = 0;
+        for (int index = 0; index < VK_MAX_MEMORY_TYPES; index++)
+        {
+            ReentrantLock lock = locks[index];
+            lock.lock();
+            try
+            {
+                for (MemoryChunk chunk : chunks.get(index))
+                {
+                    size += chunk.getSize();
+                }
+            } finally
+            {
+                lock.unlock();
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * Gets the amount of bytes given back to the driver by trim
+     */
+    public long getReclaimedSize()
+    {
+        return reclaimedSize.get();
+    }
+    
+    public int getReclaimedChunkCount()
+    {
+        return reclaimedChunkCount.get();
+    }
+    
+    /**
+     * Plans moves out of the sparsest chunk of the first memory type that has one
+     *
+     * @param maxSize how many bytes the pass may move
+     * @return the pass, or null if there is nothing worth moving
+     */
+    public DefragmentationPass defragment(long maxSize)
+    {
+        for (int i = 0; i < VK_MAX_MEMORY_TYPES; i++)
+        {
+            DefragmentationPass pass = defragment(i, maxSize);
+            if (pass != null)
+            {
+                return pass;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Plans moves of owned blocks out of the sparsest chunk of the memory type, into space in the other chunks.
+     * The source chunk gets no new blocks until it is empty, so it can be trimmed.
+     *
+     * @param maxSize how many bytes the pass may move
+     * @return the pass, or null if there is nothing worth moving
+     */
+    public DefragmentationPass defragment(int memoryIndex, long maxSize)
+    {
+        ReentrantLock lock = locks[memoryIndex];
+        lock.lock();
+        try
+        {
+            // Blocks cached by any thread would keep the source chunk from ever emptying
+            drainCaches(memoryIndex);
+            return planDefragmentation(memoryIndex, maxSize);
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private DefragmentationPass planDefragmentation(int memoryIndex, long maxSize)
+    {
+        BlockMemoryChunk source = findDefragmentationSource(memoryIndex);
+        if (source == null)
+        {
+            return null;
+        }
+        
+        DefragmentationPass pass = new DefragmentationPass(this, memoryIndex, getFragmentationReport(memoryIndex));
+        source.setDraining(true);
+        
+        for (int node = source.getFirstBlock(); node != BlockMemoryChunk.NIL && pass.getMovedSize() < maxSize; node = source.getNextPhysical(node))
+        {
+            long handle = source.handleOf(node);
+            if (!source.isAllocated(handle) || source.getOwner(handle) == null)
+            {
+                continue;
+            }
+            
+            long destination = allocateHandle(source.getRequestedSize(handle), source.getAlignment(handle), memoryIndex, false);
+            if (destination == MemoryChunk.NO_HANDLE)
+            {
+                break;
+            }
+            
+            MemoryChunk destinationChunk = getChunk(destination);
+            destinationChunk.setOwner(getChunkHandle(destination), source.getOwner(handle));
+            pass.addMove(new MemoryBlock(this, source, handle), new MemoryBlock(this, destinationChunk, getChunkHandle(destination)));
+        }
+        
+        if (pass.getMoveCount() == 0)
+        {
+            source.setDraining(false);
+            source.setStalled(true);
+            return null;
+        }
+        
+        return pass;
+    }
+    
+    private BlockMemoryChunk findDefragmentationSource(int memoryIndex)
+    {
+        BlockMemoryChunk sparsest      = null;
+        double           sparsestRatio = SPARSE_CHUNK_RATIO;
+        long             otherFree     = 0;
+        int              chunkCount    = 0;
+        
+        for (MemoryChunk chunk : chunks.get(memoryIndex))
+        {
+            if (!isShared(chunk))
+            {
+                continue;
+            }
+            
+            if (chunk.isDraining())
+            {
+                return (BlockMemoryChunk) chunk;
+            }
+            
+            chunkCount++;
+            otherFree += chunk.getFreeSize();
+            
+            if (chunk.isEmpty() || chunk.isStalled())
+            {
+                continue;
+            }
+            
+            double ratio = (double) (chunk.getSize() - chunk.getFreeSize()) / chunk.getSize();
+            if (ratio < sparsestRatio)
+            {
+                sparsest = (BlockMemoryChunk) chunk;
+                sparsestRatio = ratio;
+            }
+        }
+        
+        if (sparsest == null || chunkCount < 2)
+        {
+            return null;
+        }
+        
+        // Only worth it if the rest of the chunks can take everything it holds
+        otherFree -= sparsest.getFreeSize();
+        if (otherFree < sparsest.getSize() - sparsest.getFreeSize())
+        {
+            return null;
+        }
+        
+        return sparsest;
+    }
+    
+    /**
+     * Takes a snapshot of the usage and traffic of every memory type
+     */
+    public MemoryStats getStats()
+    {
+        return new MemoryStats(this, counters, backend.getMemoryTypeCount());
+    }
+    
+    /**
+     * Sets the file the stats are written to when the allocator is freed, null to not write them
+     */
+    public void setStatsPath(Path statsPath)
+    {
+        this.statsPath = statsPath;
+    }
+    
+    public FragmentationReport getFragmentationReport(int memoryIndex)
+    {
+        ReentrantLock lock = locks[memoryIndex];
+        lock.lock();
+        try
+        {
+            return new FragmentationReport(memoryIndex, strategies[memoryIndex], chunks.get(memoryIndex));
+        } finally
+        {
+            lock.unlock();
+        }
     }
     
     public void free()
     {
-        chunks.forEach(MemoryChunk::free);
+        // Taken before the chunks go, so anything still allocated shows up as a leak
+        MemoryStats stats = (statsPath != null) ? getStats() : null;
+        
+        for (int index = 0; index < VK_MAX_MEMORY_TYPES; index++)
+        {
+            ReentrantLock lock = locks[index];
+            lock.lock();
+            try
+            {
+                // Cached blocks go with their chunks
+                for (ThreadBlockCache cache : allCaches)
+                {
+                    cache.drain(index, block -> {});
+                }
+                
+                chunks.get(index).forEach(this::removeChunk);
+                chunks.get(index).clear();
+            } finally
+            {
+                lock.unlock();
+            }
+        }
+        
+        // Written last, so a failed write does not keep the chunks from being freed
+        if (stats != null)
+        {
+            stats.writeJson(statsPath);
+        }
     }
     
     private MemoryChunk allocateChunk(long size, int memoryIndex)
     {
-        long chunkSize = (defaultChunkSize < size) ? getNextPowerOfTwo(size) : defaultChunkSize;
-        return new MemoryChunk(deviceFamily, memoryIndex, chunkSize);
+        int existingChunks = 0;
+        for (MemoryChunk chunk : chunks.get(memoryIndex))
+        {
+            if (isShared(chunk))
+            {
+                existingChunks++;
+            }
+        }
+        
+        long chunkSize = Math.max(sizePolicy.getChunkSize(memoryIndex, existingChunks), getNextPowerOfTwo(size));
+        
+        if (strategies[memoryIndex] == AllocationStrategy.BUDDY)
+        {
+            return new BuddyMemoryChunk(backend, memoryIndex, chunkSize);
+        }
+        
+        return new TlsfMemoryChunk(backend, memoryIndex, chunkSize);
     }
     
     
@@ -69,6 +912,7 @@ public class MemoryAllocator
         n = n | (n >> 4);
         n = n | (n >> 8);
         n = n | (n >> 16);
+        n = n | (n >> 32);
         n++;
         return n;
     }
@@ -1,30 +1,48 @@
 package no.stelar7.vulkan.engine.memory;
 
+/**
+ * A view of an allocated block, for callers that want an object rather than a handle.
+ * <p>
+ * The placement is copied out of the chunk when the view is created, it does not change for the lifetime of the block.
+ */
 public class MemoryBlock
 {
-    private long    memory;
-    private long    offset;
-    private boolean free;
-    private long    size;
+    private final MemoryAllocator allocator;
+    private final MemoryChunk     chunk;
+    private final long            handle;
     
-    public long getMemory()
+    private final long offset;
+    private final long size;
+    private final long requestedSize;
+    private final long alignment;
+    
+    MemoryBlock(MemoryChunk chunk, long handle)
     {
-        return memory;
+        this(null, chunk, handle);
     }
     
-    public void setMemory(long memory)
+    /**
+     * @param allocator the allocator the chunk belongs to, or null if whoever made the chunk guards it
+     */
+    MemoryBlock(MemoryAllocator allocator, MemoryChunk chunk, long handle)
     {
-        this.memory = memory;
+        this.allocator = allocator;
+        this.chunk = chunk;
+        this.handle = handle;
+        this.offset = chunk.getOffset(handle);
+        this.size = chunk.getSize(handle);
+        this.requestedSize = chunk.getRequestedSize(handle);
+        this.alignment = chunk.getAlignment(handle);
     }
     
-    public long getOffset()
+    public long getMemory()
     {
-        return offset;
+        return chunk.getMemory();
     }
     
-    public void setOffset(long offset)
+    public long getOffset()
     {
-        this.offset = offset;
+        return offset;
     }
     
     public long getSize()
@@ -32,62 +50,70 @@ public class MemoryBlock
         return size;
     }
     
-    public void setSize(long sizeInBytes)
+    /**
+     * Gets the host address of this block, or 0 if it is not in host-visible memory.
+     * The pointer stays valid until the block is freed or moved.
+     */
+    public long getMappedPointer()
     {
-        this.size = sizeInBytes;
+        if (chunk.getMappedPointer() == 0)
+        {
+            return 0;
+        }
+        
+        return chunk.getMappedPointer() + offset;
     }
     
-    public boolean isFree()
+    /**
+     * Gets the size the block was requested with, this can be smaller than the size when the allocator rounds up
+     */
+    public long getRequestedSize()
     {
-        return free;
+        return requestedSize;
     }
     
-    @Override
-    public boolean equals(Object o)
+    public long getAlignment()
     {
-        if (this == o)
-        {
-            return true;
-        }
-        if (o == null || getClass() != o.getClass())
-        {
-            return false;
-        }
-        
-        MemoryBlock that = (MemoryBlock) o;
-        
-        if (memory != that.memory)
-        {
-            return false;
-        }
-        if (offset != that.offset)
+        return alignment;
+    }
+    
+    /**
+     * Gets the object bound to this block, blocks without an owner are never moved
+     */
+    public Object getOwner()
+    {
+        return (allocator != null) ? allocator.getOwner(this) : chunk.getOwner(handle);
+    }
+    
+    public void setOwner(Object owner)
+    {
+        if (allocator != null)
         {
-            return false;
-        }
-        if (free != that.free)
+            allocator.setOwner(this, owner);
+        } else
         {
-            return false;
+            chunk.setOwner(handle, owner);
         }
-        return size == that.size;
     }
     
-    @Override
-    public int hashCode()
+    /**
+     * Checks if the block has been given back to its chunk, views of freed blocks stay free even if the memory is handed out again
+     */
+    public boolean isFree()
     {
-        int result = (int) (memory ^ (memory >>> 32));
-        result = 31 * result + (int) (offset ^ (offset >>> 32));
-        result = 31 * result + (free ? 1 : 0);
-        result = 31 * result + (int) (size ^ (size >>> 32));
-        return result;
+        return (allocator != null) ? !allocator.isAllocated(this) : !chunk.isAllocated(handle);
     }
     
-    public void take()
+    public MemoryChunk getChunk()
     {
-        free = false;
+        return chunk;
     }
     
-    public void free()
+    /**
+     * Gets the handle of this block inside its chunk
+     */
+    public long getHandle()
     {
-        free = true;
+        return handle;
     }
-}
\ No newline at end of file
+}
@@ -1,53 +1,64 @@
 package no.stelar7.vulkan.engine.memory;
 
-import no.stelar7.vulkan.engine.EngineUtils;
-import no.stelar7.vulkan.engine.renderer.DeviceFamily;
-import org.lwjgl.vulkan.*;
-
-import java.nio.LongBuffer;
-import java.util.*;
-
-import static org.lwjgl.system.MemoryUtil.*;
-import static org.lwjgl.vulkan.VK10.*;
-
-public class MemoryChunk
+/**
+ * A single VkDeviceMemory allocation that is handed out in pieces.
+ * <p>
+ * Allocated pieces are referred to by handles, which hold the index of the piece and its generation.
+ * The generation changes whenever a piece is freed, so a stale handle never refers to a piece handed out later.
+ * How pieces are laid out and found is up to the implementation, BlockMemoryChunk tiles the chunk with variable sized blocks
+ * and SlabMemoryChunk cuts it into equal slots.
+ */
+public abstract class MemoryChunk
 {
-    private VkDevice device;
+    /**
+     * Returned by allocateHandle when the block does not fit
+     */
+    public static final long NO_HANDLE = -1;
+    
+    protected static final int GENERATION_MASK = 0xFFFF;
+    
+    private DeviceMemoryBackend backend;
     
     private long memory;
     private long size;
     private int  index;
     
-    private List<MemoryBlock> blocks = new ArrayList<>();
+    // Slot in the allocator chunk table, -1 for chunks the allocator does not own
+    private int id = -1;
+    
+    // Host-visible chunks stay mapped for their whole lifetime, 0 for chunks that can not be mapped
+    private long mappedPointer;
+    
+    private long freeSize;
+    private long requestedSize;
+    private int  freeBlockCount;
+    private int  usedBlockCount;
     
+    // The allocator frame this chunk became empty in, or -1 while it holds blocks
+    private long emptySince = -1;
     
-    public MemoryChunk(DeviceFamily deviceFamily, int memoryIndex, long size)
+    // Dedicated chunks hold a single large resource and are released as soon as it is freed
+    private boolean dedicated;
+    
+    // Draining chunks are being emptied by the defragmenter and get no new blocks, read by thread caches without the lock
+    private volatile boolean draining;
+    
+    // Set when a defragmentation pass could not move anything, cleared when the chunk changes
+    private boolean stalled;
+    
+    
+    protected MemoryChunk(DeviceMemoryBackend backend, int memoryIndex, long size)
     {
-        
-        VkMemoryAllocateInfo allocateInfo = VkMemoryAllocateInfo.calloc()
-                                                                .sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
-                                                                .memoryTypeIndex(memoryIndex)
-                                                                .allocationSize(size);
-        
-        LongBuffer handleHolder = memAllocLong(1);
-        EngineUtils.checkError(vkAllocateMemory(deviceFamily.getDevice(), allocateInfo, null, handleHolder));
-        
-        
-        this.memory = handleHolder.get(0);
-        this.device = deviceFamily.getDevice();
+        this.memory = backend.allocate(memoryIndex, size);
+        this.backend = backend;
         this.index = memoryIndex;
         this.size = size;
         
-        memFree(handleHolder);
-        allocateInfo.free();
-        
-        MemoryBlock block = new MemoryBlock();
-        block.setMemory(memory);
-        block.setOffset(0);
-        block.setSize(size);
-        block.free();
-        
-        blocks.add(block);
+        // Mapping the same memory twice is not allowed, so map it once here and hand out offsets into it
+        if (backend.isHostVisible(memoryIndex))
+        {
+            mappedPointer = backend.map(memory);
+        }
     }
     
     public int getMemoryIndex()
@@ -55,72 +66,223 @@ public class MemoryChunk
         return index;
     }
     
-    public void deallocate(MemoryBlock block)
+    /**
+     * Gets the VkDeviceMemory handle backing this chunk
+     */
+    public long getMemory()
+    {
+        return memory;
+    }
+    
+    /**
+     * Gets the size of this chunk (In bytes)
+     */
+    public long getSize()
+    {
+        return size;
+    }
+    
+    /**
+     * Gets the amount of unallocated bytes in this chunk
+     */
+    public long getFreeSize()
+    {
+        return freeSize;
+    }
+    
+    /**
+     * Gets the amount of bytes callers asked for, which can be less than what was handed out
+     */
+    public long getRequestedSize()
+    {
+        return requestedSize;
+    }
+    
+    public int getFreeBlockCount()
+    {
+        return freeBlockCount;
+    }
+    
+    public int getUsedBlockCount()
+    {
+        return usedBlockCount;
+    }
+    
+    /**
+     * Gets the host address of offset 0 in this chunk, or 0 if the chunk is not host-visible
+     */
+    public long getMappedPointer()
+    {
+        return mappedPointer;
+    }
+    
+    public boolean isEmpty()
+    {
+        return usedBlockCount == 0;
+    }
+    
+    public boolean isDedicated()
+    {
+        return dedicated;
+    }
+    
+    void setDedicated(boolean dedicated)
+    {
+        this.dedicated = dedicated;
+    }
+    
+    boolean isDraining()
+    {
+        return draining;
+    }
+    
+    void setDraining(boolean draining)
     {
-        blocks.stream().filter(a -> a.equals(block)).findFirst().ifPresent(MemoryBlock::free);
+        this.draining = draining;
     }
     
+    boolean isStalled()
+    {
+        return stalled;
+    }
+    
+    void setStalled(boolean stalled)
+    {
+        this.stalled = stalled;
+    }
+    
+    int getId()
+    {
+        return id;
+    }
+    
+    void setId(int id)
+    {
+        this.id = id;
+    }
+    
+    long getEmptySince()
+    {
+        return emptySince;
+    }
+    
+    void setEmptySince(long emptySince)
+    {
+        this.emptySince = emptySince;
+    }
+    
+    /**
+     * Gets the size of the largest block that could be handed out without padding (In bytes)
+     */
+    public abstract long getLargestFreeBlock();
+    
+    public abstract AllocationStrategy getStrategy();
+    
+    /**
+     * Allocates a block without creating any objects
+     *
+     * @return the handle of the block, or NO_HANDLE if it does not fit
+     */
+    public abstract long allocateHandle(long requestSize, long alignment);
+    
+    /**
+     * Frees the block, handles that are stale or already freed are ignored
+     */
+    public abstract void deallocate(long handle);
+    
+    /**
+     * Checks that the handle refers to a block that is still allocated
+     */
+    public abstract boolean isAllocated(long handle);
+    
+    public abstract long getOffset(long handle);
+    
+    public abstract long getSize(long handle);
+    
+    public abstract long getRequestedSize(long handle);
+    
+    public abstract long getAlignment(long handle);
+    
+    /**
+     * Gets the object bound to the block, blocks without an owner are never moved
+     */
+    public abstract Object getOwner(long handle);
+    
+    public abstract void setOwner(long handle, Object owner);
+    
+    /**
+     * Gives the block a new generation while it stays allocated, so the current handle goes stale
+     *
+     * @return the new handle of the block
+     */
+    abstract long reissue(long handle);
+    
     public MemoryBlock allocate(long requestSize, long alignment)
     {
-        // TODO: take alignment into consideration
-        
-        if (requestSize > size)
+        long handle = allocateHandle(requestSize, alignment);
+        if (handle == NO_HANDLE)
         {
             return null;
         }
         
-        for (int i = 0; i < blocks.size(); i++)
+        return new MemoryBlock(this, handle);
+    }
+    
+    public void deallocate(MemoryBlock block)
+    {
+        if (block.getChunk() == this)
         {
-            MemoryBlock currentBlock = blocks.get(i);
-            
-            
-            if (currentBlock.isFree())
-            {
-                // TODO: Better defragmentation
-                if (i > 0)
-                {
-                    MemoryBlock prevBlock = blocks.get(i - 1);
-                    if (prevBlock.isFree())
-                    {
-                        prevBlock.setSize(prevBlock.getSize() + currentBlock.getSize());
-                        blocks.remove(currentBlock);
-                        return allocate(requestSize, alignment);
-                    }
-                }
-                
-                if (currentBlock.getSize() >= requestSize)
-                {
-                    if (currentBlock.getSize() == requestSize)
-                    {
-                        currentBlock.take();
-                        return currentBlock;
-                    }
-                    
-                    
-                    MemoryBlock nextBlock = new MemoryBlock();
-                    nextBlock.setSize(currentBlock.getSize() - requestSize);
-                    nextBlock.setOffset(currentBlock.getOffset() + requestSize);
-                    nextBlock.setMemory(memory);
-                    nextBlock.free();
-                    blocks.add(nextBlock);
-                    
-                    currentBlock.setSize(requestSize);
-                    currentBlock.take();
-                    
-                    return currentBlock;
-                }
-            }
+            deallocate(block.getHandle());
         }
-        return null;
     }
     
     public void free()
     {
-        vkFreeMemory(device, memory, null);
+        if (mappedPointer != 0)
+        {
+            backend.unmap(memory);
+            mappedPointer = 0;
+        }
+        
+        backend.free(memory);
     }
     
     public boolean hasBlock(MemoryBlock block)
     {
-        return blocks.stream().anyMatch(a -> a.equals(block));
+        return block.getChunk() == this && isAllocated(block.getHandle());
+    }
+    
+    static int nodeOf(long handle)
+    {
+        return (int) handle;
+    }
+    
+    static int generationOf(long handle)
+    {
+        return (int) (handle >>> 32) & GENERATION_MASK;
+    }
+    
+    /**
+     * Updates the free counters, negative values take space away
+     */
+    protected void addFreeSpace(long size, int blockCount)
+    {
+        freeSize += size;
+        freeBlockCount += blockCount;
+    }
+    
+    /**
+     * Updates the used counters when blocks are handed out or given back, negative values give space back
+     */
+    protected void addUsedSpace(long requestSize, int blockCount)
+    {
+        requestedSize += requestSize;
+        usedBlockCount += blockCount;
+        stalled = false;
+        
+        if (isEmpty())
+        {
+            draining = false;
+        }
     }
-}
\ No newline at end of file
+}
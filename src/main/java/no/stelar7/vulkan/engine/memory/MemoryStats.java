@@ -0,0 +1,248 @@
+package no.stelar7.vulkan.engine.memory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Locale;
+
+/**
+ * A snapshot of what the allocator holds and how it has been used, per memory type.
+ * <p>
+ * Latencies are measured around the whole call, including waiting for the lock of the memory type.
+ */
+public class MemoryStats
+{
+    private final int                   memoryTypeCount;
+    private final FragmentationReport[] reports;
+    
+    private final long[]   allocationCount;
+    private final long[]   allocationNanos;
+    private final long[]   maxAllocationNanos;
+    private final long[]   cacheHitCount;
+    private final long[]   failedCount;
+    private final long[]   freeCount;
+    private final long[]   freeNanos;
+    private final long[]   maxFreeNanos;
+    private final long[][] sizeHistograms;
+    
+    private final long committedSize;
+    private final long reclaimedSize;
+    private final int  reclaimedChunkCount;
+    
+    MemoryStats(MemoryAllocator allocator, AllocationCounters counters, int memoryTypeCount)
+    {
+        this.memoryTypeCount = memoryTypeCount;
+        this.reports = new FragmentationReport[memoryTypeCount];
+        this.allocationCount = new long[memoryTypeCount];
+        this.allocationNanos = new long[memoryTypeCount];
+        this.maxAllocationNanos = new long[memoryTypeCount];
+        this.cacheHitCount = new long[memoryTypeCount];
+        this.failedCount = new long[memoryTypeCount];
+        this.freeCount = new long[memoryTypeCount];
+        this.freeNanos = new long[memoryTypeCount];
+        this.maxFreeNanos = new long[memoryTypeCount];
+        this.sizeHistograms = new long[memoryTypeCount][];
+        
+        long committed = 0;
+        for (int i = 0; i < memoryTypeCount; i++)
+        {
+            reports[i] = allocator.getFragmentationReport(i);
+            committed += reports[i].getTotalSize();
+            
+            allocationCount[i] = counters.getAllocationCount(i);
+            allocationNanos[i] = counters.getAllocationNanos(i);
+            maxAllocationNanos[i] = counters.getMaxAllocationNanos(i);
+            cacheHitCount[i] = counters.getCacheHitCount(i);
+            failedCount[i] = counters.getFailedCount(i);
+            freeCount[i] = counters.getFreeCount(i);
+            freeNanos[i] = counters.getFreeNanos(i);
+            maxFreeNanos[i] = counters.getMaxFreeNanos(i);
+            sizeHistograms[i] = counters.getSizeHistogram(i);
+        }
+        
+        this.committedSize = committed;
+        this.reclaimedSize = allocator.getReclaimedSize();
+        this.reclaimedChunkCount = allocator.getReclaimedChunkCount();
+    }
+    
+    public int getMemoryTypeCount()
+    {
+        return memoryTypeCount;
+    }
+    
+    /**
+     * Gets the chunk count, used and free bytes, block counts and fragmentation of the memory type
+     */
+    public FragmentationReport getReport(int memoryIndex)
+    {
+        return reports[memoryIndex];
+    }
+    
+    public long getAllocationCount(int memoryIndex)
+    {
+        return allocationCount[memoryIndex];
+    }
+    
+    /**
+     * Gets how many allocations were served from a thread cache without locking
+     */
+    public long getCacheHitCount(int memoryIndex)
+    {
+        return cacheHitCount[memoryIndex];
+    }
+    
+    /**
+     * Gets how many allocations returned nothing
+     */
+    public long getFailedCount(int memoryIndex)
+    {
+        return failedCount[memoryIndex];
+    }
+    
+    public long getFreeCount(int memoryIndex)
+    {
+        return freeCount[memoryIndex];
+    }
+    
+    /**
+     * Gets the mean time an allocation took (In nanoseconds)
+     */
+    public double getMeanAllocationNanos(int memoryIndex)
+    {
+        return (allocationCount[memoryIndex] == 0) ? 0 : (double) allocationNanos[memoryIndex] / allocationCount[memoryIndex];
+    }
+    
+    public long getMaxAllocationNanos(int memoryIndex)
+    {
+        return maxAllocationNanos[memoryIndex];
+    }
+    
+    /**
+     * Gets the mean time a free took (In nanoseconds)
+     */
+    public double getMeanFreeNanos(int memoryIndex)
+    {
+        return (freeCount[memoryIndex] == 0) ? 0 : (double) freeNanos[memoryIndex] / freeCount[memoryIndex];
+    }
+    
+    public long getMaxFreeNanos(int memoryIndex)
+    {
+        return maxFreeNanos[memoryIndex];
+    }
+    
+    /**
+     * Gets the number of allocations per size, entry n counts sizes in (2^(n-1), 2^n] bytes
+     */
+    public long[] getSizeHistogram(int memoryIndex)
+    {
+        return sizeHistograms[memoryIndex].clone();
+    }
+    
+    /**
+     * Gets the amount of bytes allocated from the driver
+     */
+    public long getCommittedSize()
+    {
+        return committedSize;
+    }
+    
+    public long getReclaimedSize()
+    {
+        return reclaimedSize;
+    }
+    
+    public int getReclaimedChunkCount()
+    {
+        return reclaimedChunkCount;
+    }
+    
+    /**
+     * Formats the snapshot as JSON, memory types that were never used are left out
+     */
+    public String toJson()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"committedSize\": ").append(committedSize).append(",\n");
+        json.append("  \"reclaimedSize\": ").append(reclaimedSize).append(",\n");
+        json.append("  \"reclaimedChunkCount\": ").append(reclaimedChunkCount).append(",\n");
+        json.append("  \"memoryTypes\": [");
+        
+        boolean first = true;
+        for (int i = 0; i < memoryTypeCount; i++)
+        {
+            FragmentationReport report = reports[i];
+            if (report.getChunkCount() == 0 && allocationCount[i] == 0)
+            {
+                continue;
+            }
+            
+            json.append(first ? "\n" : ",\n");
+            first = false;
+            
+            json.append("    {\n");
+            json.append("      \"memoryIndex\": ").append(i).append(",\n");
+            json.append("      \"strategy\": \"").append(report.getStrategy()).append("\",\n");
+            json.append("      \"chunkCount\": ").append(report.getChunkCount()).append(",\n");
+            json.append("      \"committedSize\": ").append(report.getTotalSize()).append(",\n");
+            json.append("      \"usedSize\": ").append(report.getUsedSize()).append(",\n");
+            json.append("      \"requestedSize\": ").append(report.getRequestedSize()).append(",\n");
+            json.append("      \"freeSize\": ").append(report.getFreeSize()).append(",\n");
+            json.append("      \"largestFreeBlock\": ").append(report.getLargestFreeBlock()).append(",\n");
+            json.append("      \"usedBlockCount\": ").append(report.getUsedBlockCount()).append(",\n");
+            json.append("      \"freeBlockCount\": ").append(report.getFreeBlockCount()).append(",\n");
+            json.append("      \"externalFragmentation\": ").append(format(report.getExternalFragmentation())).append(",\n");
+            json.append("      \"internalFragmentation\": ").append(format(report.getInternalFragmentation())).append(",\n");
+            json.append("      \"allocationCount\": ").append(allocationCount[i]).append(",\n");
+            json.append("      \"cacheHitCount\": ").append(cacheHitCount[i]).append(",\n");
+            json.append("      \"failedCount\": ").append(failedCount[i]).append(",\n");
+            json.append("      \"freeCount\": ").append(freeCount[i]).append(",\n");
+            json.append("      \"meanAllocationNanos\": ").append(format(getMeanAllocationNanos(i))).append(",\n");
+            json.append("      \"maxAllocationNanos\": ").append(maxAllocationNanos[i]).append(",\n");
+            json.append("      \"meanFreeNanos\": ").append(format(getMeanFreeNanos(i))).append(",\n");
+            json.append("      \"maxFreeNanos\": ").append(maxFreeNanos[i]).append(",\n");
+            json.append("      \"sizeHistogram\": {");
+            
+            boolean firstBucket = true;
+            for (int bucket = 0; bucket < sizeHistograms[i].length; bucket++)
+            {
+                if (sizeHistograms[i][bucket] == 0)
+                {
+                    continue;
+                }
+                
+                json.append(firstBucket ? "" : ", ");
+                json.append('"').append(1L << bucket).append("\": ").append(sizeHistograms[i][bucket]);
+                firstBucket = false;
+            }
+            
+            json.append("}\n");
+            json.append("    }");
+        }
+        
+        json.append(first ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+    
+    /**
+     * Writes the JSON form of the snapshot to the file, replacing it if it exists
+     *
+     * @throws UncheckedIOException if the file could not be written
+     */
+    public void writeJson(Path path)
+    {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8))
+        {
+            writer.write(toJson());
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException("Failed to write memory stats to " + path, e);
+        }
+    }
+    
+    private static String format(double value)
+    {
+        return String.format(Locale.ROOT, "%.4f", value);
+    }
+}
@@ -0,0 +1,104 @@
+package no.stelar7.vulkan.engine.memory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Hands out plain off-heap memory instead of device memory, so the allocator can run without a GPU.
+ * <p>
+ * Every memory type is host-visible, and the handle of an allocation is its address.
+ */
+public class OffHeapMemoryBackend implements DeviceMemoryBackend
+{
+    private int  memoryTypeCount;
+    private long heapSize;
+    
+    private Map<Long, Long> allocations   = new ConcurrentHashMap<>();
+    private AtomicLong      allocatedSize = new AtomicLong();
+    private AtomicLong      peakSize      = new AtomicLong();
+    
+    /**
+     * @param heapSize the size every memory type reports for its heap, allocations are not limited by it
+     */
+    public OffHeapMemoryBackend(int memoryTypeCount, long heapSize)
+    {
+        this.memoryTypeCount = memoryTypeCount;
+        this.heapSize = heapSize;
+    }
+    
+    @Override
+    public int getMemoryTypeCount()
+    {
+        return memoryTypeCount;
+    }
+    
+    @Override
+    public long getHeapSize(int memoryIndex)
+    {
+        return heapSize;
+    }
+    
+    @Override
+    public boolean isHostVisible(int memoryIndex)
+    {
+        return true;
+    }
+    
+    @Override
+    public long allocate(int memoryIndex, long size)
+    {
+        long memory = nmemAlloc(size);
+        if (memory == NULL)
+        {
+            throw new OutOfMemoryError("Unable to allocate " + size + " bytes of off-heap memory");
+        }
+        
+        allocations.put(memory, size);
+        peakSize.accumulateAndGet(allocatedSize.addAndGet(size), Math::max);
+        return memory;
+    }
+    
+    @Override
+    public void free(long memory)
+    {
+        Long size = allocations.remove(memory);
+        if (size == null)
+        {
+            throw new IllegalArgumentException("Memory at " + memory + " was not allocated by this backend");
+        }
+        
+        allocatedSize.addAndGet(-size);
+        nmemFree(memory);
+    }
+    
+    @Override
+    public long map(long memory)
+    {
+        return memory;
+    }
+    
+    @Override
+    public void unmap(long memory)
+    {
+        // Always mapped
+    }
+    
+    /**
+     * Gets the amount of bytes currently allocated
+     */
+    public long getAllocatedSize()
+    {
+        return allocatedSize.get();
+    }
+    
+    /**
+     * Gets the largest amount of bytes that has been allocated at once
+     */
+    public long getPeakAllocatedSize()
+    {
+        return peakSize.get();
+    }
+}
@@ -0,0 +1,170 @@
+package no.stelar7.vulkan.engine.memory;
+
+/**
+ * A chunk cut into equal power-of-two slots, for the many small allocations that would otherwise fragment the general chunks.
+ * <p>
+ * Free slots are tracked in a bitmap with one summary word on top, so finding and releasing a slot is a couple of bit scans.
+ * Each slot only costs a generation and its requested size, and slots are never moved by the defragmenter.
+ */
+public class SlabMemoryChunk extends MemoryChunk
+{
+    // A single summary word covers the whole bitmap
+    static final int MAX_SLOTS = Long.SIZE * Long.SIZE;
+    
+    private long slotSize;
+    private int  slotCount;
+    
+    // A set bit means the slot is free, and a set summary bit means the word has a free slot
+    private long   summary;
+    private long[] freeSlots;
+    
+    private short[] generations;
+    private int[]   requestedSizes;
+    
+    public SlabMemoryChunk(DeviceMemoryBackend backend, int memoryIndex, long size, long slotSize)
+    {
+        super(backend, memoryIndex, size);
+        
+        if (Long.bitCount(slotSize) != 1 || size / slotSize > MAX_SLOTS)
+        {
+            throw new IllegalArgumentException("Slab slots must be a power of two, and there can be at most " + MAX_SLOTS + " of them, got " + size + "/" + slotSize);
+        }
+        
+        this.slotSize = slotSize;
+        this.slotCount = (int) (size / slotSize);
+        this.freeSlots = new long[(slotCount + Long.SIZE - 1) / Long.SIZE];
+        this.generations = new short[slotCount];
+        this.requestedSizes = new int[slotCount];
+        
+        for (int slot = 0; slot < slotCount; slot++)
+        {
+            freeSlots[slot / Long.SIZE] |= 1L << slot;
+        }
+        for (int word = 0; word < freeSlots.length; word++)
+        {
+            summary |= 1L << word;
+        }
+        
+        addFreeSpace(slotCount * slotSize, slotCount);
+    }
+    
+    /**
+     * Gets the size of every slot in this slab (In bytes)
+     */
+    public long getSlotSize()
+    {
+        return slotSize;
+    }
+    
+    @Override
+    public AllocationStrategy getStrategy()
+    {
+        return AllocationStrategy.SLAB;
+    }
+    
+    @Override
+    public long getLargestFreeBlock()
+    {
+        return (summary != 0) ? slotSize : 0;
+    }
+    
+    @Override
+    public long allocateHandle(long requestSize, long alignment)
+    {
+        if (requestSize <= 0 || requestSize > slotSize || Math.max(alignment, 1) > slotSize || summary == 0)
+        {
+            return NO_HANDLE;
+        }
+        
+        int word = Long.numberOfTrailingZeros(summary);
+        int slot = word * Long.SIZE + Long.numberOfTrailingZeros(freeSlots[word]);
+        
+        freeSlots[word] &= ~(1L << slot);
+        if (freeSlots[word] == 0)
+        {
+            summary &= ~(1L << word);
+        }
+        
+        requestedSizes[slot] = (int) requestSize;
+        addFreeSpace(-slotSize, -1);
+        addUsedSpace(requestSize, 1);
+        
+        return ((long) (generations[slot] & 0xFFFF) << 32) | slot;
+    }
+    
+    @Override
+    public void deallocate(long handle)
+    {
+        if (!isAllocated(handle))
+        {
+            return;
+        }
+        
+        int slot = nodeOf(handle);
+        int word = slot / Long.SIZE;
+        
+        generations[slot]++;
+        freeSlots[word] |= 1L << slot;
+        summary |= 1L << word;
+        
+        addFreeSpace(slotSize, 1);
+        addUsedSpace(-requestedSizes[slot], -1);
+    }
+    
+    @Override
+    long reissue(long handle)
+    {
+        int slot = nodeOf(handle);
+        generations[slot]++;
+        return ((long) (generations[slot] & 0xFFFF) << 32) | slot;
+    }
+    
+    @Override
+    public boolean isAllocated(long handle)
+    {
+        int slot = nodeOf(handle);
+        return slot >= 0 && slot < slotCount && (generations[slot] & 0xFFFF) == generationOf(handle) && (freeSlots[slot / Long.SIZE] & (1L << slot)) == 0;
+    }
+    
+    @Override
+    public long getOffset(long handle)
+    {
+        return nodeOf(handle) * slotSize;
+    }
+    
+    @Override
+    public long getSize(long handle)
+    {
+        return slotSize;
+    }
+    
+    @Override
+    public long getRequestedSize(long handle)
+    {
+        return requestedSizes[nodeOf(handle)];
+    }
+    
+    /**
+     * Slots are placed at multiples of the slot size, so that is their alignment
+     */
+    @Override
+    public long getAlignment(long handle)
+    {
+        return slotSize;
+    }
+    
+    /**
+     * Slots do not track owners, so they are never picked for moving
+     */
+    @Override
+    public Object getOwner(long handle)
+    {
+        return null;
+    }
+    
+    @Override
+    public void setOwner(long handle, Object owner)
+    {
+        // Slots are never moved, so there is nothing to record
+    }
+}
@@ -0,0 +1,184 @@
+package no.stelar7.vulkan.engine.memory;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Small blocks freed by a single thread, kept so the same sizes can be handed out again without searching their chunk.
+ * <p>
+ * Cached blocks stay taken in their chunk under a new generation, so the views and handles they were freed through are stale.
+ * Every bin is kept shallow to bound how much memory can sit here.
+ * <p>
+ * The owning thread is the only one that puts and takes, other threads only drain, so the lock is almost never contended.
+ */
+class ThreadBlockCache
+{
+    // Blocks larger than this always go back to their chunk
+    static final long MAX_BLOCK_SIZE = 64 * 1024;
+    
+    private static final int SIZE_CLASSES = 17;
+    private static final int BIN_DEPTH    = 8;
+    
+    private final MemoryBlock[][] bins   = new MemoryBlock[VK_MAX_MEMORY_TYPES * SIZE_CLASSES][];
+    private final int[]           counts = new int[VK_MAX_MEMORY_TYPES * SIZE_CLASSES];
+    private final ReentrantLock   lock   = new ReentrantLock();
+    
+    // Weak, so a cache left behind by a thread that has died does not keep the thread around
+    private final WeakReference<Thread> thread;
+    
+    ThreadBlockCache(Thread thread)
+    {
+        this.thread = new WeakReference<>(thread);
+    }
+    
+    /**
+     * Checks if the thread that owns this cache has died, nothing will be taken from it again
+     */
+    boolean isOrphaned()
+    {
+        Thread owner = thread.get();
+        return owner == null || !owner.isAlive();
+    }
+    
+    /**
+     * Takes a cached block that was requested with exactly this size and fits the alignment
+     *
+     * @return the block, or null if there is none
+     */
+    MemoryBlock take(long size, long alignment, int memoryIndex)
+    {
+        int bin = getBin(size, memoryIndex);
+        
+        lock.lock();
+        try
+        {
+            MemoryBlock[] blocks = bins[bin];
+            for (int i = counts[bin] - 1; i >= 0; i--)
+            {
+                MemoryBlock block = blocks[i];
+                // The block keeps the alignment it was allocated with, so it must be at least as strict
+                if (block.getRequestedSize() != size || block.getAlignment() % alignment != 0 || block.getChunk().isDraining())
+                {
+                    continue;
+                }
+                
+                blocks[i] = blocks[--counts[bin]];
+                blocks[counts[bin]] = null;
+                return block;
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Checks if a freed block could be cached, without reserving room for it
+     */
+    boolean accepts(MemoryBlock block)
+    {
+        MemoryChunk chunk = block.getChunk();
+        if (block.getRequestedSize() > MAX_BLOCK_SIZE || chunk.isDedicated() || chunk.isDraining())
+        {
+            return false;
+        }
+        
+        lock.lock();
+        try
+        {
+            return counts[getBin(block.getRequestedSize(), chunk.getMemoryIndex())] < BIN_DEPTH;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * @param block a view of the block under its new generation, that has not been handed to anyone
+     * @return false if the block can not be cached and has to be returned to its chunk
+     */
+    boolean put(MemoryBlock block)
+    {
+        MemoryChunk chunk = block.getChunk();
+        int         bin   = getBin(block.getRequestedSize(), chunk.getMemoryIndex());
+        
+        lock.lock();
+        try
+        {
+            if (counts[bin] == BIN_DEPTH || chunk.isDraining())
+            {
+                return false;
+            }
+            
+            if (bins[bin] == null)
+            {
+                bins[bin] = new MemoryBlock[BIN_DEPTH];
+            }
+            
+            bins[bin][counts[bin]++] = block;
+            return true;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Empties the cache, handing every block to the consumer
+     */
+    void drain(Consumer<MemoryBlock> consumer)
+    {
+        for (int index = 0; index < VK_MAX_MEMORY_TYPES; index++)
+        {
+            drain(index, consumer);
+        }
+    }
+    
+    /**
+     * Empties the bins of the memory type, handing every block to the consumer.
+     * The consumer is called after the lock is released, so it may take the allocator locks.
+     */
+    void drain(int memoryIndex, Consumer<MemoryBlock> consumer)
+    {
+        List<MemoryBlock> drained = null;
+        
+        lock.lock();
+        try
+        {
+            for (int bin = memoryIndex * SIZE_CLASSES; bin < (memoryIndex + 1) * SIZE_CLASSES; bin++)
+            {
+                while (counts[bin] > 0)
+                {
+                    if (drained == null)
+                    {
+                        drained = new ArrayList<>();
+                    }
+                    
+                    drained.add(bins[bin][--counts[bin]]);
+                    bins[bin][counts[bin]] = null;
+                }
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+        
+        if (drained != null)
+        {
+            drained.forEach(consumer);
+        }
+    }
+    
+    private static int getBin(long size, int memoryIndex)
+    {
+        // Rounded up to the next power of two, so a bin holds sizes within a factor of two
+        int sizeClass = 64 - Long.numberOfLeadingZeros(size - 1);
+        return memoryIndex * SIZE_CLASSES + sizeClass;
+    }
+}
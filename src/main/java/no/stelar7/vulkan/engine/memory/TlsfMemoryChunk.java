@@ -0,0 +1,231 @@
+package no.stelar7.vulkan.engine.memory;
+
+import java.util.Arrays;
+
+/**
+ * A chunk sub-allocated with a two-level segregated fit (TLSF) allocator.
+ * <p>
+ * Free blocks are binned by the position of their most significant bit (first level),
+ * and then linearly into SL_INDEX_COUNT bins (second level).
+ * A bitmap per level lets us find a suitable bin in constant time, and every block knows its physical neighbours so frees coalesce in constant time.
+ */
+public class TlsfMemoryChunk extends BlockMemoryChunk
+{
+    private static final int SL_INDEX_COUNT_LOG2 = 5;
+    private static final int SL_INDEX_COUNT      = 1 << SL_INDEX_COUNT_LOG2;
+    
+    // Sizes below SMALL_BLOCK_SIZE all live in the first level, split linearly
+    private static final int  FL_INDEX_SHIFT   = SL_INDEX_COUNT_LOG2 + 3;
+    private static final int  FL_INDEX_COUNT   = Long.SIZE - FL_INDEX_SHIFT;
+    private static final long SMALL_BLOCK_SIZE = 1L << FL_INDEX_SHIFT;
+    
+    private long  flBitmap;
+    private int[] slBitmap   = new int[FL_INDEX_COUNT];
+    private int[] freeBlocks = new int[FL_INDEX_COUNT * SL_INDEX_COUNT];
+    
+    
+    public TlsfMemoryChunk(DeviceMemoryBackend backend, int memoryIndex, long size)
+    {
+        super(backend, memoryIndex, size);
+        
+        Arrays.fill(freeBlocks, NIL);
+        insertFreeBlock(createRootBlock());
+    }
+    
+    @Override
+    public AllocationStrategy getStrategy()
+    {
+        return AllocationStrategy.TLSF;
+    }
+    
+    @Override
+    public long getLargestFreeBlock()
+    {
+        if (flBitmap == 0)
+        {
+            return 0;
+        }
+        
+        int fl = 63 - Long.numberOfLeadingZeros(flBitmap);
+        int sl = 31 - Integer.numberOfLeadingZeros(slBitmap[fl]);
+        
+        // Blocks in a bin are not sorted, so walk the top bin
+        long largest = 0;
+        for (int node = freeBlocks[fl * SL_INDEX_COUNT + sl]; node != NIL; node = getNextFree(node))
+        {
+            largest = Math.max(largest, getSize(node));
+        }
+        return largest;
+    }
+    
+    @Override
+    protected void deallocateBlock(int node)
+    {
+        int prev = getPrevPhysical(node);
+        if (prev != NIL && isFree(prev))
+        {
+            removeFreeBlock(prev);
+            node = absorb(prev, node);
+        }
+        
+        int next = getNextPhysical(node);
+        if (next != NIL && isFree(next))
+        {
+            removeFreeBlock(next);
+            node = absorb(node, next);
+        }
+        
+        insertFreeBlock(node);
+    }
+    
+    @Override
+    protected int allocateBlock(long requestSize, long align)
+    {
+        // Try a good fit first, most blocks are already aligned
+        int node = findFreeBlock(requestSize);
+        if (node == NIL || alignUp(getOffset(node), align) + requestSize > getOffset(node) + getSize(node))
+        {
+            // Fall back to a block that is guaranteed to fit after padding
+            node = findFreeBlock(requestSize + align - 1);
+            if (node == NIL)
+            {
+                return NIL;
+            }
+        }
+        
+        removeFreeBlock(node);
+        
+        long padding = alignUp(getOffset(node), align) - getOffset(node);
+        if (padding > 0)
+        {
+            int aligned = split(node, padding);
+            insertFreeBlock(node);
+            node = aligned;
+        }
+        
+        if (getSize(node) > requestSize)
+        {
+            insertFreeBlock(split(node, requestSize));
+        }
+        
+        return node;
+    }
+    
+    private int findFreeBlock(long requestSize)
+    {
+        long searchSize = requestSize;
+        if (searchSize < SMALL_BLOCK_SIZE)
+        {
+            searchSize = alignUp(searchSize, SMALL_BLOCK_SIZE / SL_INDEX_COUNT);
+        }
+        
+        if (searchSize >= SMALL_BLOCK_SIZE)
+        {
+            // Round up to the next bin, so any block in it is large enough
+            searchSize += (1L << (63 - Long.numberOfLeadingZeros(searchSize) - SL_INDEX_COUNT_LOG2)) - 1;
+        }
+        
+        int fl = firstLevelIndex(searchSize);
+        int sl = secondLevelIndex(searchSize, fl);
+        
+        if (fl >= FL_INDEX_COUNT)
+        {
+            return NIL;
+        }
+        
+        int slMap = slBitmap[fl] & (-1 << sl);
+        if (slMap == 0)
+        {
+            long flMap = (fl + 1 < FL_INDEX_COUNT) ? (flBitmap & (-1L << (fl + 1))) : 0;
+            if (flMap == 0)
+            {
+                return NIL;
+            }
+            
+            fl = Long.numberOfTrailingZeros(flMap);
+            slMap = slBitmap[fl];
+        }
+        
+        sl = Integer.numberOfTrailingZeros(slMap);
+        return freeBlocks[fl * SL_INDEX_COUNT + sl];
+    }
+    
+    private void insertFreeBlock(int node)
+    {
+        int fl  = firstLevelIndex(getSize(node));
+        int sl  = secondLevelIndex(getSize(node), fl);
+        int bin = fl * SL_INDEX_COUNT + sl;
+        
+        int head = freeBlocks[bin];
+        setPrevFree(node, NIL);
+        setNextFree(node, head);
+        if (head != NIL)
+        {
+            setPrevFree(head, node);
+        }
+        freeBlocks[bin] = node;
+        
+        flBitmap |= 1L << fl;
+        slBitmap[fl] |= 1 << sl;
+        
+        markFree(node);
+    }
+    
+    private void removeFreeBlock(int node)
+    {
+        int fl  = firstLevelIndex(getSize(node));
+        int sl  = secondLevelIndex(getSize(node), fl);
+        int bin = fl * SL_INDEX_COUNT + sl;
+        
+        int prev = getPrevFree(node);
+        int next = getNextFree(node);
+        
+        if (prev != NIL)
+        {
+            setNextFree(prev, next);
+        }
+        if (next != NIL)
+        {
+            setPrevFree(next, prev);
+        }
+        
+        if (freeBlocks[bin] == node)
+        {
+            freeBlocks[bin] = next;
+            if (next == NIL)
+            {
+                slBitmap[fl] &= ~(1 << sl);
+                if (slBitmap[fl] == 0)
+                {
+                    flBitmap &= ~(1L << fl);
+                }
+            }
+        }
+        
+        setPrevFree(node, NIL);
+        setNextFree(node, NIL);
+        
+        markTaken(node);
+    }
+    
+    private static int firstLevelIndex(long size)
+    {
+        if (size < SMALL_BLOCK_SIZE)
+        {
+            return 0;
+        }
+        
+        return (63 - Long.numberOfLeadingZeros(size)) - (FL_INDEX_SHIFT - 1);
+    }
+    
+    private static int secondLevelIndex(long size, int fl)
+    {
+        if (fl == 0)
+        {
+            return (int) (size / (SMALL_BLOCK_SIZE / SL_INDEX_COUNT));
+        }
+        
+        int msb = fl + (FL_INDEX_SHIFT - 1);
+        return (int) (size >>> (msb - SL_INDEX_COUNT_LOG2)) ^ SL_INDEX_COUNT;
+    }
+}
@@ -0,0 +1,55 @@
+package no.stelar7.vulkan.engine.memory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out handles without any memory behind them, so a chunk can keep track of ranges in something that lives elsewhere, like a VkBuffer.
+ * <p>
+ * There is a single memory type, and nothing can be mapped.
+ */
+public class VirtualMemoryBackend implements DeviceMemoryBackend
+{
+    private AtomicLong nextHandle = new AtomicLong(1);
+    
+    @Override
+    public int getMemoryTypeCount()
+    {
+        return 1;
+    }
+    
+    @Override
+    public long getHeapSize(int memoryIndex)
+    {
+        return Long.MAX_VALUE;
+    }
+    
+    @Override
+    public boolean isHostVisible(int memoryIndex)
+    {
+        return false;
+    }
+    
+    @Override
+    public long allocate(int memoryIndex, long size)
+    {
+        return nextHandle.getAndIncrement();
+    }
+    
+    @Override
+    public void free(long memory)
+    {
+        // Nothing to free
+    }
+    
+    @Override
+    public long map(long memory)
+    {
+        throw new UnsupportedOperationException("Virtual memory can not be mapped");
+    }
+    
+    @Override
+    public void unmap(long memory)
+    {
+        throw new UnsupportedOperationException("Virtual memory can not be mapped");
+    }
+}
@@ -0,0 +1,86 @@
+package no.stelar7.vulkan.engine.memory;
+
+import no.stelar7.vulkan.engine.EngineUtils;
+import no.stelar7.vulkan.engine.renderer.DeviceFamily;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.vulkan.*;
+
+import java.nio.LongBuffer;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Allocates chunks as VkDeviceMemory from the device
+ */
+public class VulkanMemoryBackend implements DeviceMemoryBackend
+{
+    private VkDevice                         device;
+    private VkPhysicalDeviceMemoryProperties memoryProperties;
+    
+    public VulkanMemoryBackend(DeviceFamily deviceFamily)
+    {
+        this.device = deviceFamily.getDevice();
+        this.memoryProperties = deviceFamily.getMemoryProperties();
+    }
+    
+    @Override
+    public int getMemoryTypeCount()
+    {
+        return memoryProperties.memoryTypeCount();
+    }
+    
+    @Override
+    public long getHeapSize(int memoryIndex)
+    {
+        return memoryProperties.memoryHeaps(memoryProperties.memoryTypes(memoryIndex).heapIndex()).size();
+    }
+    
+    @Override
+    public boolean isHostVisible(int memoryIndex)
+    {
+        int flags = memoryProperties.memoryTypes(memoryIndex).propertyFlags();
+        return (flags & VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT) == VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT;
+    }
+    
+    @Override
+    public long allocate(int memoryIndex, long size)
+    {
+        VkMemoryAllocateInfo allocateInfo = VkMemoryAllocateInfo.calloc()
+                                                                .sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
+                                                                .memoryTypeIndex(memoryIndex)
+                                                                .allocationSize(size);
+        
+        LongBuffer handleHolder = memAllocLong(1);
+        EngineUtils.checkError(vkAllocateMemory(device, allocateInfo, null, handleHolder));
+        long memory = handleHolder.get(0);
+        
+        memFree(handleHolder);
+        allocateInfo.free();
+        
+        return memory;
+    }
+    
+    @Override
+    public void free(long memory)
+    {
+        vkFreeMemory(device, memory, null);
+    }
+    
+    @Override
+    public long map(long memory)
+    {
+        PointerBuffer pointerHolder = memAllocPointer(1);
+        EngineUtils.checkError(vkMapMemory(device, memory, 0, VK_WHOLE_SIZE, 0, pointerHolder));
+        long pointer = pointerHolder.get(0);
+        memFree(pointerHolder);
+        
+        return pointer;
+    }
+    
+    @Override
+    public void unmap(long memory)
+    {
+        vkUnmapMemory(device, memory);
+    }
+}
@@ -0,0 +1,581 @@
+package no.stelar7.vulkan.engine.mesh;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Imports glTF 2.0 files, both .gltf files with their buffers in other files or data URIs, and .glb files with the buffer inside.
+ * <p>
+ * Every triangle list primitive in the default scene is read, with the transforms of its nodes applied to the positions.
+ * The primitives are converted by separate tasks on a fork-join pool, and then merged so equal vertices are stored once.
+ * <p>
+ * Only POSITION and COLOR_0 are read, since VertexSpec has no room for other attributes. Vertices without a color are white.
+ */
+final class GltfImporter
+{
+    private static final int GLB_MAGIC = 0x46546C67;
+    private static final int GLB_JSON  = 0x4E4F534A;
+    private static final int GLB_BIN   = 0x004E4942;
+    
+    private static final int MODE_TRIANGLES = 4;
+    
+    private static final int BYTE           = 5120;
+    private static final int UNSIGNED_BYTE  = 5121;
+    private static final int SHORT          = 5122;
+    private static final int UNSIGNED_SHORT = 5123;
+    private static final int UNSIGNED_INT   = 5125;
+    private static final int FLOAT          = 5126;
+    
+    private static final int FLOATS_PER_VERTEX = 7;
+    
+    private Path                path;
+    private Map<String, Object> root;
+    private List<ByteBuffer>    buffers = new ArrayList<>();
+    
+    /**
+     * A primitive and the transform of the node that uses it
+     */
+    private static class Draw
+    {
+        private Map<String, Object> primitive;
+        private Matrix4f            transform;
+    }
+    
+    /**
+     * The vertices and indices of a single primitive, before it is merged with the others
+     */
+    private static class Primitive
+    {
+        private float[] vertices;
+        private int[]   indices;
+    }
+    
+    /**
+     * Where the elements of an accessor are, and how to read them
+     */
+    private static class Accessor
+    {
+        private ByteBuffer data;
+        private int        offset;
+        private int        stride;
+        private int        count;
+        private int        components;
+        private int        componentType;
+        private int        componentSize;
+        private boolean    normalized;
+    }
+    
+    private GltfImporter(Path path, byte[] file)
+    {
+        this.path = path;
+        
+        ByteBuffer data   = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer binary = null;
+        String     json   = null;
+        
+        if (file.length >= 12 && data.getInt(0) == GLB_MAGIC)
+        {
+            if (data.getInt(4) != 2)
+            {
+                throw new IllegalArgumentException("Unsupported glb version " + data.getInt(4) + ", expected 2");
+            }
+            
+            int length = Integer.min(data.getInt(8), file.length);
+            int offset = 12;
+            while (offset + 8 <= length)
+            {
+                int chunkLength = data.getInt(offset);
+                int type        = data.getInt(offset + 4);
+                int start       = offset + 8;
+                if (chunkLength < 0 || start + chunkLength > length)
+                {
+                    throw new IllegalArgumentException("A chunk of the glb file is cut off");
+                }
+                
+                if (type == GLB_JSON && json == null)
+                {
+                    json = new String(file, start, chunkLength, StandardCharsets.UTF_8);
+                } else if (type == GLB_BIN && binary == null)
+                {
+                    binary = slice(data, start, chunkLength);
+                }
+                offset = start + chunkLength;
+            }
+            
+            if (json == null)
+            {
+                throw new IllegalArgumentException("The glb file has no JSON chunk");
+            }
+        } else
+        {
+            json = new String(file, StandardCharsets.UTF_8);
+        }
+        
+        Object document = Json.parse(json);
+        if (!(document instanceof Map))
+        {
+            throw new IllegalArgumentException("The glTF JSON is not an object");
+        }
+        root = cast(document);
+        
+        Map<String, Object> asset   = root.containsKey("asset") ? cast(root.get("asset")) : Collections.emptyMap();
+        Object              version = asset.get("version");
+        if (!(version instanceof String) || !((String) version).startsWith("2."))
+        {
+            throw new IllegalArgumentException("Unsupported glTF version " + version + ", expected 2.x");
+        }
+        
+        for (Map<String, Object> buffer : objects(root, "buffers"))
+        {
+            ByteBuffer content = readBuffer((String) buffer.get("uri"), binary);
+            if (getInt(buffer, "byteLength", 0) > content.capacity())
+            {
+                throw new IllegalArgumentException("A buffer is " + content.capacity() + " bytes, but should be " + getInt(buffer, "byteLength", 0));
+            }
+            buffers.add(content.order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+    
+    static ImportedMesh load(Path path, ForkJoinPool pool)
+    {
+        byte[] file;
+        try
+        {
+            file = Files.readAllBytes(path);
+        } catch (IOException e)
+        {
+            throw new RuntimeException("Unable to read glTF file " + path, e);
+        }
+        
+        GltfImporter importer = new GltfImporter(path, file);
+        
+        List<ForkJoinTask<Primitive>> tasks = new ArrayList<>();
+        for (Draw draw : importer.collectDraws())
+        {
+            tasks.add(pool.submit(() -> importer.readPrimitive(draw)));
+        }
+        
+        List<Primitive> primitives  = new ArrayList<>();
+        long            vertexCount = 0;
+        long            indexCount  = 0;
+        for (ForkJoinTask<Primitive> task : tasks)
+        {
+            Primitive primitive = task.join();
+            primitives.add(primitive);
+            vertexCount += primitive.vertices.length / FLOATS_PER_VERTEX;
+            indexCount += primitive.indices.length;
+        }
+        
+        if (indexCount > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("The file has " + indexCount + " indices, at most " + Integer.MAX_VALUE + " are supported");
+        }
+        
+        // Vertices shared between corners, or written more than once, end up with the same index
+        VertexDeduplicator deduplicator = new VertexDeduplicator(FLOATS_PER_VERTEX, (int) Long.min(vertexCount, Integer.MAX_VALUE / FLOATS_PER_VERTEX));
+        int[]              indices      = new int[(int) indexCount];
+        int                indexOffset  = 0;
+        for (Primitive primitive : primitives)
+        {
+            int[] remap = new int[primitive.vertices.length / FLOATS_PER_VERTEX];
+            Arrays.fill(remap, -1);
+            
+            for (int index : primitive.indices)
+            {
+                if (remap[index] < 0)
+                {
+                    remap[index] = deduplicator.add(primitive.vertices, index * FLOATS_PER_VERTEX);
+                }
+                indices[indexOffset++] = remap[index];
+            }
+        }
+        
+        return new ImportedMesh(deduplicator.getVertices(), indices);
+    }
+    
+    private ByteBuffer readBuffer(String uri, ByteBuffer binary)
+    {
+        if (uri == null)
+        {
+            if (binary == null)
+            {
+                throw new IllegalArgumentException("A buffer has no URI, and the file has no binary chunk");
+            }
+            return binary;
+        }
+        
+        if (uri.startsWith("data:"))
+        {
+            int comma = uri.indexOf(',');
+            if (comma < 0 || !uri.substring(0, comma).endsWith(";base64"))
+            {
+                throw new IllegalArgumentException("Only base64 data URIs are supported");
+            }
+            return ByteBuffer.wrap(Base64.getDecoder().decode(uri.substring(comma + 1)));
+        }
+        
+        String file = uri;
+        try
+        {
+            file = new URI(uri).getPath();
+        } catch (URISyntaxException e)
+        {
+            // Not escaped, so use it as it is
+        }
+        
+        try
+        {
+            return ByteBuffer.wrap(Files.readAllBytes(path.resolveSibling(file)));
+        } catch (IOException e)
+        {
+            throw new RuntimeException("Unable to read glTF buffer " + file, e);
+        }
+    }
+    
+    /**
+     * Walks the default scene, or every mesh if the file has no scenes
+     */
+    private List<Draw> collectDraws()
+    {
+        List<Draw>                draws  = new ArrayList<>();
+        List<Map<String, Object>> scenes = objects(root, "scenes");
+        
+        if (scenes.isEmpty())
+        {
+            for (int i = 0; i < objects(root, "meshes").size(); i++)
+            {
+                addMesh(i, new Matrix4f(), draws);
+            }
+            return draws;
+        }
+        
+        Map<String, Object> scene = get(scenes, getInt(root, "scene", 0), "scene");
+        for (int node : ints(scene, "nodes"))
+        {
+            addNode(node, new Matrix4f(), draws, 0);
+        }
+        return draws;
+    }
+    
+    private void addNode(int index, Matrix4f parent, List<Draw> draws, int depth)
+    {
+        List<Map<String, Object>> nodes = objects(root, "nodes");
+        if (depth > nodes.size())
+        {
+            throw new IllegalArgumentException("The node hierarchy has a cycle");
+        }
+        
+        Map<String, Object> node   = get(nodes, index, "node");
+        float[]             matrix = floats(node, "matrix", null);
+        Matrix4f            local  = new Matrix4f();
+        if (matrix != null)
+        {
+            if (matrix.length != 16)
+            {
+                throw new IllegalArgumentException("A node matrix has " + matrix.length + " values, expected 16");
+            }
+            local.set(matrix);
+        } else
+        {
+            float[] t = floats(node, "translation", new float[]{0, 0, 0});
+            float[] r = floats(node, "rotation", new float[]{0, 0, 0, 1});
+            float[] s = floats(node, "scale", new float[]{1, 1, 1});
+            local.translationRotateScale(t[0], t[1], t[2], r[0], r[1], r[2], r[3], s[0], s[1], s[2]);
+        }
+        
+        Matrix4f world = parent.mul(local, new Matrix4f());
+        if (node.containsKey("mesh"))
+        {
+            addMesh(getInt(node, "mesh", 0), world, draws);
+        }
+        
+        for (int child : ints(node, "children"))
+        {
+            addNode(child, world, draws, depth + 1);
+        }
+    }
+    
+    private void addMesh(int index, Matrix4f transform, List<Draw> draws)
+    {
+        Map<String, Object> mesh = get(objects(root, "meshes"), index, "mesh");
+        for (Map<String, Object> primitive : objects(mesh, "primitives"))
+        {
+            Draw draw = new Draw();
+            draw.primitive = primitive;
+            draw.transform = transform;
+            draws.add(draw);
+        }
+    }
+    
+    private Primitive readPrimitive(Draw draw)
+    {
+        int mode = getInt(draw.primitive, "mode", MODE_TRIANGLES);
+        if (mode != MODE_TRIANGLES)
+        {
+            throw new IllegalArgumentException("Only triangle lists are supported, a primitive has mode " + mode);
+        }
+        
+        Map<String, Object> attributes = draw.primitive.containsKey("attributes") ? cast(draw.primitive.get("attributes")) : Collections.emptyMap();
+        if (!attributes.containsKey("POSITION"))
+        {
+            throw new IllegalArgumentException("A primitive has no positions");
+        }
+        
+        Accessor position = accessor(getInt(attributes, "POSITION", 0));
+        if (position.components != 3)
+        {
+            throw new IllegalArgumentException("Positions must be VEC3, got " + position.components + " components");
+        }
+        
+        int     count    = position.count;
+        float[] vertices = new float[count * FLOATS_PER_VERTEX];
+        Arrays.fill(vertices, 1);
+        
+        Vector3f point = new Vector3f();
+        for (int i = 0; i < count; i++)
+        {
+            point.set(read(position, i, 0), read(position, i, 1), read(position, i, 2));
+            draw.transform.transformPosition(point);
+            
+            vertices[i * FLOATS_PER_VERTEX] = point.x;
+            vertices[i * FLOATS_PER_VERTEX + 1] = point.y;
+            vertices[i * FLOATS_PER_VERTEX + 2] = point.z;
+        }
+        
+        if (attributes.containsKey("COLOR_0"))
+        {
+            Accessor color = accessor(getInt(attributes, "COLOR_0", 0));
+            if (color.count != count || color.components < 3)
+            {
+                throw new IllegalArgumentException("Colors must be VEC3 or VEC4 with one per position");
+            }
+            
+            for (int i = 0; i < count; i++)
+            {
+                for (int c = 0; c < color.components; c++)
+                {
+                    vertices[i * FLOATS_PER_VERTEX + 3 + c] = read(color, i, c);
+                }
+            }
+        }
+        
+        int[] indices;
+        if (draw.primitive.containsKey("indices"))
+        {
+            Accessor accessor = accessor(getInt(draw.primitive, "indices", 0));
+            if (accessor.components != 1)
+            {
+                throw new IllegalArgumentException("Indices must be SCALAR, got " + accessor.components + " components");
+            }
+            
+            indices = new int[accessor.count];
+            for (int i = 0; i < indices.length; i++)
+            {
+                long index = readIndex(accessor, i);
+                if (index >= count)
+                {
+                    throw new IllegalArgumentException("Index " + index + " is out of range, the primitive has " + count + " vertices");
+                }
+                indices[i] = (int) index;
+            }
+        } else
+        {
+            indices = new int[count];
+            Arrays.setAll(indices, i -> i);
+        }
+        
+        if (indices.length % 3 != 0)
+        {
+            throw new IllegalArgumentException("A triangle list primitive has " + indices.length + " indices, which is not a multiple of 3");
+        }
+        
+        Primitive primitive = new Primitive();
+        primitive.vertices = vertices;
+        primitive.indices = indices;
+        return primitive;
+    }
+    
+    private Accessor accessor(int index)
+    {
+        Map<String, Object> object = get(objects(root, "accessors"), index, "accessor");
+        if (object.containsKey("sparse"))
+        {
+            throw new IllegalArgumentException("Sparse accessors are not supported");
+        }
+        
+        Accessor accessor = new Accessor();
+        accessor.count = getInt(object, "count", 0);
+        accessor.componentType = getInt(object, "componentType", FLOAT);
+        accessor.normalized = Boolean.TRUE.equals(object.get("normalized"));
+        accessor.components = getComponentCount((String) object.get("type"));
+        accessor.componentSize = getComponentSize(accessor.componentType);
+        
+        int elementSize = accessor.components * accessor.componentSize;
+        if (!object.containsKey("bufferView"))
+        {
+            // An accessor without a view is all zeros
+            accessor.data = ByteBuffer.allocate(elementSize).order(ByteOrder.LITTLE_ENDIAN);
+            return accessor;
+        }
+        
+        Map<String, Object> view       = get(objects(root, "bufferViews"), getInt(object, "bufferView", 0), "buffer view");
+        int                 viewOffset = getInt(view, "byteOffset", 0);
+        int                 viewLength = getInt(view, "byteLength", 0);
+        
+        accessor.data = get(buffers, getInt(view, "buffer", 0), "buffer");
+        accessor.stride = getInt(view, "byteStride", elementSize);
+        accessor.offset = viewOffset + getInt(object, "byteOffset", 0);
+        
+        long last = accessor.offset + (long) (accessor.count - 1) * accessor.stride + elementSize;
+        if (accessor.count > 0 && (last > (long) viewOffset + viewLength || last > accessor.data.capacity()))
+        {
+            throw new IllegalArgumentException("An accessor reaches past the end of its buffer view");
+        }
+        
+        return accessor;
+    }
+    
+    private static float read(Accessor accessor, int element, int component)
+    {
+        int at = accessor.offset + element * accessor.stride + component * accessor.componentSize;
+        switch (accessor.componentType)
+        {
+            case FLOAT:
+                return accessor.data.getFloat(at);
+            case UNSIGNED_BYTE:
+                int ubyte = accessor.data.get(at) & 0xFF;
+                return accessor.normalized ? ubyte / 255f : ubyte;
+            case BYTE:
+                byte sbyte = accessor.data.get(at);
+                return accessor.normalized ? Float.max(sbyte / 127f, -1) : sbyte;
+            case UNSIGNED_SHORT:
+                int ushort = accessor.data.getShort(at) & 0xFFFF;
+                return accessor.normalized ? ushort / 65535f : ushort;
+            case SHORT:
+                short sshort = accessor.data.getShort(at);
+                return accessor.normalized ? Float.max(sshort / 32767f, -1) : sshort;
+            default:
+                return accessor.data.getInt(at) & 0xFFFFFFFFL;
+        }
+    }
+    
+    private static long readIndex(Accessor accessor, int element)
+    {
+        int at = accessor.offset + element * accessor.stride;
+        switch (accessor.componentType)
+        {
+            case UNSIGNED_BYTE:
+                return accessor.data.get(at) & 0xFF;
+            case UNSIGNED_SHORT:
+                return accessor.data.getShort(at) & 0xFFFF;
+            case UNSIGNED_INT:
+                return accessor.data.getInt(at) & 0xFFFFFFFFL;
+            default:
+                throw new IllegalArgumentException("Indices must be unsigned integers, got component type " + accessor.componentType);
+        }
+    }
+    
+    private static int getComponentCount(String type)
+    {
+        if (type == null)
+        {
+            throw new IllegalArgumentException("An accessor has no type");
+        }
+        
+        switch (type)
+        {
+            case "SCALAR":
+                return 1;
+            case "VEC2":
+                return 2;
+            case "VEC3":
+                return 3;
+            case "VEC4":
+                return 4;
+            default:
+                throw new IllegalArgumentException("Unsupported accessor type " + type);
+        }
+    }
+    
+    private static int getComponentSize(int componentType)
+    {
+        switch (componentType)
+        {
+            case BYTE:
+            case UNSIGNED_BYTE:
+                return 1;
+            case SHORT:
+            case UNSIGNED_SHORT:
+                return 2;
+            case UNSIGNED_INT:
+            case FLOAT:
+                return 4;
+            default:
+                throw new IllegalArgumentException("Unsupported component type " + componentType);
+        }
+    }
+    
+    private static ByteBuffer slice(ByteBuffer data, int offset, int length)
+    {
+        ByteBuffer view = data.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object value)
+    {
+        return (T) value;
+    }
+    
+    private static List<Map<String, Object>> objects(Map<String, Object> object, String key)
+    {
+        return object.containsKey(key) ? cast(object.get(key)) : Collections.emptyList();
+    }
+    
+    private static <T> T get(List<T> list, int index, String what)
+    {
+        if (index < 0 || index >= list.size())
+        {
+            throw new IllegalArgumentException("There is no " + what + " " + index + ", the file has " + list.size());
+        }
+        return list.get(index);
+    }
+    
+    private static int getInt(Map<String, Object> object, String key, int fallback)
+    {
+        Object value = object.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : fallback;
+    }
+    
+    private static int[] ints(Map<String, Object> object, String key)
+    {
+        List<Object> values = object.containsKey(key) ? cast(object.get(key)) : Collections.emptyList();
+        return values.stream().mapToInt(value -> ((Number) value).intValue()).toArray();
+    }
+    
+    private static float[] floats(Map<String, Object> object, String key, float[] fallback)
+    {
+        if (!object.containsKey(key))
+        {
+            return fallback;
+        }
+        
+        List<Object> values = cast(object.get(key));
+        float[]      result = new float[values.size()];
+        for (int i = 0; i < result.length; i++)
+        {
+            result[i] = ((Number) values.get(i)).floatValue();
+        }
+        return result;
+    }
+}
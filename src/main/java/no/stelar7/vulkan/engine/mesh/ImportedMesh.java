@@ -0,0 +1,62 @@
+package no.stelar7.vulkan.engine.mesh;
+
+import no.stelar7.vulkan.engine.spec.VertexLayout;
+
+import java.nio.file.Path;
+
+/**
+ * A mesh read from an asset, with every distinct vertex stored once, in the layout of VertexSpec
+ */
+public class ImportedMesh
+{
+    private final float[] vertices;
+    private final int[]   indices;
+    
+    ImportedMesh(float[] vertices, int[] indices)
+    {
+        this.vertices = vertices;
+        this.indices = indices;
+    }
+    
+    /**
+     * Gets the layout of the vertices, always VertexLayout.POSITION_COLOR
+     */
+    public VertexLayout getLayout()
+    {
+        return VertexLayout.POSITION_COLOR;
+    }
+    
+    /**
+     * Gets the interleaved vertices, the array is not copied
+     */
+    public float[] getVertices()
+    {
+        return vertices;
+    }
+    
+    /**
+     * Gets the triangle list indices, relative to the first vertex. The array is not copied
+     */
+    public int[] getIndices()
+    {
+        return indices;
+    }
+    
+    public int getVertexCount()
+    {
+        return vertices.length / getLayout().getFloatsPerVertex();
+    }
+    
+    public int getIndexCount()
+    {
+        return indices.length;
+    }
+    
+    /**
+     * Writes the mesh as a mesh file, so later loads can map it instead of importing it again
+     */
+    public void export(Path path)
+    {
+        MeshExporter.export(path, getLayout(), vertices, indices);
+    }
+}
@@ -0,0 +1,243 @@
+package no.stelar7.vulkan.engine.mesh;
+
+import java.util.*;
+
+/**
+ * Reads the JSON part of a glTF file.
+ * Objects become maps, arrays become lists, numbers become doubles, and the rest become strings, booleans or null.
+ */
+final class Json
+{
+    private final String text;
+    private       int    position;
+    
+    private Json(String text)
+    {
+        this.text = text;
+    }
+    
+    static Object parse(String text)
+    {
+        Json   json  = new Json(text);
+        Object value = json.readValue();
+        
+        json.skipWhitespace();
+        if (json.position != text.length())
+        {
+            throw json.error("Unexpected data after the end of the document");
+        }
+        
+        return value;
+    }
+    
+    private Object readValue()
+    {
+        skipWhitespace();
+        if (position >= text.length())
+        {
+            throw error("Unexpected end of the document");
+        }
+        
+        char c = text.charAt(position);
+        switch (c)
+        {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                return readLiteral("true", Boolean.TRUE);
+            case 'f':
+                return readLiteral("false", Boolean.FALSE);
+            case 'n':
+                return readLiteral("null", null);
+            default:
+                return readNumber();
+        }
+    }
+    
+    private Map<String, Object> readObject()
+    {
+        Map<String, Object> object = new LinkedHashMap<>();
+        
+        position++;
+        skipWhitespace();
+        if (peek() == '}')
+        {
+            position++;
+            return object;
+        }
+        
+        while (true)
+        {
+            skipWhitespace();
+            if (peek() != '"')
+            {
+                throw error("Expected a key");
+            }
+            
+            String key = readString();
+            expect(':');
+            object.put(key, readValue());
+            
+            skipWhitespace();
+            char c = next();
+            if (c == '}')
+            {
+                return object;
+            }
+            if (c != ',')
+            {
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+    
+    private List<Object> readArray()
+    {
+        List<Object> array = new ArrayList<>();
+        
+        position++;
+        skipWhitespace();
+        if (peek() == ']')
+        {
+            position++;
+            return array;
+        }
+        
+        while (true)
+        {
+            array.add(readValue());
+            
+            skipWhitespace();
+            char c = next();
+            if (c == ']')
+            {
+                return array;
+            }
+            if (c != ',')
+            {
+                throw error("Expected ',' or ']'");
+            }
+        }
+    }
+    
+    private String readString()
+    {
+        StringBuilder builder = new StringBuilder();
+        
+        position++;
+        while (true)
+        {
+            char c = next();
+            if (c == '"')
+            {
+                return builder.toString();
+            }
+            
+            if (c != '\\')
+            {
+                builder.append(c);
+                continue;
+            }
+            
+            char escape = next();
+            switch (escape)
+            {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (position + 4 > text.length())
+                    {
+                        throw error("Unexpected end of the document");
+                    }
+                    builder.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                    position += 4;
+                    break;
+                default:
+                    builder.append(escape);
+                    break;
+            }
+        }
+    }
+    
+    private Object readLiteral(String literal, Object value)
+    {
+        if (!text.startsWith(literal, position))
+        {
+            throw error("Unexpected value");
+        }
+        
+        position += literal.length();
+        return value;
+    }
+    
+    private Double readNumber()
+    {
+        int start = position;
+        while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0)
+        {
+            position++;
+        }
+        
+        try
+        {
+            return Double.valueOf(text.substring(start, position));
+        } catch (NumberFormatException e)
+        {
+            throw error("Invalid number");
+        }
+    }
+    
+    private void expect(char expected)
+    {
+        skipWhitespace();
+        if (next() != expected)
+        {
+            throw error("Expected '" + expected + "'");
+        }
+    }
+    
+    private void skipWhitespace()
+    {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position)))
+        {
+            position++;
+        }
+    }
+    
+    private char peek()
+    {
+        return position < text.length() ? text.charAt(position) : 0;
+    }
+    
+    private char next()
+    {
+        if (position >= text.length())
+        {
+            throw error("Unexpected end of the document");
+        }
+        
+        return text.charAt(position++);
+    }
+    
+    private IllegalArgumentException error(String message)
+    {
+        return new IllegalArgumentException(message + " at character " + position + " of the glTF JSON");
+    }
+}
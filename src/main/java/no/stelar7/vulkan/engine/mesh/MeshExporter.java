@@ -0,0 +1,133 @@
+package no.stelar7.vulkan.engine.mesh;
+
+import no.stelar7.vulkan.engine.spec.VertexLayout;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Writes meshes in the format read by MeshFile
+ */
+public final class MeshExporter
+{
+    private MeshExporter()
+    {
+        // Hide constructor
+    }
+    
+    /**
+     * Writes the mesh to the file, replacing it if it exists.
+     * The indices are stored as 16 bit when every index fits, and the bounds are taken from the first attribute.
+     *
+     * @param vertices interleaved vertices in the layout
+     * @param indices  indices relative to the first vertex
+     */
+    public static void export(Path path, VertexLayout layout, float[] vertices, int[] indices)
+    {
+        if (layout.getAttributeCount() > MeshFile.MAX_ATTRIBUTES)
+        {
+            throw new IllegalArgumentException("A mesh file holds at most " + MeshFile.MAX_ATTRIBUTES + " attributes, got " + layout.getAttributeCount());
+        }
+        
+        if (vertices.length % layout.getFloatsPerVertex() != 0)
+        {
+            throw new IllegalArgumentException("Vertex data is not a whole number of vertices: " + vertices.length + " floats");
+        }
+        
+        int vertexCount = vertices.length / layout.getFloatsPerVertex();
+        int indexSize   = Short.BYTES;
+        for (int index : indices)
+        {
+            if (Integer.toUnsignedLong(index) >= vertexCount)
+            {
+                throw new IllegalArgumentException("Index " + Integer.toUnsignedLong(index) + " is out of range, the mesh has " + vertexCount + " vertices");
+            }
+            
+            if (index > 0xFFFF)
+            {
+                indexSize = Integer.BYTES;
+            }
+        }
+        
+        long vertexOffset = MeshFile.HEADER_SIZE;
+        long indexOffset  = vertexOffset + (long) vertices.length * Float.BYTES;
+        
+        ByteBuffer header = ByteBuffer.allocate(MeshFile.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MeshFile.MAGIC)
+              .putInt(4, MeshFile.VERSION)
+              .putInt(8, indexSize)
+              .putInt(12, layout.getAttributeCount());
+        
+        for (int i = 0; i < layout.getAttributeCount(); i++)
+        {
+            header.putInt(16 + i * Integer.BYTES, layout.getComponentCount(i));
+        }
+        
+        header.putInt(48, vertexCount)
+              .putInt(52, indices.length);
+        
+        float[] bounds = getBounds(layout, vertices);
+        for (int i = 0; i < bounds.length; i++)
+        {
+            header.putFloat(56 + i * Float.BYTES, bounds[i]);
+        }
+        
+        header.putLong(80, vertexOffset)
+              .putLong(88, indexOffset);
+        
+        ByteBuffer vertexData = ByteBuffer.allocate(vertices.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        vertexData.asFloatBuffer().put(vertices);
+        
+        ByteBuffer indexData = ByteBuffer.allocate(indices.length * indexSize).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < indices.length; i++)
+        {
+            if (indexSize == Short.BYTES)
+            {
+                indexData.putShort(i * Short.BYTES, (short) indices[i]);
+            } else
+            {
+                indexData.putInt(i * Integer.BYTES, indices[i]);
+            }
+        }
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            ByteBuffer[] blobs = {header, vertexData, indexData};
+            while (indexData.hasRemaining())
+            {
+                channel.write(blobs);
+            }
+        } catch (IOException e)
+        {
+            throw new RuntimeException("Unable to write mesh file " + path, e);
+        }
+    }
+    
+    /**
+     * Gets the min and max of the first three components of the first attribute, missing components are 0
+     */
+    private static float[] getBounds(VertexLayout layout, float[] vertices)
+    {
+        float[] bounds     = new float[6];
+        int     components = Integer.min(layout.getComponentCount(0), 3);
+        int     stride     = layout.getFloatsPerVertex();
+        
+        for (int c = 0; c < components; c++)
+        {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int v = c; v < vertices.length; v += stride)
+            {
+                min = Float.min(min, vertices[v]);
+                max = Float.max(max, vertices[v]);
+            }
+            
+            bounds[c] = vertices.length == 0 ? 0 : min;
+            bounds[3 + c] = vertices.length == 0 ? 0 : max;
+        }
+        
+        return bounds;
+    }
+}
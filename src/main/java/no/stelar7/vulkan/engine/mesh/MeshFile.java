@@ -0,0 +1,237 @@
+package no.stelar7.vulkan.engine.mesh;
+
+import no.stelar7.vulkan.engine.spec.VertexLayout;
+import org.joml.Vector3f;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A mesh stored as a memory-mapped file, laid out so the vertex and index blobs can be copied straight into buffers.
+ * <p>
+ * Everything is little-endian. The header is HEADER_SIZE bytes:
+ * <pre>
+ *  0  int     magic, MAGIC
+ *  4  int     version, VERSION
+ *  8  int     index size, 2 or 4 (In bytes)
+ * 12  int     attribute count, at most MAX_ATTRIBUTES
+ * 16  int[8]  components per attribute, in binding order, unused slots are 0
+ * 48  int     vertex count
+ * 52  int     index count
+ * 56  float[6] bounds of the first attribute, min xyz then max xyz
+ * 80  long    offset of the vertex blob
+ * 88  long    offset of the index blob
+ * </pre>
+ * The vertex blob holds interleaved floats in the layout of the header, and the index blob holds indices relative to the first vertex.
+ * The blobs are copied into buffers as they are, which relies on the host being little-endian like every device we run on.
+ */
+public class MeshFile
+{
+    public static final int MAGIC          = 0x4853454D;
+    public static final int VERSION        = 1;
+    public static final int MAX_ATTRIBUTES = 8;
+    public static final int HEADER_SIZE    = 96;
+    
+    private ByteBuffer   data;
+    private VertexLayout layout;
+    
+    private int indexSize;
+    private int vertexCount;
+    private int indexCount;
+    
+    private long vertexOffset;
+    private long indexOffset;
+    
+    private Vector3f boundsMin;
+    private Vector3f boundsMax;
+    
+    private MeshFile(ByteBuffer data)
+    {
+        this.data = data.order(ByteOrder.LITTLE_ENDIAN);
+        
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC)
+        {
+            throw new IllegalArgumentException("Not a mesh file");
+        }
+        
+        if (data.getInt(4) != VERSION)
+        {
+            throw new IllegalArgumentException("Unsupported mesh file version " + data.getInt(4) + ", expected " + VERSION);
+        }
+        
+        indexSize = data.getInt(8);
+        if (indexSize != Short.BYTES && indexSize != Integer.BYTES)
+        {
+            throw new IllegalArgumentException("Index size must be 2 or 4 bytes, got " + indexSize);
+        }
+        
+        int attributeCount = data.getInt(12);
+        if (attributeCount <= 0 || attributeCount > MAX_ATTRIBUTES)
+        {
+            throw new IllegalArgumentException("A mesh has 1 to " + MAX_ATTRIBUTES + " attributes, got " + attributeCount);
+        }
+        
+        int[] components = new int[attributeCount];
+        for (int i = 0; i < attributeCount; i++)
+        {
+            components[i] = data.getInt(16 + i * Integer.BYTES);
+        }
+        layout = new VertexLayout(components);
+        
+        vertexCount = data.getInt(48);
+        indexCount = data.getInt(52);
+        boundsMin = new Vector3f(data.getFloat(56), data.getFloat(60), data.getFloat(64));
+        boundsMax = new Vector3f(data.getFloat(68), data.getFloat(72), data.getFloat(76));
+        vertexOffset = data.getLong(80);
+        indexOffset = data.getLong(88);
+        
+        if (vertexCount < 0 || indexCount < 0)
+        {
+            throw new IllegalArgumentException("Negative vertex or index count: " + vertexCount + ", " + indexCount);
+        }
+        
+        if (!fits(vertexOffset, getVertexDataSize(), data.capacity()) || !fits(indexOffset, getIndexDataSize(), data.capacity()))
+        {
+            throw new IllegalArgumentException("The blobs of the mesh do not fit in the file, it is " + data.capacity() + " bytes");
+        }
+    }
+    
+    /**
+     * Checks that a blob starts after the header and ends inside the data, without overflowing on offsets read from a broken file
+     */
+    private static boolean fits(long offset, long size, long capacity)
+    {
+        if (offset < HEADER_SIZE)
+        {
+            return false;
+        }
+        
+        try
+        {
+            return Math.addExact(offset, size) <= capacity;
+        } catch (ArithmeticException e)
+        {
+            return false;
+        }
+    }
+    
+    /**
+     * Maps the file, nothing is read until the blobs are copied out.
+     * The mapping stays valid after this returns, and is released when the mesh file is garbage collected.
+     */
+    public static MeshFile open(Path path)
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            return new MeshFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e)
+        {
+            throw new RuntimeException("Unable to map mesh file " + path, e);
+        }
+    }
+    
+    /**
+     * Reads a mesh from data that is already in memory, like a file packed into a larger archive.
+     * The data must be a direct buffer, the blobs are copied out through its address.
+     */
+    public static MeshFile wrap(ByteBuffer data)
+    {
+        if (!data.isDirect())
+        {
+            throw new IllegalArgumentException("Mesh data must be a direct buffer");
+        }
+        
+        return new MeshFile(data.slice());
+    }
+    
+    public VertexLayout getLayout()
+    {
+        return layout;
+    }
+    
+    public int getVertexCount()
+    {
+        return vertexCount;
+    }
+    
+    public int getIndexCount()
+    {
+        return indexCount;
+    }
+    
+    /**
+     * Gets the size of one index (In bytes)
+     */
+    public int getIndexSize()
+    {
+        return indexSize;
+    }
+    
+    /**
+     * Gets the VkIndexType of the index blob
+     */
+    public int getIndexType()
+    {
+        return indexSize == Short.BYTES ? VK_INDEX_TYPE_UINT16 : VK_INDEX_TYPE_UINT32;
+    }
+    
+    public Vector3f getBoundsMin()
+    {
+        return new Vector3f(boundsMin);
+    }
+    
+    public Vector3f getBoundsMax()
+    {
+        return new Vector3f(boundsMax);
+    }
+    
+    /**
+     * Gets the size of the vertex blob (In bytes)
+     */
+    public long getVertexDataSize()
+    {
+        return (long) vertexCount * layout.getStride();
+    }
+    
+    /**
+     * Gets the size of the index blob (In bytes)
+     */
+    public long getIndexDataSize()
+    {
+        return (long) indexCount * indexSize;
+    }
+    
+    /**
+     * Gets the vertex blob, between the position and limit of a view into the mapping
+     */
+    public ByteBuffer getVertexData()
+    {
+        return blob(vertexOffset, getVertexDataSize());
+    }
+    
+    /**
+     * Gets the index blob, between the position and limit of a view into the mapping
+     */
+    public ByteBuffer getIndexData()
+    {
+        return blob(indexOffset, getIndexDataSize());
+    }
+    
+    private ByteBuffer blob(long offset, long size)
+    {
+        // Buffer positions are ints, so a blob must end before Integer.MAX_VALUE
+        if (offset < 0 || size < 0 || size > Integer.MAX_VALUE - offset)
+        {
+            throw new IllegalArgumentException("A blob of " + size + " bytes at offset " + offset + " can not be addressed in a buffer");
+        }
+        
+        ByteBuffer view = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        view.limit((int) (offset + size));
+        view.position((int) offset);
+        return view;
+    }
+}
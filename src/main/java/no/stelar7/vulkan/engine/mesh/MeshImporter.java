@@ -0,0 +1,63 @@
+package no.stelar7.vulkan.engine.mesh;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reads meshes from Wavefront OBJ and glTF 2.0 assets, picked by the file extension.
+ * <p>
+ * Parsing is split over a fork-join pool, and every distinct vertex is stored once.
+ * The result can be packed into the geometry pool with VulkanRenderer.createModel, or exported as a mesh file so later loads only map it.
+ */
+public final class MeshImporter
+{
+    private MeshImporter()
+    {
+        // Hide constructor
+    }
+    
+    /**
+     * Imports the asset on the common fork-join pool
+     */
+    public static ImportedMesh load(Path path)
+    {
+        return load(path, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Imports the asset, .obj, .gltf and .glb files are supported
+     *
+     * @param pool the pool the parsing is split over
+     */
+    public static ImportedMesh load(Path path, ForkJoinPool pool)
+    {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".obj"))
+        {
+            try
+            {
+                return ObjImporter.load(Files.readAllBytes(path), pool);
+            } catch (IOException e)
+            {
+                throw new RuntimeException("Unable to read OBJ file " + path, e);
+            }
+        }
+        
+        if (name.endsWith(".gltf") || name.endsWith(".glb"))
+        {
+            return GltfImporter.load(path, pool);
+        }
+        
+        throw new IllegalArgumentException("Unsupported mesh format " + path.getFileName() + ", expected .obj, .gltf or .glb");
+    }
+    
+    /**
+     * Imports the asset and writes it as a mesh file
+     */
+    public static void convert(Path source, Path target)
+    {
+        load(source).export(target);
+    }
+}
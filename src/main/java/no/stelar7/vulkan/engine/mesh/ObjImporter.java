@@ -0,0 +1,483 @@
+package no.stelar7.vulkan.engine.mesh;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Imports Wavefront OBJ files.
+ * <p>
+ * The file is split into chunks at line breaks, and every chunk is parsed by its own task on a fork-join pool.
+ * A chunk keeps its vertices and face corners to itself, and the corners are made global once every chunk is done
+ * and the number of vertices before each chunk is known.
+ * <p>
+ * Only positions and the "v x y z r g b" vertex colors are read, since VertexSpec has no room for texture coordinates or normals.
+ * Vertices without a color are white, and faces with more than three corners are split into a fan.
+ */
+final class ObjImporter
+{
+    // Ranges smaller than this are parsed by a single task (In bytes)
+    private static final int CHUNK_SIZE = 256 * 1024;
+    
+    private static final int FLOATS_PER_VERTEX = 7;
+    
+    // Every power of ten that is exact as a double
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    
+    private ObjImporter()
+    {
+        // Hide constructor
+    }
+    
+    static ImportedMesh load(byte[] data, ForkJoinPool pool)
+    {
+        List<Chunk> chunks = pool.invoke(new ParseTask(data, 0, data.length));
+        
+        int  vertexCount = 0;
+        long cornerCount = 0;
+        for (Chunk chunk : chunks)
+        {
+            chunk.firstVertex = vertexCount;
+            vertexCount = Math.addExact(vertexCount, chunk.vertexCount);
+            cornerCount += chunk.corners.size;
+        }
+        
+        if (cornerCount > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("The file has " + cornerCount + " face corners, at most " + Integer.MAX_VALUE + " are supported");
+        }
+        
+        float[] vertices     = new float[Math.multiplyExact(vertexCount, FLOATS_PER_VERTEX)];
+        int[]   corners      = new int[(int) cornerCount];
+        int     cornerOffset = 0;
+        for (Chunk chunk : chunks)
+        {
+            System.arraycopy(chunk.vertices.data, 0, vertices, chunk.firstVertex * FLOATS_PER_VERTEX, chunk.vertices.size);
+            
+            for (int i = 0; i < chunk.corners.size; i++)
+            {
+                int corner = chunk.corners.data[i];
+                int vertex = chunk.relative.get(i) ? chunk.firstVertex + corner : corner;
+                if (vertex < 0 || vertex >= vertexCount)
+                {
+                    throw new IllegalArgumentException("A face refers to vertex " + (vertex + 1) + ", but the file has " + vertexCount + " vertices");
+                }
+                corners[cornerOffset++] = vertex;
+            }
+        }
+        
+        // Corners of the same vertex, or of vertices that are written twice, end up with the same index
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        
+        VertexDeduplicator deduplicator = new VertexDeduplicator(FLOATS_PER_VERTEX, vertexCount);
+        for (int i = 0; i < corners.length; i++)
+        {
+            int vertex = corners[i];
+            if (remap[vertex] < 0)
+            {
+                remap[vertex] = deduplicator.add(vertices, vertex * FLOATS_PER_VERTEX);
+            }
+            corners[i] = remap[vertex];
+        }
+        
+        return new ImportedMesh(deduplicator.getVertices(), corners);
+    }
+    
+    /**
+     * Gets the start of the line after the offset, or the end if there is none
+     */
+    private static int nextLine(byte[] data, int offset, int end)
+    {
+        for (int i = offset; i < end; i++)
+        {
+            if (data[i] == '\n')
+            {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+    
+    private static boolean isSpace(byte c)
+    {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+    
+    private static boolean isDigit(byte c)
+    {
+        return c >= '0' && c <= '9';
+    }
+    
+    /**
+     * Halves the range at a line break until it is small enough, and returns the chunks in file order
+     */
+    private static class ParseTask extends RecursiveTask<List<Chunk>>
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private final byte[] data;
+        private final int    start;
+        private final int    end;
+        
+        ParseTask(byte[] data, int start, int end)
+        {
+            this.data = data;
+            this.start = start;
+            this.end = end;
+        }
+        
+        @Override
+        protected List<Chunk> compute()
+        {
+            if (end - start > CHUNK_SIZE)
+            {
+                int split = nextLine(data, start + (end - start) / 2, end);
+                if (split < end)
+                {
+                    ParseTask left = new ParseTask(data, start, split);
+                    left.fork();
+                    
+                    List<Chunk> right  = new ParseTask(data, split, end).compute();
+                    List<Chunk> chunks = left.join();
+                    chunks.addAll(right);
+                    return chunks;
+                }
+            }
+            
+            Chunk chunk = new Chunk(data, start, end);
+            chunk.parse();
+            
+            List<Chunk> chunks = new ArrayList<>();
+            chunks.add(chunk);
+            return chunks;
+        }
+    }
+    
+    /**
+     * The vertices and face corners of a range of whole lines.
+     * Corners written as positive numbers are stored as global indices, and corners written relative to the last vertex
+     * are stored as indices into this chunk and marked in relative, since the vertices before the chunk are not known yet.
+     */
+    private static class Chunk
+    {
+        private final byte[] data;
+        private final int    end;
+        private       int    position;
+        private       int    lineStart;
+        
+        private FloatArray vertices = new FloatArray();
+        private int        vertexCount;
+        private int        firstVertex;
+        
+        private IntArray corners  = new IntArray();
+        private BitSet   relative = new BitSet();
+        
+        private int[]   face  = new int[16];
+        private float[] extra = new float[4];
+        
+        Chunk(byte[] data, int start, int end)
+        {
+            this.data = data;
+            this.position = start;
+            this.end = end;
+        }
+        
+        void parse()
+        {
+            while (position < end)
+            {
+                lineStart = position;
+                
+                int next    = nextLine(data, position, end);
+                int lineEnd = next > position && data[next - 1] == '\n' ? next - 1 : next;
+                parseLine(lineEnd);
+                
+                position = next;
+            }
+        }
+        
+        private void parseLine(int lineEnd)
+        {
+            skipSpaces(lineEnd);
+            if (position + 1 >= lineEnd || !isSpace(data[position + 1]))
+            {
+                return;
+            }
+            
+            byte type = data[position];
+            position++;
+            
+            if (type == 'v')
+            {
+                parseVertex(lineEnd);
+            } else if (type == 'f')
+            {
+                parseFace(lineEnd);
+            }
+        }
+        
+        private void parseVertex(int lineEnd)
+        {
+            float x = parseFloat(lineEnd);
+            float y = parseFloat(lineEnd);
+            float z = parseFloat(lineEnd);
+            
+            // Three more values are a color, a single one is a weight that is not used
+            int extraCount = 0;
+            while (extraCount < extra.length && hasValue(lineEnd))
+            {
+                extra[extraCount++] = parseFloat(lineEnd);
+            }
+            
+            boolean colored = extraCount >= 3;
+            vertices.add(x, y, z);
+            vertices.add(colored ? extra[0] : 1, colored ? extra[1] : 1, colored ? extra[2] : 1);
+            vertices.add(1);
+            vertexCount++;
+        }
+        
+        private void parseFace(int lineEnd)
+        {
+            int count = 0;
+            while (hasValue(lineEnd))
+            {
+                int index = parseInt(lineEnd);
+                if (index == 0)
+                {
+                    throw error("Face corners are numbered from 1");
+                }
+                
+                // Skip the texture coordinate and normal of the corner
+                while (position < lineEnd && !isSpace(data[position]))
+                {
+                    position++;
+                }
+                
+                if (count == face.length)
+                {
+                    face = Arrays.copyOf(face, count * 2);
+                }
+                face[count++] = index;
+            }
+            
+            if (count < 3)
+            {
+                throw error("A face needs at least three corners, got " + count);
+            }
+            
+            for (int i = 1; i + 1 < count; i++)
+            {
+                addCorner(face[0]);
+                addCorner(face[i]);
+                addCorner(face[i + 1]);
+            }
+        }
+        
+        private void addCorner(int index)
+        {
+            if (index > 0)
+            {
+                corners.add(index - 1);
+            } else
+            {
+                relative.set(corners.size);
+                corners.add(vertexCount + index);
+            }
+        }
+        
+        /**
+         * Checks if there is another value on the line before the end or a comment
+         */
+        private boolean hasValue(int lineEnd)
+        {
+            skipSpaces(lineEnd);
+            return position < lineEnd && data[position] != '#';
+        }
+        
+        private void skipSpaces(int lineEnd)
+        {
+            while (position < lineEnd && isSpace(data[position]))
+            {
+                position++;
+            }
+        }
+        
+        private int parseInt(int lineEnd)
+        {
+            boolean negative = position < lineEnd && data[position] == '-';
+            if (position < lineEnd && (data[position] == '-' || data[position] == '+'))
+            {
+                position++;
+            }
+            
+            if (position >= lineEnd || !isDigit(data[position]))
+            {
+                throw error("Expected a vertex number");
+            }
+            
+            long value = 0;
+            while (position < lineEnd && isDigit(data[position]))
+            {
+                value = value * 10 + (data[position++] - '0');
+                if (value > Integer.MAX_VALUE)
+                {
+                    throw error("Vertex number is too large");
+                }
+            }
+            
+            return (int) (negative ? -value : value);
+        }
+        
+        /**
+         * Parses a decimal number without making a string of it, anything it does not handle goes through Float.parseFloat
+         */
+        private float parseFloat(int lineEnd)
+        {
+            skipSpaces(lineEnd);
+            int start = position;
+            
+            boolean negative = position < lineEnd && data[position] == '-';
+            if (position < lineEnd && (data[position] == '-' || data[position] == '+'))
+            {
+                position++;
+            }
+            
+            // Digits past what a long holds only move the exponent
+            long    mantissa = 0;
+            int     digits   = 0;
+            int     exponent = 0;
+            boolean any      = false;
+            while (position < lineEnd && isDigit(data[position]))
+            {
+                any = true;
+                if (digits < 18)
+                {
+                    mantissa = mantissa * 10 + (data[position] - '0');
+                    digits += mantissa == 0 ? 0 : 1;
+                } else
+                {
+                    exponent++;
+                }
+                position++;
+            }
+            
+            if (position < lineEnd && data[position] == '.')
+            {
+                position++;
+                while (position < lineEnd && isDigit(data[position]))
+                {
+                    any = true;
+                    if (digits < 18)
+                    {
+                        mantissa = mantissa * 10 + (data[position] - '0');
+                        digits += mantissa == 0 ? 0 : 1;
+                        exponent--;
+                    }
+                    position++;
+                }
+            }
+            
+            if (any && position < lineEnd && (data[position] == 'e' || data[position] == 'E'))
+            {
+                position++;
+                boolean negativeExponent = position < lineEnd && data[position] == '-';
+                if (position < lineEnd && (data[position] == '-' || data[position] == '+'))
+                {
+                    position++;
+                }
+                
+                int value = 0;
+                while (position < lineEnd && isDigit(data[position]))
+                {
+                    value = Integer.min(value * 10 + (data[position++] - '0'), 1000);
+                }
+                exponent += negativeExponent ? -value : value;
+            }
+            
+            if (!any || (position < lineEnd && !isSpace(data[position])))
+            {
+                return parseFallback(start, lineEnd);
+            }
+            
+            if (mantissa == 0)
+            {
+                return negative ? -0f : 0f;
+            }
+            
+            double value = mantissa;
+            if (exponent < 0)
+            {
+                value /= -exponent < POWERS_OF_TEN.length ? POWERS_OF_TEN[-exponent] : Math.pow(10, -exponent);
+            } else if (exponent > 0)
+            {
+                value *= exponent < POWERS_OF_TEN.length ? POWERS_OF_TEN[exponent] : Math.pow(10, exponent);
+            }
+            
+            return (float) (negative ? -value : value);
+        }
+        
+        private float parseFallback(int start, int lineEnd)
+        {
+            position = start;
+            while (position < lineEnd && !isSpace(data[position]))
+            {
+                position++;
+            }
+            
+            String token = new String(data, start, position - start, StandardCharsets.US_ASCII);
+            try
+            {
+                return Float.parseFloat(token);
+            } catch (NumberFormatException e)
+            {
+                throw error("Expected a number, got '" + token + "'");
+            }
+        }
+        
+        private IllegalArgumentException error(String message)
+        {
+            return new IllegalArgumentException(message + ", on the line at byte " + lineStart);
+        }
+    }
+    
+    private static class FloatArray
+    {
+        private float[] data = new float[1024];
+        private int     size;
+        
+        void add(float value)
+        {
+            if (size == data.length)
+            {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+        
+        void add(float x, float y, float z)
+        {
+            add(x);
+            add(y);
+            add(z);
+        }
+    }
+    
+    private static class IntArray
+    {
+        private int[] data = new int[1024];
+        private int   size;
+        
+        void add(int value)
+        {
+            if (size == data.length)
+            {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package no.stelar7.vulkan.engine.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Merges vertices whose floats have the same bits, so every distinct vertex is stored once.
+ * <p>
+ * The table is open addressed and holds vertex indices, the keys are read back from the vertex data itself,
+ * so nothing is boxed and there is no allocation per vertex.
+ */
+final class VertexDeduplicator
+{
+    private static final int EMPTY = -1;
+    
+    private final int floatsPerVertex;
+    
+    private float[] vertices;
+    private int     vertexCount;
+    
+    private int[] table;
+    private int   mask;
+    
+    /**
+     * @param expectedVertices how many distinct vertices to make room for up front, more are still accepted
+     */
+    VertexDeduplicator(int floatsPerVertex, int expectedVertices)
+    {
+        this.floatsPerVertex = floatsPerVertex;
+        
+        int capacity = Integer.highestOneBit(Integer.max(expectedVertices, 8) * 2 - 1) << 1;
+        this.vertices = new float[Integer.max(expectedVertices, 8) * floatsPerVertex];
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(table, EMPTY);
+    }
+    
+    /**
+     * Adds the vertex at the offset, unless an equal vertex has been added before
+     *
+     * @param source the vertex data to read from
+     * @param offset the index of the first float of the vertex in source
+     * @return the index of the vertex among the distinct vertices
+     */
+    int add(float[] source, int offset)
+    {
+        int slot = hash(source, offset) & mask;
+        while (true)
+        {
+            int index = table[slot];
+            if (index == EMPTY)
+            {
+                index = append(source, offset);
+                table[slot] = index;
+                
+                // Keep the table at most half full, so probes stay short
+                if (vertexCount * 2 > table.length)
+                {
+                    grow();
+                }
+                return index;
+            }
+            
+            if (matches(index, source, offset))
+            {
+                return index;
+            }
+            
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    int getVertexCount()
+    {
+        return vertexCount;
+    }
+    
+    /**
+     * Gets the distinct vertices, interleaved in the order they were first added
+     */
+    float[] getVertices()
+    {
+        return Arrays.copyOf(vertices, vertexCount * floatsPerVertex);
+    }
+    
+    private int append(float[] source, int offset)
+    {
+        if ((vertexCount + 1) * floatsPerVertex > vertices.length)
+        {
+            vertices = Arrays.copyOf(vertices, vertices.length * 2);
+        }
+        
+        System.arraycopy(source, offset, vertices, vertexCount * floatsPerVertex, floatsPerVertex);
+        return vertexCount++;
+    }
+    
+    private boolean matches(int index, float[] source, int offset)
+    {
+        int start = index * floatsPerVertex;
+        for (int i = 0; i < floatsPerVertex; i++)
+        {
+            if (Float.floatToIntBits(vertices[start + i]) != Float.floatToIntBits(source[offset + i]))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void grow()
+    {
+        table = new int[table.length * 2];
+        mask = table.length - 1;
+        Arrays.fill(table, EMPTY);
+        
+        for (int index = 0; index < vertexCount; index++)
+        {
+            int slot = hash(vertices, index * floatsPerVertex) & mask;
+            while (table[slot] != EMPTY)
+            {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = index;
+        }
+    }
+    
+    private int hash(float[] source, int offset)
+    {
+        int hash = 0;
+        for (int i = 0; i < floatsPerVertex; i++)
+        {
+            hash = hash * 31 + Float.floatToIntBits(source[offset + i]);
+        }
+        
+        // Spread the bits, nearby positions only differ in the low bits of the mantissa
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -2,16 +2,32 @@ package no.stelar7.vulkan.engine.renderer;
 
 import org.lwjgl.vulkan.*;
 
+import java.nio.IntBuffer;
+
+import static org.lwjgl.system.MemoryUtil.*;
 import static org.lwjgl.vulkan.VK10.*;
 
 public class DeviceFamily
 {
     private VkDevice                         device;
     private int                              queueFamily;
+    private int                              transferQueueFamily;
     private VkPhysicalDeviceMemoryProperties memoryProperties;
     
+    // Set when the features were enabled on the device and the graphics family can bind sparse memory
+    private boolean sparseBinding;
+    private boolean sparseResidency;
+    
+    // Both queue families, set when buffers have to be shared between them
+    private IntBuffer sharedQueueFamilies;
+    
     public void free()
     {
+        if (sharedQueueFamilies != null)
+        {
+            memFree(sharedQueueFamilies);
+        }
+        
         memoryProperties.free();
         vkDestroyDevice(device, null);
     }
@@ -34,6 +50,72 @@ public class DeviceFamily
     public void setQueueFamily(int queueFamily)
     {
         this.queueFamily = queueFamily;
+        this.transferQueueFamily = queueFamily;
+    }
+    
+    /**
+     * Gets the queue family uploads are submitted to, this is the graphics family unless the device has a dedicated transfer family
+     */
+    public int getTransferQueueFamily()
+    {
+        return transferQueueFamily;
+    }
+    
+    /**
+     * Sets the dedicated transfer family, must be called after the graphics family is set
+     */
+    public void setTransferQueueFamily(int transferQueueFamily)
+    {
+        this.transferQueueFamily = transferQueueFamily;
+        
+        if (hasTransferQueue() && sharedQueueFamilies == null)
+        {
+            sharedQueueFamilies = memAllocInt(2).put(0, queueFamily).put(1, transferQueueFamily);
+        }
+    }
+    
+    public boolean hasTransferQueue()
+    {
+        return transferQueueFamily != queueFamily;
+    }
+    
+    /**
+     * Sets the sharing mode of a buffer, buffers are shared between both families when uploads are done on a dedicated transfer queue
+     */
+    public VkBufferCreateInfo setSharingMode(VkBufferCreateInfo createInfo)
+    {
+        if (hasTransferQueue())
+        {
+            return createInfo.sharingMode(VK_SHARING_MODE_CONCURRENT).pQueueFamilyIndices(sharedQueueFamilies);
+        }
+        
+        return createInfo.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+    }
+    
+    /**
+     * Checks if resources can be created with sparse binding, they must still be fully bound before they are used
+     */
+    public boolean hasSparseBinding()
+    {
+        return sparseBinding;
+    }
+    
+    public void setSparseBinding(boolean sparseBinding)
+    {
+        this.sparseBinding = sparseBinding;
+    }
+    
+    /**
+     * Checks if buffers can be used while only some of their pages are bound
+     */
+    public boolean hasSparseResidency()
+    {
+        return sparseResidency;
+    }
+    
+    public void setSparseResidency(boolean sparseResidency)
+    {
+        this.sparseResidency = sparseResidency;
     }
     
     public VkPhysicalDeviceMemoryProperties getMemoryProperties()
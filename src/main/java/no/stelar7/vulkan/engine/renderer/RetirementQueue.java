@@ -0,0 +1,150 @@
+package no.stelar7.vulkan.engine.renderer;
+
+import no.stelar7.vulkan.engine.buffer.*;
+import no.stelar7.vulkan.engine.memory.*;
+import org.lwjgl.vulkan.VkDevice;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Holds on to resources that are destroyed while the GPU may still be using them, and releases them once it is done with them.
+ * <p>
+ * Everything retired goes into the bucket of the current frame. A frame only comes around again after its fence has been waited on,
+ * and every earlier submit to the queue is done by then, so the whole bucket is released in one go at the start of the frame.
+ */
+public class RetirementQueue
+{
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private VkDevice device;
+    
+    private List<List<Runnable>> buckets = new ArrayList<>();
+    private int                  currentFrame;
+    
+    public RetirementQueue(VkDevice device, int frameCount)
+    {
+        this.device = device;
+        for (int i = 0; i < frameCount; i++)
+        {
+            buckets.add(new ArrayList<>());
+        }
+    }
+    
+    /**
+     * Runs the release once the GPU is done with the current frame
+     */
+    public void retire(Runnable release)
+    {
+        lock.lock();
+        try
+        {
+            buckets.get(currentFrame).add(release);
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    public void retire(Buffer buffer)
+    {
+        retire(() -> buffer.free(device));
+    }
+    
+    public void retire(StagedBuffer buffer)
+    {
+        if (buffer.hasHostBuffer())
+        {
+            retire(buffer.getHostBuffer());
+        }
+        
+        if (!buffer.isUnified())
+        {
+            retire(buffer.getDeviceBuffer());
+        }
+    }
+    
+    /**
+     * Gives a block that nothing is bound to any more back to the allocator
+     */
+    public void retire(MemoryBlock block)
+    {
+        retire(() -> MemoryAllocator.getInstance().deallocate(block));
+    }
+    
+    /**
+     * Destroys a VkBuffer that does not have a Buffer of its own, like the old handle of a buffer that was moved
+     */
+    public void retireBufferHandle(long bufferHandle)
+    {
+        retire(() -> vkDestroyBuffer(device, bufferHandle, null));
+    }
+    
+    /**
+     * Destroys an image and its view, and gives its memory back to the allocator
+     */
+    public void retireImage(long image, long view, MemoryBlock block)
+    {
+        retire(() ->
+               {
+                   vkDestroyImageView(device, view, null);
+                   vkDestroyImage(device, image, null);
+                   MemoryAllocator.getInstance().deallocate(block);
+               });
+    }
+    
+    /**
+     * Releases everything retired the last time the frame was current, and makes it current.
+     * The fence of the last submit of the frame must have been waited on.
+     */
+    public void beginFrame(int frame)
+    {
+        List<Runnable> released;
+        
+        lock.lock();
+        try
+        {
+            released = buckets.get(frame);
+            buckets.set(frame, new ArrayList<>());
+            currentFrame = frame;
+        } finally
+        {
+            lock.unlock();
+        }
+        
+        // Released outside the lock, so a release is free to retire something else
+        released.forEach(Runnable::run);
+    }
+    
+    /**
+     * Gets the amount of resources waiting to be released, over every frame
+     */
+    public int getPendingCount()
+    {
+        lock.lock();
+        try
+        {
+            return buckets.stream().mapToInt(List::size).sum();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Releases everything at once, the device must be idle
+     */
+    public void free()
+    {
+        // A release may retire something else, like a pool page that became empty
+        while (getPendingCount() > 0)
+        {
+            for (int i = 0; i < buckets.size(); i++)
+            {
+                beginFrame(i);
+            }
+        }
+    }
+}
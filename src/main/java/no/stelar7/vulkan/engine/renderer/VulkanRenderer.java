@@ -4,9 +4,10 @@ import no.stelar7.vulkan.engine.EngineUtils;
 import no.stelar7.vulkan.engine.buffer.Buffer;
 import no.stelar7.vulkan.engine.buffer.*;
 import no.stelar7.vulkan.engine.game.Game;
-import no.stelar7.vulkan.engine.game.objects.GameObject;
+import no.stelar7.vulkan.engine.game.objects.*;
 import no.stelar7.vulkan.engine.memory.MemoryAllocator;
 import no.stelar7.vulkan.engine.memory.*;
+import no.stelar7.vulkan.engine.mesh.MeshFile;
 import no.stelar7.vulkan.engine.spec.*;
 import org.joml.*;
 import org.lwjgl.*;
@@ -14,9 +15,11 @@ import org.lwjgl.glfw.*;
 import org.lwjgl.system.*;
 import org.lwjgl.vulkan.*;
 
+import java.io.UncheckedIOException;
 import java.nio.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static org.lwjgl.glfw.GLFW.*;
@@ -39,6 +42,41 @@ public class VulkanRenderer
     
     private static final long DEFAULT_FENCE_TIMEOUT = 100000000000L;
     
+    private static final int FRAMES_IN_FLIGHT = 2;
+    
+    // 1MB per frame
+    private static final long FRAME_RING_SIZE = 1024 * 1024;
+    
+    // How many bytes the defragmenter may move per frame
+    private static final long DEFRAG_BUDGET = 4 * 1024 * 1024;
+    
+    // Staged buffers are ranges of a few shared VkBuffers, instead of a VkBuffer each
+    private static final boolean SUB_ALLOCATE_BUFFERS = true;
+    
+    // 16MB per VkBuffer in a buffer pool
+    private static final long BUFFER_POOL_PAGE_SIZE = 16 * 1024 * 1024;
+    
+    // 8MB per buffer in the geometry pool, every static mesh is packed into these
+    private static final long GEOMETRY_PAGE_SIZE = 8 * 1024 * 1024;
+    
+    // Index buffers where no index is above this are stored as 16 bit, primitive restart is off so 0xFFFF is a normal index
+    private static final long MAX_SHORT_INDEX = 0xFFFF;
+    
+    // 8MB shared staging space for static buffers
+    private static final int STAGING_RING_SIZE = 8 * 1024 * 1024;
+    
+    // Reserve large buffers and commit their pages on demand, when the device supports sparse residency for buffers
+    private static final boolean USE_SPARSE_BUFFERS = true;
+    
+    // Pages of a sparse buffer that go untouched for this many frames are evicted, never less than FRAMES_IN_FLIGHT
+    private static final int SPARSE_EVICT_FRAMES = 120;
+    
+    // Uploads go to a dedicated transfer queue family when the device has one
+    private static final boolean USE_TRANSFER_QUEUE = true;
+    
+    // Memory the host can write to directly and the device reads at full speed, found on integrated and resizable-BAR devices
+    private static final int UNIFIED_MEMORY_PROPERTIES = VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT | VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT;
+    
     private long windowHandle;
     private long surfaceHandle;
     private long debugCallback;
@@ -49,20 +87,42 @@ public class VulkanRenderer
     private long descriptorSetLayout;
     private long descriptorSetHandle;
     
-    private long imageAcquredSemaphore;
-    private long renderCompleteSemaphore;
+    // One of each per frame in flight
+    private long[] imageAcquredSemaphores   = new long[FRAMES_IN_FLIGHT];
+    private long[] renderCompleteSemaphores = new long[FRAMES_IN_FLIGHT];
+    private long[] frameFences              = new long[FRAMES_IN_FLIGHT];
+    
+    // Signaled with the render semaphore, the next upload batch waits on it before it overwrites anything the frame reads
+    private long[] frameReadSemaphores = new long[FRAMES_IN_FLIGHT];
     
     
     private VkInstance       instance;
     private VkPhysicalDevice physicalDevice;
     private VkCommandBuffer  setupCommandBuffer;
-    private VkCommandBuffer  postPresentCommandBuffer;
     private VkQueue          deviceQueue;
+    private VkQueue          transferQueue;
     
     private DeviceFamily        deviceFamily;
     private ColorAndDepthFormat colorAndDepthFormat;
     private Pipeline            pipeline;
-    private StagedBuffer        uniformBuffer;
+    private UploadManager       uploadManager;
+    private Buffer              stagingRing;
+    private FrameRingBuffer     frameRingBuffer;
+    private RetirementQueue     retirementQueue;
+    private List<SparseBuffer>  sparseBuffers = new ArrayList<>();
+    private int                 currentFrame;
+    
+    // Written to the start of the frame ring partition every frame, the descriptor set reads it from there
+    private Matrix4f uniformData = new Matrix4f();
+    private long     uniformAlignment;
+    
+    private GeometryPool             geometryPool;
+    private BufferPool               hostBufferPool;
+    private Map<Integer, BufferPool> deviceBufferPools = new HashMap<>();
+    private long                     bufferPoolAlignment;
+    
+    // Staged buffers skip the host copy when the device has unified memory
+    private boolean unifiedMemory;
     
     private Swapchain         swapchain;
     private long[]            framebuffers;
@@ -74,6 +134,9 @@ public class VulkanRenderer
     
     private static final boolean DEBUG_MODE = false;
     
+    // Allocator stats are written here when F1 is pressed and at shutdown
+    private static final Path MEMORY_STATS_PATH = Paths.get("memory-stats.json");
+    
     private List<Long> shaders = new ArrayList<>();
     private VkClearValue.Buffer clearColor;
     
@@ -82,6 +145,14 @@ public class VulkanRenderer
         return deviceFamily;
     }
     
+    /**
+     * Gets the allocator for data that only needs to live until the current frame is done
+     */
+    public FrameRingBuffer getFrameRingBuffer()
+    {
+        return frameRingBuffer;
+    }
+    
     private static final ByteBuffer[] validationLayers = {
             memUTF8("VK_LAYER_LUNARG_standard_validation"),
             };
@@ -115,6 +186,17 @@ public class VulkanRenderer
                 saveScreenshotNested(Paths.get("C:\\Dropbox", "screenshot.ppm"));
                 lock.unlock();
             }
+            if (key == GLFW_KEY_F1)
+            {
+                try
+                {
+                    MemoryAllocator.getInstance().getStats().writeJson(MEMORY_STATS_PATH);
+                } catch (UncheckedIOException e)
+                {
+                    // An exception can not be thrown back through GLFW, and a failed dump should not stop the game
+                    System.err.println(e.getMessage());
+                }
+            }
         }
     };
     
@@ -160,10 +242,13 @@ public class VulkanRenderer
         
         game.destroy();
         
-        MemoryAllocator.getInstance().free();
-        
-        vkDestroySemaphore(deviceFamily.getDevice(), renderCompleteSemaphore, null);
-        vkDestroySemaphore(deviceFamily.getDevice(), imageAcquredSemaphore, null);
+        for (int i = 0; i < FRAMES_IN_FLIGHT; i++)
+        {
+            vkDestroySemaphore(deviceFamily.getDevice(), renderCompleteSemaphores[i], null);
+            vkDestroySemaphore(deviceFamily.getDevice(), imageAcquredSemaphores[i], null);
+            vkDestroySemaphore(deviceFamily.getDevice(), frameReadSemaphores[i], null);
+            vkDestroyFence(deviceFamily.getDevice(), frameFences[i], null);
+        }
         
         for (long framebuffer : framebuffers)
         {
@@ -178,7 +263,17 @@ public class VulkanRenderer
             vkDestroyShaderModule(deviceFamily.getDevice(), shader, null);
         }
         
-        uniformBuffer.free(deviceFamily.getDevice());
+        uploadManager.free();
+        retirementQueue.free();
+        sparseBuffers.forEach(SparseBuffer::free);
+        geometryPool.free();
+        stagingRing.free(deviceFamily.getDevice());
+        frameRingBuffer.free();
+        if (SUB_ALLOCATE_BUFFERS)
+        {
+            hostBufferPool.free();
+            deviceBufferPools.values().forEach(BufferPool::free);
+        }
         pipeline.free(deviceFamily.getDevice());
         
         vkDestroyDescriptorSetLayout(deviceFamily.getDevice(), descriptorSetLayout, null);
@@ -187,6 +282,7 @@ public class VulkanRenderer
         vkDestroyCommandPool(deviceFamily.getDevice(), renderCommandPoolHandle, null);
         vkDestroyCommandPool(deviceFamily.getDevice(), commandPoolHandle, null);
         
+        MemoryAllocator.getInstance().free();
         deviceFamily.free();
         
         vkDestroySurfaceKHR(instance, surfaceHandle, null);
@@ -215,32 +311,73 @@ public class VulkanRenderer
         debugCallback = createDebug(instance, VK_DEBUG_REPORT_ERROR_BIT_EXT | VK_DEBUG_REPORT_WARNING_BIT_EXT | VK_DEBUG_REPORT_PERFORMANCE_WARNING_BIT_EXT);
         physicalDevice = getFirstPhysicalDevice(instance);
         deviceFamily = createDeviceAndQueue(physicalDevice);
-        new MemoryAllocator(deviceFamily);
+        new MemoryAllocator(deviceFamily).setStatsPath(MEMORY_STATS_PATH);
+        unifiedMemory = EngineUtils.hasMemoryTypeInMainHeap(deviceFamily.getMemoryProperties(), UNIFIED_MEMORY_PROPERTIES);
         windowHandle = createWindow(width, height, title);
         surfaceHandle = createSurface(instance, windowHandle);
         setQueuePresent(physicalDevice, surfaceHandle, deviceFamily);
         colorAndDepthFormat = getColorFormat(physicalDevice, surfaceHandle);
         commandPoolHandle = createCommandPool(deviceFamily);
         setupCommandBuffer = createCommandBuffer(deviceFamily.getDevice(), commandPoolHandle);
-        postPresentCommandBuffer = createCommandBuffer(deviceFamily.getDevice(), commandPoolHandle);
-        deviceQueue = createDeviceQueue(deviceFamily);
+        deviceQueue = createDeviceQueue(deviceFamily, deviceFamily.getQueueFamily());
+        transferQueue = deviceFamily.hasTransferQueue() ? createDeviceQueue(deviceFamily, deviceFamily.getTransferQueueFamily()) : deviceQueue;
+        stagingRing = createBuffer(deviceFamily, STAGING_RING_SIZE, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, false);
+        // Copies out of the ring are recorded ahead of time, so the defragmenter must never move it
+        stagingRing.getMemoryBlock().setOwner(null);
+        uploadManager = new UploadManager(deviceFamily, transferQueue, stagingRing);
         renderpassHandle = createRenderpass(deviceFamily.getDevice(), colorAndDepthFormat);
         renderCommandPoolHandle = createCommandPool(deviceFamily);
-        uniformBuffer = createUniformBuffer(deviceFamily);
+        if (SUB_ALLOCATE_BUFFERS)
+        {
+            bufferPoolAlignment = getBufferOffsetAlignment(physicalDevice);
+            hostBufferPool = new BufferPool(deviceFamily, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, BUFFER_POOL_PAGE_SIZE, bufferPoolAlignment);
+        }
+        retirementQueue = new RetirementQueue(deviceFamily.getDevice(), FRAMES_IN_FLIGHT);
+        geometryPool = new GeometryPool(deviceFamily.getDevice(), retirementQueue, VertexLayout.POSITION_COLOR, GEOMETRY_PAGE_SIZE, size -> createStaticBuffer(deviceFamily, (int) size, VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_INDEX_BUFFER_BIT));
+        frameRingBuffer = new FrameRingBuffer(deviceFamily, FRAMES_IN_FLIGHT, FRAME_RING_SIZE, VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT | VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_INDEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_SRC_BIT);
+        uniformAlignment = getBufferOffsetAlignment(physicalDevice);
         descriptorPoolHandle = createDescriptorPool(deviceFamily.getDevice());
         descriptorSetLayout = createDescriptorSetLayout(deviceFamily.getDevice());
-        descriptorSetHandle = createDescriptorSet(deviceFamily.getDevice(), descriptorPoolHandle, descriptorSetLayout, uniformBuffer);
+        descriptorSetHandle = createDescriptorSet(deviceFamily.getDevice(), descriptorPoolHandle, descriptorSetLayout, frameRingBuffer);
         pipeline = createPipeline(deviceFamily.getDevice(), renderpassHandle, VertexSpec.getVertexInputState(), descriptorSetLayout);
         
-        imageAcquredSemaphore = createSemaphore(deviceFamily.getDevice());
-        renderCompleteSemaphore = createSemaphore(deviceFamily.getDevice());
+        for (int i = 0; i < FRAMES_IN_FLIGHT; i++)
+        {
+            imageAcquredSemaphores[i] = createSemaphore(deviceFamily.getDevice());
+            renderCompleteSemaphores[i] = createSemaphore(deviceFamily.getDevice());
+            frameReadSemaphores[i] = createSemaphore(deviceFamily.getDevice());
+            frameFences[i] = createSignaledFence(deviceFamily.getDevice());
+        }
         
         
         glfwShowWindow(windowHandle);
     }
     
-    public void swapHostToDevice(StagedBuffer buffer)
+    /**
+     * Queues a copy of the host buffer into the device buffer, it is submitted together with the other queued copies before the next frame.
+     * The render thread must not wait on the future, it is completed by the render thread once the copy is done.
+     */
+    public CompletableFuture<StagedBuffer> swapHostToDevice(StagedBuffer buffer)
+    {
+        return uploadManager.upload(buffer);
+    }
+    
+    /**
+     * Moves buffers out of a sparse chunk, at most DEFRAG_BUDGET bytes at a time.
+     * Moved buffers get a new handle, so the command buffers and descriptor set are rebuilt afterwards.
+     */
+    private void defragment()
     {
+        DefragmentationPass pass = MemoryAllocator.getInstance().defragment(DEFRAG_BUDGET);
+        if (pass == null)
+        {
+            return;
+        }
+        
+        // Frames in flight read the blocks that are moved, and their command buffers are recorded again below
+        waitForFrames();
+        
+        lock.lock();
         
         VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.calloc()
                                                                      .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
@@ -249,41 +386,82 @@ public class VulkanRenderer
         EngineUtils.checkError(vkBeginCommandBuffer(setupCommandBuffer, beginInfo));
         beginInfo.free();
         
-        VkBufferCopy.Buffer bufferCopy = VkBufferCopy.calloc(1)
-                                                     // This is the offset into the buffer. We do not index our buffers...
-                                                     //.srcOffset(buffer.getHostBuffer().getMemoryBlock().getOffset())
-                                                     //.dstOffset(buffer.getDeviceBuffer().getMemoryBlock().getOffset())
-                                                     .size(buffer.getDeviceBuffer().getMemoryBlock().getSize());
+        long[]              oldHandles = new long[pass.getMoveCount()];
+        VkBufferCopy.Buffer bufferCopy = VkBufferCopy.calloc(1);
         
-        vkCmdCopyBuffer(setupCommandBuffer, buffer.getHostBuffer().getBufferHandle(), buffer.getDeviceBuffer().getBufferHandle(), bufferCopy);
-        EngineUtils.checkError(vkEndCommandBuffer(setupCommandBuffer));
+        for (int i = 0; i < pass.getMoveCount(); i++)
+        {
+            // Either a buffer of its own or a whole page of a BufferPool, the pool points its buffers at the new handle
+            MovableBuffer buffer      = (MovableBuffer) pass.getSource(i).getOwner();
+            MemoryBlock   destination = pass.getDestination(i);
+            
+            // Buffers can not be rebound, so the moved copy gets a new (non-sparse) handle
+            oldHandles[i] = buffer.getBufferHandle();
+            long handle = createBufferHandle(deviceFamily, buffer.getSize(), buffer.getUsage(), false);
+            EngineUtils.checkError(vkBindBufferMemory(deviceFamily.getDevice(), handle, destination.getMemory(), destination.getOffset()));
+            buffer.moveTo(handle, destination);
+            
+            bufferCopy.size(buffer.getSize());
+            vkCmdCopyBuffer(setupCommandBuffer, oldHandles[i], handle, bufferCopy);
+        }
         
+        EngineUtils.checkError(vkEndCommandBuffer(setupCommandBuffer));
         submitCommandBuffer(deviceQueue, setupCommandBuffer);
-        EngineUtils.checkError(vkQueueWaitIdle(deviceQueue));
+        bufferCopy.free();
         
-        buffer.setDirty(false);
+        for (long handle : oldHandles)
+        {
+            vkDestroyBuffer(deviceFamily.getDevice(), handle, null);
+        }
+        pass.complete();
+        
+        // The descriptor set points into the frame ring, which has a chunk of its own and is never moved
+        if (renderCommandBuffers != null)
+        {
+            vkResetCommandPool(deviceFamily.getDevice(), renderCommandPoolHandle, 0);
+            renderCommandBuffers = createRenderCommandBufffers(deviceFamily.getDevice(), renderCommandPoolHandle, framebuffers, renderpassHandle, width, height, pipeline, descriptorSetHandle, game.getGameObjects());
+        }
+        
+        if (DEBUG_MODE)
+        {
+            System.out.format("Moved %d buffers (%d bytes)%n", pass.getMoveCount(), pass.getMovedSize());
+            System.out.println("Before: " + pass.getBefore());
+            System.out.println("After:  " + pass.getAfter());
+        }
+        
+        lock.unlock();
     }
     
-    private Buffer createBuffer(DeviceFamily deviceFamily, int size, int usage, int properties, boolean sparse)
+    private long createBufferHandle(DeviceFamily deviceFamily, long size, int usage, boolean sparse)
     {
-        Buffer buffer = new Buffer();
-        buffer.setSize(size);
-        
         LongBuffer handleHolder = memAllocLong(1);
         VkBufferCreateInfo bufferCreateInfo = VkBufferCreateInfo.calloc()
                                                                 .flags(sparse ? VK_BUFFER_CREATE_SPARSE_BINDING_BIT : 0)
                                                                 .sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
-                                                                .sharingMode(VK_SHARING_MODE_EXCLUSIVE)
                                                                 .size(size)
                                                                 .usage(usage);
-        
+        deviceFamily.setSharingMode(bufferCreateInfo);
         
         EngineUtils.checkError(vkCreateBuffer(deviceFamily.getDevice(), bufferCreateInfo, null, handleHolder));
-        buffer.setBufferHandle(handleHolder.get(0));
+        long handle = handleHolder.get(0);
         
         bufferCreateInfo.free();
         memFree(handleHolder);
         
+        return handle;
+    }
+    
+    private Buffer createBuffer(DeviceFamily deviceFamily, int size, int usage, int properties, boolean sparse)
+    {
+        Buffer buffer = new Buffer();
+        buffer.setSize(size);
+        
+        // Every buffer can be copied both ways, so the defragmenter is able to move it
+        buffer.setUsage(usage | VK_BUFFER_USAGE_TRANSFER_SRC_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT);
+        // Without the feature the buffer is bound the normal way
+        sparse &= deviceFamily.hasSparseBinding();
+        buffer.setBufferHandle(createBufferHandle(deviceFamily, size, buffer.getUsage(), sparse));
+        
         if (DEBUG_MODE)
         {
             System.out.println("Requested buffer size: " + size);
@@ -302,8 +480,8 @@ public class VulkanRenderer
         }
         
         
-        // TODO: Use "size" instead of "allocationSize" when alignment is taken into consideration in the allocate function
         MemoryBlock block = MemoryAllocator.getInstance().allocate(allocationSize, alignment, index);
+        block.setOwner(buffer);
         buffer.setMemoryBlock(block);
         
         if (sparse)
@@ -327,7 +505,7 @@ public class VulkanRenderer
                                                           .sType(VK_STRUCTURE_TYPE_BIND_SPARSE_INFO)
                                                           .pBufferBinds(bindInfo);
             
-            vkQueueBindSparse(deviceQueue, sparseInfo, VK_NULL_HANDLE);
+            bindSparse(sparseInfo);
             
             memoryBinds.free();
             sparseInfo.free();
@@ -346,29 +524,61 @@ public class VulkanRenderer
     }
     
     
-    private void postPresentBarrier(long image, VkCommandBuffer buffer, VkQueue queue)
+    /**
+     * Submits sparse binds and waits for them, sparse binds are not ordered against anything else on the queue
+     */
+    private void bindSparse(VkBindSparseInfo sparseInfo)
     {
-        VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.calloc()
-                                                                     .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+        VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.calloc().sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+        LongBuffer        fence     = memAllocLong(1);
         
-        EngineUtils.checkError(vkBeginCommandBuffer(buffer, beginInfo));
-        beginInfo.free();
+        EngineUtils.checkError(vkCreateFence(deviceFamily.getDevice(), fenceInfo, null, fence));
+        EngineUtils.checkError(vkQueueBindSparse(deviceQueue, sparseInfo, fence.get(0)));
+        EngineUtils.checkError(vkWaitForFences(deviceFamily.getDevice(), fence, true, DEFAULT_FENCE_TIMEOUT));
+        
+        vkDestroyFence(deviceFamily.getDevice(), fence.get(0), null);
         
+        memFree(fence);
+        fenceInfo.free();
+    }
+    
+    /**
+     * Creates a fence that starts out signaled, so the first wait on it returns at once
+     */
+    private long createSignaledFence(VkDevice device)
+    {
+        VkFenceCreateInfo createInfo = VkFenceCreateInfo.calloc()
+                                                        .sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO)
+                                                        .flags(VK_FENCE_CREATE_SIGNALED_BIT);
         
-        int srcStage  = VK_PIPELINE_STAGE_ALL_COMMANDS_BIT;
-        int dstStage  = VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT;
-        int mask      = VK_IMAGE_ASPECT_COLOR_BIT;
-        int srcLayout = VK_IMAGE_LAYOUT_PRESENT_SRC_KHR;
-        int dstLayout = VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL;
-        int srcAccess = VK_ACCESS_MEMORY_READ_BIT;
-        int dstAccess = VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT;
+        LongBuffer handleHolder = memAllocLong(1);
+        EngineUtils.checkError(vkCreateFence(device, createInfo, null, handleHolder));
+        long handle = handleHolder.get(0);
         
-        imageBarrier(buffer, image, mask, srcAccess, dstAccess, srcLayout, dstLayout, srcStage, dstStage);
+        memFree(handleHolder);
+        createInfo.free();
         
-        EngineUtils.checkError(vkEndCommandBuffer(buffer));
-        submitCommandBuffer(queue, buffer);
+        return handle;
     }
     
+    /**
+     * Blocks until the last submit of the frame is done
+     */
+    private void waitForFrame(int frame)
+    {
+        EngineUtils.checkError(vkWaitForFences(deviceFamily.getDevice(), frameFences[frame], true, Long.MAX_VALUE));
+    }
+    
+    /**
+     * Blocks until every frame in flight is done
+     */
+    private void waitForFrames()
+    {
+        for (int i = 0; i < FRAMES_IN_FLIGHT; i++)
+        {
+            waitForFrame(i);
+        }
+    }
     
     private long createSemaphore(VkDevice device)
     {
@@ -454,15 +664,16 @@ public class VulkanRenderer
     {
         VkCommandBufferAllocateInfo allocateInfo = VkCommandBufferAllocateInfo.calloc()
                                                                               .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
-                                                                              .commandBufferCount(framebuffers.length)
+                                                                              .commandBufferCount(FRAMES_IN_FLIGHT * framebuffers.length)
                                                                               .level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
                                                                               .commandPool(cmdPool);
         
-        PointerBuffer bufferHandles = memAllocPointer(framebuffers.length);
+        PointerBuffer bufferHandles = memAllocPointer(FRAMES_IN_FLIGHT * framebuffers.length);
         EngineUtils.checkError(vkAllocateCommandBuffers(device, allocateInfo, bufferHandles));
         
         
-        VkCommandBuffer[] buffers = new VkCommandBuffer[framebuffers.length];
+        // One per frame in flight and swapchain image, each frame reads the uniform data from its own part of the frame ring
+        VkCommandBuffer[] buffers = new VkCommandBuffer[FRAMES_IN_FLIGHT * framebuffers.length];
         for (int i = 0; i < buffers.length; i++)
         {
             buffers[i] = new VkCommandBuffer(bufferHandles.get(i), device);
@@ -493,58 +704,76 @@ public class VulkanRenderer
         scissor.offset().set(0, 0);
         
         LongBuffer descriptorHolder = memAllocLong(1).put(0, descriptorSet);
+        IntBuffer  uniformHolder    = memAllocInt(1);
         LongBuffer offsetHolder     = memAllocLong(1).put(0, 0);
         LongBuffer vertexHolder     = memAllocLong(1);
         
         for (int i = 0; i < buffers.length; i++)
         {
             VkCommandBuffer renderBuffer = buffers[i];
+            int             frame        = i / framebuffers.length;
+            int             image        = i % framebuffers.length;
             
-            passBeginInfo.framebuffer(framebuffers[i]);
+            passBeginInfo.framebuffer(framebuffers[image]);
             EngineUtils.checkError(vkBeginCommandBuffer(renderBuffer, beginInfo));
             
+            // The old contents are cleared anyway, so the image is taken from whatever layout it was presented in
+            int preSrcStage  = VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT;
+            int preDstStage  = VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT;
+            int preMask      = VK_IMAGE_ASPECT_COLOR_BIT;
+            int preSrcLayout = VK_IMAGE_LAYOUT_UNDEFINED;
+            int preDstLayout = VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL;
+            int preSrcAccess = 0;
+            int preDstAccess = VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT;
+            
+            imageBarrier(renderBuffer, swapchain.getImage(image), preMask, preSrcAccess, preDstAccess, preSrcLayout, preDstLayout, preSrcStage, preDstStage);
+            
             vkCmdBeginRenderPass(renderBuffer, passBeginInfo, VK_SUBPASS_CONTENTS_INLINE);
             vkCmdSetViewport(renderBuffer, 0, viewport);
             vkCmdSetScissor(renderBuffer, 0, scissor);
-            vkCmdBindDescriptorSets(renderBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline.getLayout(), 0, descriptorHolder, null);
+            uniformHolder.put(0, (int) frameRingBuffer.getFrameOffset(frame));
+            vkCmdBindDescriptorSets(renderBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline.getLayout(), 0, descriptorHolder, uniformHolder);
             vkCmdBindPipeline(renderBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline.getHandle());
             
-            for (GameObject obj : gameObjects)
+            // Models in the same page share their buffers, so they are only bound when the page or index type changes
+            StagedBuffer boundBuffer    = null;
+            int          boundIndexType = -1;
+            for (GameObject obj : sortByPage(gameObjects))
             {
+                Model model = obj.getModel();
+                
                 if (DEBUG_MODE)
                 {
-                    if (obj.getModel().getVertexBuffer().isDirty())
+                    if (model.getBuffer().isDirty())
                     {
-                        System.out.println("The vertex buffer has not been swapped!");
+                        System.out.println("The geometry buffer has not been swapped!");
                     }
                     
-                    if (obj.getModel().getIndexBuffer().isDirty())
-                    {
-                        System.out.println("The index buffer has not been swapped!");
-                    }
-                    
-                    Buffer        hostBuffer  = obj.getModel().getVertexBuffer().getHostBuffer();
-                    PointerBuffer hostPointer = memAllocPointer(1);
-                    
-                    EngineUtils.checkError(vkMapMemory(deviceFamily.getDevice(), hostBuffer.getMemoryBlock().getMemory(), hostBuffer.getMemoryBlock().getOffset(), hostBuffer.getSize(), 0, hostPointer));
-                    long pointer = hostPointer.get(0);
-                    
-                    
                     System.out.print("index count:");
-                    System.out.println(obj.getModel().getIndexCount());
-                    
-                    FloatBuffer data = memFloatBuffer(pointer, obj.getModel().getIndexCount() * VertexSpec.getVertexInputState().pVertexBindingDescriptions().stride() / Float.BYTES);
-                    System.out.print("Data in vertex buffer:");
-                    EngineUtils.printBuffer(data);
-                    
-                    vkUnmapMemory(deviceFamily.getDevice(), hostBuffer.getMemoryBlock().getMemory());
-                    memFree(hostPointer);
+                    System.out.println(model.getIndexCount());
+                    System.out.print("first index:");
+                    System.out.println(model.getFirstIndex());
+                    System.out.print("vertex offset:");
+                    System.out.println(model.getVertexOffset());
+                }
+                
+                Buffer buffer = model.getBuffer().getDeviceBuffer();
+                if (model.getBuffer() != boundBuffer)
+                {
+                    vertexHolder.put(0, buffer.getBufferHandle());
+                    offsetHolder.put(0, buffer.getOffset());
+                    vkCmdBindVertexBuffers(renderBuffer, 0, vertexHolder, offsetHolder);
+                }
+                
+                if (model.getBuffer() != boundBuffer || model.getIndexType() != boundIndexType)
+                {
+                    vkCmdBindIndexBuffer(renderBuffer, buffer.getBufferHandle(), buffer.getOffset(), model.getIndexType());
                 }
                 
-                vertexHolder.put(0, obj.getModel().getVertexBuffer().getDeviceBuffer().getBufferHandle());
-                vkCmdBindVertexBuffers(renderBuffer, 0, vertexHolder, offsetHolder);
-                vkCmdBindIndexBuffer(renderBuffer, obj.getModel().getIndexBuffer().getDeviceBuffer().getBufferHandle(), 0, VK_INDEX_TYPE_UINT32);
-                vkCmdDrawIndexed(renderBuffer, obj.getModel().getIndexCount(), 1, 0, 0, 1);
+                boundBuffer = model.getBuffer();
+                boundIndexType = model.getIndexType();
+                
+                vkCmdDrawIndexed(renderBuffer, model.getIndexCount(), 1, model.getFirstIndex(), model.getVertexOffset(), 1);
             }
             
             vkCmdEndRenderPass(renderBuffer);
@@ -557,7 +786,7 @@ public class VulkanRenderer
             int srcAccess = VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT;
             int dstAccess = VK_ACCESS_MEMORY_READ_BIT;
             
-            imageBarrier(renderBuffer, swapchain.getImage(i), mask, srcAccess, dstAccess, srcLayout, dstLayout, srcStage, dstStage);
+            imageBarrier(renderBuffer, swapchain.getImage(image), mask, srcAccess, dstAccess, srcLayout, dstLayout, srcStage, dstStage);
             
             EngineUtils.checkError(vkEndCommandBuffer(renderBuffer));
         }
@@ -568,6 +797,7 @@ public class VulkanRenderer
         passBeginInfo.free();
         memFree(vertexHolder);
         memFree(offsetHolder);
+        memFree(uniformHolder);
         memFree(descriptorHolder);
         
         return buffers;
@@ -629,7 +859,7 @@ public class VulkanRenderer
         DepthStencil stencil = new DepthStencil();
         
         VkImageCreateInfo imageCreateInfo = VkImageCreateInfo.calloc()
-                                                             .flags(VK_IMAGE_CREATE_SPARSE_BINDING_BIT | VK_IMAGE_CREATE_SPARSE_ALIASED_BIT)
+                                                             .flags(deviceFamily.hasSparseBinding() ? VK_IMAGE_CREATE_SPARSE_BINDING_BIT : 0)
                                                              .usage(VK_IMAGE_USAGE_DEPTH_STENCIL_ATTACHMENT_BIT)
                                                              .sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO)
                                                              .tiling(VK_IMAGE_TILING_OPTIMAL)
@@ -660,28 +890,31 @@ public class VulkanRenderer
         
         
         int mask = VK_IMAGE_ASPECT_DEPTH_BIT | VK_IMAGE_ASPECT_STENCIL_BIT;
-        VkSparseMemoryBind.Buffer memoryBinds = VkSparseMemoryBind.calloc(1)
-                                                                  .memory(stencil.getMemoryBlock().getMemory())
-                                                                  .memoryOffset(stencil.getMemoryBlock().getOffset())
-                                                                  .size(stencil.getMemoryBlock().getSize())
-                                                                  .resourceOffset(0);
-        
-        VkSparseImageOpaqueMemoryBindInfo.Buffer bindInfo = VkSparseImageOpaqueMemoryBindInfo.calloc(1)
-                                                                                             .image(stencil.getImage())
-                                                                                             .pBinds(memoryBinds);
-        
-        VkBindSparseInfo sparseInfo = VkBindSparseInfo.calloc()
-                                                      .sType(VK_STRUCTURE_TYPE_BIND_SPARSE_INFO)
-                                                      .pImageOpaqueBinds(bindInfo);
-        
-        vkQueueBindSparse(deviceQueue, sparseInfo, VK_NULL_HANDLE);
-        
-        memoryBinds.free();
-        sparseInfo.free();
-        bindInfo.free();
-        
-        
-        // vkBindImageMemory(deviceFamily.getDevice(), stencil.getImage(), stencil.getMemoryBlock().getMemory(), stencil.getMemoryBlock().getOffset());
+        if (deviceFamily.hasSparseBinding())
+        {
+            VkSparseMemoryBind.Buffer memoryBinds = VkSparseMemoryBind.calloc(1)
+                                                                      .memory(stencil.getMemoryBlock().getMemory())
+                                                                      .memoryOffset(stencil.getMemoryBlock().getOffset())
+                                                                      .size(stencil.getMemoryBlock().getSize())
+                                                                      .resourceOffset(0);
+            
+            VkSparseImageOpaqueMemoryBindInfo.Buffer bindInfo = VkSparseImageOpaqueMemoryBindInfo.calloc(1)
+                                                                                                 .image(stencil.getImage())
+                                                                                                 .pBinds(memoryBinds);
+            
+            VkBindSparseInfo sparseInfo = VkBindSparseInfo.calloc()
+                                                          .sType(VK_STRUCTURE_TYPE_BIND_SPARSE_INFO)
+                                                          .pImageOpaqueBinds(bindInfo);
+            
+            bindSparse(sparseInfo);
+            
+            memoryBinds.free();
+            sparseInfo.free();
+            bindInfo.free();
+        } else
+        {
+            EngineUtils.checkError(vkBindImageMemory(deviceFamily.getDevice(), stencil.getImage(), stencil.getMemoryBlock().getMemory(), stencil.getMemoryBlock().getOffset()));
+        }
         
         int stage = VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT;
         imageBarrier(buffer, stencil.getImage(), mask, 0, VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_WRITE_BIT, VK_IMAGE_LAYOUT_UNDEFINED, VK_IMAGE_LAYOUT_DEPTH_STENCIL_ATTACHMENT_OPTIMAL, stage, stage);
@@ -1007,7 +1240,27 @@ public class VulkanRenderer
         return shaderStage;
     }
     
-    private long createDescriptorSet(VkDevice device, long descriptorPool, long descriptorSetLayout, StagedBuffer ubo)
+    /**
+     * Orders the objects so every page of the geometry pool is drawn in one go, with the 16 bit indices of a page before the 32 bit ones
+     */
+    private List<GameObject> sortByPage(Collection<GameObject> gameObjects)
+    {
+        Map<StagedBuffer, List<GameObject>> pages = new LinkedHashMap<>();
+        for (GameObject obj : gameObjects)
+        {
+            pages.computeIfAbsent(obj.getModel().getBuffer(), b -> new ArrayList<>()).add(obj);
+        }
+        
+        List<GameObject> sorted = new ArrayList<>(gameObjects.size());
+        for (List<GameObject> page : pages.values())
+        {
+            page.sort(Comparator.comparingInt(obj -> obj.getModel().getIndexType()));
+            sorted.addAll(page);
+        }
+        return sorted;
+    }
+    
+    private long createDescriptorSet(VkDevice device, long descriptorPool, long descriptorSetLayout, FrameRingBuffer ring)
     {
         LongBuffer setLayout = memAllocLong(1).put(0, descriptorSetLayout);
         VkDescriptorSetAllocateInfo allocateInfo = VkDescriptorSetAllocateInfo.calloc()
@@ -1023,14 +1276,24 @@ public class VulkanRenderer
         allocateInfo.free();
         memFree(handleHolder);
         
+        writeUniformDescriptor(device, setHandle, ring);
+        
+        return setHandle;
+    }
+    
+    /**
+     * Points the uniform binding at the frame ring, the command buffers pick the frame with a dynamic offset
+     */
+    private void writeUniformDescriptor(VkDevice device, long setHandle, FrameRingBuffer ring)
+    {
         VkDescriptorBufferInfo.Buffer descriptor = VkDescriptorBufferInfo.calloc(1)
-                                                                         .buffer(ubo.getDeviceBuffer().getBufferHandle())
-                                                                         .range(ubo.getDeviceBuffer().getSize())
+                                                                         .buffer(ring.getBufferHandle())
+                                                                         .range(UniformSpec.getSizeInBytes())
                                                                          .offset(0);
         
         VkWriteDescriptorSet.Buffer writeDescriptor = VkWriteDescriptorSet.calloc(1)
                                                                           .sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
-                                                                          .descriptorType(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER)
+                                                                          .descriptorType(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC)
                                                                           .pBufferInfo(descriptor)
                                                                           .dstSet(setHandle)
                                                                           .dstBinding(0);
@@ -1039,19 +1302,62 @@ public class VulkanRenderer
         
         writeDescriptor.free();
         descriptor.free();
-        
-        return setHandle;
     }
     
     public StagedBuffer createStagedBuffer(DeviceFamily deviceFamily, int size, int usage)
     {
-        Buffer staged = createBuffer(deviceFamily, size, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, false);
-        Buffer used   = createBuffer(deviceFamily, size, VK_BUFFER_USAGE_TRANSFER_DST_BIT | usage, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, true);
+        Buffer used = createDeviceBuffer(deviceFamily, size, usage);
+        if (unifiedMemory)
+        {
+            return new StagedBuffer(used);
+        }
+        
+        Buffer staged;
+        if (SUB_ALLOCATE_BUFFERS)
+        {
+            staged = hostBufferPool.allocate(size);
+        } else
+        {
+            staged = createBuffer(deviceFamily, size, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, false);
+        }
         
         return new StagedBuffer(staged, used);
     }
     
+    /**
+     * Creates a buffer without a host copy, for data that is written once or rarely.
+     * Its data is written through the staging ring of the upload manager, so the set*BufferData calls queue the copy themselves.
+     */
+    public StagedBuffer createStaticBuffer(DeviceFamily deviceFamily, int size, int usage)
+    {
+        Buffer used = createDeviceBuffer(deviceFamily, size, usage);
+        return unifiedMemory ? new StagedBuffer(used) : new StagedBuffer(null, used);
+    }
+    
+    private Buffer createDeviceBuffer(DeviceFamily deviceFamily, int size, int usage)
+    {
+        int deviceProperties = unifiedMemory ? UNIFIED_MEMORY_PROPERTIES : VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT;
+        
+        if (SUB_ALLOCATE_BUFFERS)
+        {
+            BufferPool devicePool = deviceBufferPools.computeIfAbsent(usage, u -> new BufferPool(deviceFamily, VK_BUFFER_USAGE_TRANSFER_DST_BIT | u, deviceProperties, BUFFER_POOL_PAGE_SIZE, bufferPoolAlignment));
+            return devicePool.allocate(size);
+        }
+        
+        return createBuffer(deviceFamily, size, VK_BUFFER_USAGE_TRANSFER_DST_BIT | usage, deviceProperties, !unifiedMemory);
+    }
+    
     public void setFloatBufferData(StagedBuffer buffer, FloatBuffer data)
+    {
+        setFloatBufferData(buffer, data, 0);
+    }
+    
+    /**
+     * Writes the data into the buffer, only the written range is copied to the device on the next upload
+     *
+     * @param offset where in the buffer the data goes (In bytes)
+     */
+    public void setFloatBufferData(StagedBuffer buffer, FloatBuffer data, long offset)
     {
         if (DEBUG_MODE)
         {
@@ -1059,28 +1365,36 @@ public class VulkanRenderer
             EngineUtils.printBuffer(data);
         }
         
-        MemoryBlock hostMemory = buffer.getHostBuffer().getMemoryBlock();
+        if (!buffer.hasHostBuffer())
+        {
+            uploadManager.write(buffer, offset, memAddress(data), data.remaining() * Float.BYTES);
+            return;
+        }
         
-        PointerBuffer hostPointer = memAllocPointer(1);
-        EngineUtils.checkError(vkMapMemory(deviceFamily.getDevice(), hostMemory.getMemory(), hostMemory.getOffset(), hostMemory.getSize(), 0, hostPointer));
-        long pointer = hostPointer.get(0);
-        memFree(hostPointer);
+        long pointer = buffer.getHostBuffer().getMappedPointer() + offset;
         
-        FloatBuffer bufferData = memFloatBuffer(pointer, data.remaining());
-        bufferData.put(data);
-        bufferData.flip();
-        vkUnmapMemory(deviceFamily.getDevice(), hostMemory.getMemory());
+        memCopy(memAddress(data), pointer, data.remaining() * Float.BYTES);
         
         if (DEBUG_MODE)
         {
-            System.out.printf("Added data to buffer (%d: offset %d): ", buffer.getDeviceBuffer().getMemoryBlock().getMemory(), buffer.getDeviceBuffer().getMemoryBlock().getOffset());
-            EngineUtils.printBuffer(bufferData);
+            System.out.printf("Added data to buffer (%d: offset %d): ", buffer.getDeviceBuffer().getBufferHandle(), buffer.getDeviceBuffer().getOffset());
+            EngineUtils.printBuffer(memFloatBuffer(pointer, data.remaining()));
         }
         
-        buffer.setDirty(true);
+        buffer.markDirty(offset, data.remaining() * Float.BYTES);
     }
     
     public void setIntBufferData(StagedBuffer buffer, IntBuffer data)
+    {
+        setIntBufferData(buffer, data, 0);
+    }
+    
+    /**
+     * Writes the data into the buffer, only the written range is copied to the device on the next upload
+     *
+     * @param offset where in the buffer the data goes (In bytes)
+     */
+    public void setIntBufferData(StagedBuffer buffer, IntBuffer data, long offset)
     {
         if (DEBUG_MODE)
         {
@@ -1088,42 +1402,146 @@ public class VulkanRenderer
             EngineUtils.printBuffer(data);
         }
         
-        MemoryBlock hostMemory = buffer.getHostBuffer().getMemoryBlock();
+        if (!buffer.hasHostBuffer())
+        {
+            uploadManager.write(buffer, offset, memAddress(data), data.remaining() * Integer.BYTES);
+            return;
+        }
         
-        PointerBuffer hostPointer = memAllocPointer(1);
-        EngineUtils.checkError(vkMapMemory(deviceFamily.getDevice(), hostMemory.getMemory(), hostMemory.getOffset(), hostMemory.getSize(), 0, hostPointer));
-        long pointer = hostPointer.get(0);
-        memFree(hostPointer);
+        long pointer = buffer.getHostBuffer().getMappedPointer() + offset;
         
-        IntBuffer bufferData = memIntBuffer(pointer, data.remaining());
-        bufferData.put(data);
-        bufferData.flip();
-        vkUnmapMemory(deviceFamily.getDevice(), hostMemory.getMemory());
+        memCopy(memAddress(data), pointer, data.remaining() * Integer.BYTES);
         
         if (DEBUG_MODE)
         {
-            System.out.printf("Added data to buffer (%d: offset %d): ", buffer.getDeviceBuffer().getMemoryBlock().getMemory(), buffer.getDeviceBuffer().getMemoryBlock().getOffset());
-            EngineUtils.printBuffer(bufferData);
+            System.out.printf("Added data to buffer (%d: offset %d): ", buffer.getDeviceBuffer().getBufferHandle(), buffer.getDeviceBuffer().getOffset());
+            EngineUtils.printBuffer(memIntBuffer(pointer, data.remaining()));
         }
         
-        buffer.setDirty(true);
+        buffer.markDirty(offset, data.remaining() * Integer.BYTES);
     }
     
-    private StagedBuffer createUniformBuffer(DeviceFamily deviceFamily)
+    /**
+     * Writes part of an array into the buffer, without going through a temporary buffer
+     *
+     * @param start  the first float to write
+     * @param count  how many floats to write
+     * @param offset where in the buffer the data goes (In bytes)
+     */
+    public void setFloatBufferData(StagedBuffer buffer, float[] data, int start, int count, long offset)
     {
-        StagedBuffer stagedBuffer = createStagedBuffer(deviceFamily, UniformSpec.getSizeInBytes(), VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT);
+        if (!buffer.hasHostBuffer())
+        {
+            uploadManager.write(buffer, offset, data, start, count);
+            return;
+        }
         
+        long pointer = buffer.getHostBuffer().getMappedPointer() + offset;
+        for (int i = 0; i < count; i++)
+        {
+            memPutFloat(pointer + (long) i * Float.BYTES, data[start + i]);
+        }
         
-        FloatBuffer bufferData = memAllocFloat(16);
+        buffer.markDirty(offset, (long) count * Float.BYTES);
+    }
+    
+    /**
+     * Writes part of an array into the buffer, without going through a temporary buffer
+     *
+     * @param start  the first int to write
+     * @param count  how many ints to write
+     * @param offset where in the buffer the data goes (In bytes)
+     */
+    public void setIntBufferData(StagedBuffer buffer, int[] data, int start, int count, long offset)
+    {
+        if (!buffer.hasHostBuffer())
+        {
+            uploadManager.write(buffer, offset, data, start, count);
+            return;
+        }
         
-        Matrix4f uboData = new Matrix4f().identity();
-        uboData.get(bufferData);
+        long pointer = buffer.getHostBuffer().getMappedPointer() + offset;
+        for (int i = 0; i < count; i++)
+        {
+            memPutInt(pointer + (long) i * Integer.BYTES, data[start + i]);
+        }
         
-        setFloatBufferData(stagedBuffer, bufferData);
+        buffer.markDirty(offset, (long) count * Integer.BYTES);
+    }
+    
+    /**
+     * Writes part of an array into the buffer as 16 bit values, every int must fit in 16 bits
+     *
+     * @param start  the first int to write
+     * @param count  how many ints to write
+     * @param offset where in the buffer the data goes (In bytes)
+     */
+    public void setShortBufferData(StagedBuffer buffer, int[] data, int start, int count, long offset)
+    {
+        if (!buffer.hasHostBuffer())
+        {
+            uploadManager.writeShorts(buffer, offset, data, start, count);
+            return;
+        }
         
-        memFree(bufferData);
+        long pointer = buffer.getHostBuffer().getMappedPointer() + offset;
+        for (int i = 0; i < count; i++)
+        {
+            memPutShort(pointer + (long) i * Short.BYTES, (short) data[start + i]);
+        }
         
-        return stagedBuffer;
+        buffer.markDirty(offset, (long) count * Short.BYTES);
+    }
+    
+    /**
+     * Writes the bytes between the position and limit of a direct buffer into the buffer
+     *
+     * @param offset where in the buffer the data goes (In bytes)
+     */
+    public void setBufferData(StagedBuffer buffer, ByteBuffer data, long offset)
+    {
+        if (!buffer.hasHostBuffer())
+        {
+            uploadManager.write(buffer, offset, memAddress(data), data.remaining());
+            return;
+        }
+        
+        long pointer = buffer.getHostBuffer().getMappedPointer() + offset;
+        memCopy(memAddress(data), pointer, data.remaining());
+        
+        buffer.markDirty(offset, data.remaining());
+    }
+    
+    /**
+     * Gets an alignment that is valid for every offset a pooled buffer can be used with
+     */
+    private long getBufferOffsetAlignment(VkPhysicalDevice physicalDevice)
+    {
+        VkPhysicalDeviceProperties properties = VkPhysicalDeviceProperties.calloc();
+        vkGetPhysicalDeviceProperties(physicalDevice, properties);
+        
+        VkPhysicalDeviceLimits limits    = properties.limits();
+        long                   alignment = Long.max(limits.minUniformBufferOffsetAlignment(), limits.optimalBufferCopyOffsetAlignment());
+        alignment = Long.max(alignment, limits.nonCoherentAtomSize());
+        
+        properties.free();
+        
+        // Vertex attributes are read as floats, so never go below that
+        return Long.max(alignment, Float.BYTES);
+    }
+    
+    /**
+     * Writes the uniform data to the frame ring, must be the first allocation of the frame since the command buffers read it from the start of the partition
+     */
+    private void writeUniformData(int frame)
+    {
+        long offset = frameRingBuffer.allocate(UniformSpec.getSizeInBytes(), uniformAlignment);
+        if (offset != frameRingBuffer.getFrameOffset(frame))
+        {
+            throw new IllegalStateException("Uniform data must be the first allocation of the frame");
+        }
+        
+        uniformData.get(memFloatBuffer(frameRingBuffer.getAddress(offset), 16));
     }
     
     
@@ -1132,7 +1550,7 @@ public class VulkanRenderer
         VkDescriptorSetLayoutBinding.Buffer layoutBinding = VkDescriptorSetLayoutBinding.calloc(1)
                                                                                         .binding(0)
                                                                                         .descriptorCount(1)
-                                                                                        .descriptorType(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER)
+                                                                                        .descriptorType(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC)
                                                                                         .stageFlags(VK_SHADER_STAGE_VERTEX_BIT)
                                                                                         .pImmutableSamplers(null);
         
@@ -1154,7 +1572,7 @@ public class VulkanRenderer
     private long createDescriptorPool(VkDevice device)
     {
         VkDescriptorPoolSize.Buffer poolSize = VkDescriptorPoolSize.calloc(1)
-                                                                   .type(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER)
+                                                                   .type(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC)
                                                                    .descriptorCount(1);
         
         VkDescriptorPoolCreateInfo createInfo = VkDescriptorPoolCreateInfo.calloc()
@@ -1235,10 +1653,10 @@ public class VulkanRenderer
         
     }
     
-    private VkQueue createDeviceQueue(DeviceFamily deviceFamily)
+    private VkQueue createDeviceQueue(DeviceFamily deviceFamily, int queueFamily)
     {
         PointerBuffer handleHolder = memAllocPointer(1);
-        vkGetDeviceQueue(deviceFamily.getDevice(), deviceFamily.getQueueFamily(), 0, handleHolder);
+        vkGetDeviceQueue(deviceFamily.getDevice(), queueFamily, 0, handleHolder);
         long queueHandle = handleHolder.get(0);
         memFree(handleHolder);
         
@@ -1440,13 +1858,30 @@ public class VulkanRenderer
             }
         }
         daq.setQueueFamily(queueIndex);
+        boolean sparseQueue = EngineUtils.hasFlag(queueProperties.get(queueIndex).queueFlags(), VK_QUEUE_SPARSE_BINDING_BIT);
+        
+        // A family that can only transfer is usually backed by a copy engine that runs next to the graphics queue
+        int transferIndex = findTransferQueueFamily(queueProperties);
+        if (USE_TRANSFER_QUEUE && transferIndex != -1)
+        {
+            daq.setTransferQueueFamily(transferIndex);
+        }
         queueProperties.free();
         
         FloatBuffer queuePrio = memCallocFloat(1);
-        VkDeviceQueueCreateInfo.Buffer queueCreateInfo = VkDeviceQueueCreateInfo.calloc(1)
-                                                                                .sType(VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO)
-                                                                                .queueFamilyIndex(queueIndex)
-                                                                                .pQueuePriorities(queuePrio);
+        VkDeviceQueueCreateInfo.Buffer queueCreateInfo = VkDeviceQueueCreateInfo.calloc(daq.hasTransferQueue() ? 2 : 1);
+        queueCreateInfo.get(0)
+                       .sType(VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO)
+                       .queueFamilyIndex(queueIndex)
+                       .pQueuePriorities(queuePrio);
+        
+        if (daq.hasTransferQueue())
+        {
+            queueCreateInfo.get(1)
+                           .sType(VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO)
+                           .queueFamilyIndex(daq.getTransferQueueFamily())
+                           .pQueuePriorities(queuePrio);
+        }
         
         PointerBuffer deviceExt = memAllocPointer(1);
         deviceExt.put(memUTF8(VK_KHR_SWAPCHAIN_EXTENSION_NAME)).flip();
@@ -1458,8 +1893,20 @@ public class VulkanRenderer
         }
         validation.flip();
         
+        // Sparse binds go to the graphics queue, so the features are only used when its family can do them
+        VkPhysicalDeviceFeatures supportedFeatures = VkPhysicalDeviceFeatures.calloc();
+        vkGetPhysicalDeviceFeatures(physicalDevice, supportedFeatures);
+        daq.setSparseBinding(USE_SPARSE_BUFFERS && sparseQueue && supportedFeatures.sparseBinding());
+        daq.setSparseResidency(daq.hasSparseBinding() && supportedFeatures.sparseResidencyBuffer());
+        supportedFeatures.free();
+        
+        VkPhysicalDeviceFeatures enabledFeatures = VkPhysicalDeviceFeatures.calloc()
+                                                                           .sparseBinding(daq.hasSparseBinding())
+                                                                           .sparseResidencyBuffer(daq.hasSparseResidency());
+        
         VkDeviceCreateInfo deviceCreateInfo = VkDeviceCreateInfo.calloc()
                                                                 .sType(VK_STRUCTURE_TYPE_DEVICE_CREATE_INFO)
+                                                                .pEnabledFeatures(enabledFeatures)
                                                                 .pQueueCreateInfos(queueCreateInfo)
                                                                 .ppEnabledLayerNames(validation)
                                                                 .ppEnabledExtensionNames(deviceExt);
@@ -1475,6 +1922,7 @@ public class VulkanRenderer
         
         
         deviceCreateInfo.free();
+        enabledFeatures.free();
         queueCreateInfo.free();
         memFree(handleHolder);
         memFree(validation);
@@ -1484,6 +1932,36 @@ public class VulkanRenderer
         return daq;
     }
     
+    /**
+     * Finds a family with transfer support but no graphics support, preferring one without compute as well
+     *
+     * @return the family index, or -1 if there is none
+     */
+    private int findTransferQueueFamily(VkQueueFamilyProperties.Buffer queueProperties)
+    {
+        int found = -1;
+        for (int i = 0; i < queueProperties.capacity(); i++)
+        {
+            int flags = queueProperties.get(i).queueFlags();
+            if (!EngineUtils.hasFlag(flags, VK_QUEUE_TRANSFER_BIT) || EngineUtils.hasFlag(flags, VK_QUEUE_GRAPHICS_BIT))
+            {
+                continue;
+            }
+            
+            if (!EngineUtils.hasFlag(flags, VK_QUEUE_COMPUTE_BIT))
+            {
+                return i;
+            }
+            
+            if (found == -1)
+            {
+                found = i;
+            }
+        }
+        
+        return found;
+    }
+    
     private VkPhysicalDevice getFirstPhysicalDevice(VkInstance instance)
     {
         IntBuffer deviceCount = memAllocInt(1);
@@ -1571,23 +2049,26 @@ public class VulkanRenderer
     
     private void loop()
     {
+        uploadManager.setSubmitThread(Thread.currentThread());
         postInit();
         
-        LongBuffer imageSemaphore  = memAllocLong(1).put(0, imageAcquredSemaphore);
-        LongBuffer renderSemaphore = memAllocLong(1).put(0, renderCompleteSemaphore);
-        LongBuffer swapchains      = memAllocLong(1);
+        // After the acquired image come the semaphore of the upload batch submitted this frame and the read semaphore of the last frame, if they are set
+        LongBuffer waitSemaphores   = memAllocLong(3);
+        LongBuffer renderSemaphore  = memAllocLong(1);
+        LongBuffer signalSemaphores = memAllocLong(2);
+        LongBuffer swapchains       = memAllocLong(1);
         
         PointerBuffer commandBuffers = memAllocPointer(1);
         
         IntBuffer imageIndex = memAllocInt(1);
-        IntBuffer waitMask   = memAllocInt(1).put(0, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT);
+        IntBuffer waitMask   = memAllocInt(3).put(0, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT);
         
         
         VkSubmitInfo submitInfo = VkSubmitInfo.calloc()
-                                              .waitSemaphoreCount(imageSemaphore.remaining())
+                                              .waitSemaphoreCount(1)
                                               .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
-                                              .pSignalSemaphores(renderSemaphore)
-                                              .pWaitSemaphores(imageSemaphore)
+                                              .pSignalSemaphores(signalSemaphores)
+                                              .pWaitSemaphores(waitSemaphores)
                                               .pCommandBuffers(commandBuffers)
                                               .pWaitDstStageMask(waitMask);
         
@@ -1608,14 +2089,17 @@ public class VulkanRenderer
         
         int loops;
         
-        double timer    = System.currentTimeMillis();
-        long   fpstimer = System.currentTimeMillis();
+        double timer        = System.currentTimeMillis();
+        long   fpstimer     = System.currentTimeMillis();
+        long   lastUploaded = 0;
         while (!shouldClose)
         {
             
             if (System.currentTimeMillis() > fpstimer + 1000)
             {
-                System.out.format("fps: %d  ups: %d%n", fps, ups);
+                long uploaded = uploadManager.getUploadedBytes();
+                System.out.format("fps: %d  ups: %d  uploaded: %d bytes/frame%n", fps, ups, (uploaded - lastUploaded) / Integer.max(fps, 1));
+                lastUploaded = uploaded;
                 fpstimer = System.currentTimeMillis();
                 fps = ups = 0;
             }
@@ -1627,25 +2111,26 @@ public class VulkanRenderer
                 loops++;
                 ups++;
                 timer += skipInterval;
-                
-                if (uniformBuffer.isDirty())
-                {
-                    swapHostToDevice(uniformBuffer);
-                }
             }
             
             
-            render(imageSemaphore.get(0), swapchains, commandBuffers, imageIndex, submitInfo, presentInfo);
+            render(waitSemaphores, waitMask, renderSemaphore, signalSemaphores, swapchains, commandBuffers, imageIndex, submitInfo, presentInfo);
+            uploadManager.poll();
+            sparseBuffers.forEach(SparseBuffer::beginFrame);
             fps++;
             
+            defragment();
+            MemoryAllocator.getInstance().trim();
+            
             lock.lock();
             shouldClose = glfwWindowShouldClose(windowHandle);
             lock.unlock();
         }
         
         
+        memFree(signalSemaphores);
         memFree(renderSemaphore);
-        memFree(imageSemaphore);
+        memFree(waitSemaphores);
         commandBuffers.free();
         memFree(swapchains);
         memFree(imageIndex);
@@ -1667,8 +2152,16 @@ public class VulkanRenderer
     private Collection<GameObject> lastObjectList = new ArrayList<>();
     private boolean                shouldRecreate = false;
     
-    private void render(long imageSemaphore, LongBuffer swapchains, PointerBuffer commandBuffers, IntBuffer imageIndex, VkSubmitInfo submitInfo, VkPresentInfoKHR presentInfo)
+    private void render(LongBuffer waitSemaphores, IntBuffer waitMask, LongBuffer renderSemaphore, LongBuffer signalSemaphores, LongBuffer swapchains, PointerBuffer commandBuffers, IntBuffer imageIndex, VkSubmitInfo submitInfo, VkPresentInfoKHR presentInfo)
     {
+        // Once the last use of this frame is done, everything it allocated or retired can be released
+        int frame = currentFrame;
+        waitForFrame(frame);
+        retirementQueue.beginFrame(frame);
+        frameRingBuffer.beginFrame(frame);
+        writeUniformData(frame);
+        currentFrame = (currentFrame + 1) % FRAMES_IN_FLIGHT;
+        
         game.render();
         
         if (!lastObjectList.equals(game.getGameObjects()))
@@ -1687,11 +2180,39 @@ public class VulkanRenderer
             return;
         }
         
-        EngineUtils.checkError(vkAcquireNextImageKHR(deviceFamily.getDevice(), swapchain.getHandle(), Long.MAX_VALUE, imageSemaphore, VK_NULL_HANDLE, imageIndex));
+        waitSemaphores.put(0, imageAcquredSemaphores[frame]);
+        renderSemaphore.put(0, renderCompleteSemaphores[frame]);
+        signalSemaphores.put(0, renderCompleteSemaphores[frame]).put(1, frameReadSemaphores[frame]);
+        
+        EngineUtils.checkError(vkAcquireNextImageKHR(deviceFamily.getDevice(), swapchain.getHandle(), Long.MAX_VALUE, waitSemaphores.get(0), VK_NULL_HANDLE, imageIndex));
         int index = imageIndex.get(0);
         
-        commandBuffers.put(0, renderCommandBuffers[index]);
-        EngineUtils.checkError(vkQueueSubmit(deviceQueue, submitInfo, VK_NULL_HANDLE));
+        // Flushed right before the submit that waits on it, so the semaphore is never left signaled.
+        // The batch waits on the read semaphore of the last frame, so uploads never overwrite what the frames in flight read.
+        long uploadSemaphore = uploadManager.flush();
+        int  waitCount       = 1;
+        if (uploadSemaphore != VK_NULL_HANDLE)
+        {
+            waitSemaphores.put(waitCount, uploadSemaphore);
+            waitMask.put(waitCount, VK_PIPELINE_STAGE_VERTEX_INPUT_BIT | VK_PIPELINE_STAGE_VERTEX_SHADER_BIT);
+            waitCount++;
+        }
+        
+        // Nothing was uploaded, so this submit takes the read semaphore instead. It comes after the submit that signaled it, so the wait costs nothing.
+        long readSemaphore = uploadManager.takeReadSemaphore();
+        if (readSemaphore != VK_NULL_HANDLE)
+        {
+            waitSemaphores.put(waitCount, readSemaphore);
+            waitMask.put(waitCount, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT);
+            waitCount++;
+        }
+        submitInfo.waitSemaphoreCount(waitCount);
+        
+        // Only this frame submits these command buffers, so the wait on its fence above means they are not pending
+        commandBuffers.put(0, renderCommandBuffers[frame * framebuffers.length + index]);
+        EngineUtils.checkError(vkResetFences(deviceFamily.getDevice(), frameFences[frame]));
+        EngineUtils.checkError(vkQueueSubmit(deviceQueue, submitInfo, frameFences[frame]));
+        uploadManager.setReadSemaphore(frameReadSemaphores[frame]);
         
         swapchains.put(0, swapchain.getHandle());
         //EngineUtils.checkError(vkQueuePresentKHR(deviceQueue, presentInfo));
@@ -1699,10 +2220,44 @@ public class VulkanRenderer
         if (result == VK_ERROR_OUT_OF_DATE_KHR)
         {
             shouldRecreate = true;
-            return;
         }
-        EngineUtils.checkError(vkQueueWaitIdle(deviceQueue));
-        postPresentBarrier(swapchain.getImage(index), postPresentCommandBuffer, deviceQueue);
+    }
+    
+    /**
+     * Reserves a range of device-local memory where pages are only backed by memory once they are committed, and are evicted when they go unused.
+     * Falls back to a plain buffer of the whole size when the device can not leave buffers partially bound.
+     *
+     * @param size the size of the range to reserve (In bytes)
+     */
+    public SparseBuffer createSparseBuffer(long size, int usage)
+    {
+        int          evictAfter = Integer.max(SPARSE_EVICT_FRAMES, FRAMES_IN_FLIGHT);
+        SparseBuffer buffer     = new SparseBuffer(deviceFamily, deviceQueue, size, VK_BUFFER_USAGE_TRANSFER_DST_BIT | usage, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, deviceFamily.hasSparseResidency(), evictAfter);
+        sparseBuffers.add(buffer);
+        
+        if (DEBUG_MODE)
+        {
+            System.out.println("Created sparse buffer: " + buffer.getStats());
+        }
+        
+        return buffer;
+    }
+    
+    /**
+     * Destroys a buffer from createSparseBuffer once the frames that could use it are done
+     */
+    public void freeSparseBuffer(SparseBuffer buffer)
+    {
+        sparseBuffers.remove(buffer);
+        retirementQueue.retire(buffer::free);
+    }
+    
+    /**
+     * Gets the queue that releases destroyed resources once the frames that could use them are done
+     */
+    public RetirementQueue getRetirementQueue()
+    {
+        return retirementQueue;
     }
     
     public void useGame(Game game)
@@ -1717,23 +2272,18 @@ public class VulkanRenderer
     
     public StagedBuffer createIndexBuffer(List<Integer> indecies)
     {
-        StagedBuffer indexBuffer = createStagedBuffer(getDeviceFamily(), indecies.size() * Integer.BYTES, VK_BUFFER_USAGE_INDEX_BUFFER_BIT);
-        IntBuffer    iData       = memAllocInt(indecies.size());
+        int[] data = new int[indecies.size()];
         for (int i = 0; i < indecies.size(); i++)
         {
-            iData.put(i, indecies.get(i));
+            data[i] = indecies.get(i);
         }
         
-        setIntBufferData(indexBuffer, iData);
-        swapHostToDevice(indexBuffer);
-        memFree(iData);
-        
-        return indexBuffer;
+        return createIndexBuffer(data);
     }
     
     public StagedBuffer createVertexBuffer(List<Vector3f> pos, List<Vector4f> color)
     {
-        StagedBuffer vertexBuffer = createStagedBuffer(getDeviceFamily(), pos.size() * Float.BYTES, VK_BUFFER_USAGE_VERTEX_BUFFER_BIT);
+        StagedBuffer vertexBuffer = createStaticBuffer(getDeviceFamily(), pos.size() * (3 + 4) * Float.BYTES, VK_BUFFER_USAGE_VERTEX_BUFFER_BIT);
         
         int         size  = 3 + 4;
         FloatBuffer vData = memAllocFloat(pos.size() * size);
@@ -1759,6 +2309,227 @@ public class VulkanRenderer
         return vertexBuffer;
     }
     
+    public StagedBuffer createIndexBuffer(int[] indices)
+    {
+        return createIndexBuffer(indices, 0, indices.length);
+    }
+    
+    /**
+     * Creates an index buffer from part of an array, the indices are written straight into the staging memory.
+     * The buffer holds 16 bit indices when every index fits, check the index type of the buffer before binding it.
+     *
+     * @param start the first index to use
+     * @param count how many indices to use
+     */
+    public StagedBuffer createIndexBuffer(int[] indices, int start, int count)
+    {
+        if (!fitsShortIndices(indices, start, count))
+        {
+            StagedBuffer indexBuffer = createStaticBuffer(getDeviceFamily(), count * Integer.BYTES, VK_BUFFER_USAGE_INDEX_BUFFER_BIT);
+            setIntBufferData(indexBuffer, indices, start, count, 0);
+            swapHostToDevice(indexBuffer);
+            
+            return indexBuffer;
+        }
+        
+        StagedBuffer indexBuffer = createStaticBuffer(getDeviceFamily(), count * Short.BYTES, VK_BUFFER_USAGE_INDEX_BUFFER_BIT);
+        indexBuffer.setIndexType(VK_INDEX_TYPE_UINT16);
+        setShortBufferData(indexBuffer, indices, start, count, 0);
+        swapHostToDevice(indexBuffer);
+        
+        return indexBuffer;
+    }
+    
+    /**
+     * Creates an index buffer from 32 bit indices between the position and limit of the buffer.
+     * The buffer holds 16 bit indices when every index fits.
+     */
+    public StagedBuffer createIndexBuffer(ByteBuffer indices)
+    {
+        if (indices.remaining() % Integer.BYTES != 0)
+        {
+            throw new IllegalArgumentException("Index data is not a whole number of 32 bit indices: " + indices.remaining() + " bytes");
+        }
+        
+        int  count    = indices.remaining() / Integer.BYTES;
+        long address  = memAddress(indices);
+        long maxIndex = 0;
+        for (int i = 0; i < count; i++)
+        {
+            maxIndex = Long.max(maxIndex, Integer.toUnsignedLong(memGetInt(address + (long) i * Integer.BYTES)));
+        }
+        
+        if (maxIndex > MAX_SHORT_INDEX)
+        {
+            StagedBuffer indexBuffer = createStaticBuffer(getDeviceFamily(), indices.remaining(), VK_BUFFER_USAGE_INDEX_BUFFER_BIT);
+            setBufferData(indexBuffer, indices, 0);
+            swapHostToDevice(indexBuffer);
+            
+            return indexBuffer;
+        }
+        
+        StagedBuffer indexBuffer = createStaticBuffer(getDeviceFamily(), count * Short.BYTES, VK_BUFFER_USAGE_INDEX_BUFFER_BIT);
+        indexBuffer.setIndexType(VK_INDEX_TYPE_UINT16);
+        if (indexBuffer.hasHostBuffer())
+        {
+            long pointer = indexBuffer.getHostBuffer().getMappedPointer();
+            for (int i = 0; i < count; i++)
+            {
+                memPutShort(pointer + (long) i * Short.BYTES, (short) memGetInt(address + (long) i * Integer.BYTES));
+            }
+            indexBuffer.markDirty(0, count * Short.BYTES);
+        } else
+        {
+            uploadManager.writeShorts(indexBuffer, 0, address, count);
+        }
+        swapHostToDevice(indexBuffer);
+        
+        return indexBuffer;
+    }
+    
+    public StagedBuffer createVertexBuffer(float[] vertices, VertexLayout layout)
+    {
+        return createVertexBuffer(vertices, 0, vertices.length, layout);
+    }
+    
+    /**
+     * Creates a vertex buffer from part of an array of interleaved vertices, the floats are written straight into the staging memory
+     *
+     * @param start the first float to use
+     * @param count how many floats to use, must be a whole number of vertices
+     */
+    public StagedBuffer createVertexBuffer(float[] vertices, int start, int count, VertexLayout layout)
+    {
+        checkVertexLayout(layout, (long) count * Float.BYTES);
+        
+        StagedBuffer vertexBuffer = createStaticBuffer(getDeviceFamily(), count * Float.BYTES, VK_BUFFER_USAGE_VERTEX_BUFFER_BIT);
+        setFloatBufferData(vertexBuffer, vertices, start, count, 0);
+        swapHostToDevice(vertexBuffer);
+        
+        return vertexBuffer;
+    }
+    
+    /**
+     * Creates a vertex buffer from interleaved vertices between the position and limit of the buffer
+     */
+    public StagedBuffer createVertexBuffer(ByteBuffer vertices, VertexLayout layout)
+    {
+        checkVertexLayout(layout, vertices.remaining());
+        
+        StagedBuffer vertexBuffer = createStaticBuffer(getDeviceFamily(), vertices.remaining(), VK_BUFFER_USAGE_VERTEX_BUFFER_BIT);
+        setBufferData(vertexBuffer, vertices, 0);
+        swapHostToDevice(vertexBuffer);
+        
+        return vertexBuffer;
+    }
+    
+    /**
+     * Checks if every index fits in 16 bits
+     */
+    private static boolean fitsShortIndices(int[] indices, int start, int count)
+    {
+        long maxIndex = 0;
+        for (int i = start; i < start + count; i++)
+        {
+            maxIndex = Long.max(maxIndex, Integer.toUnsignedLong(indices[i]));
+        }
+        
+        return maxIndex <= MAX_SHORT_INDEX;
+    }
+    
+    public GeometryPool getGeometryPool()
+    {
+        return geometryPool;
+    }
+    
+    /**
+     * Packs a mesh into the geometry pool. The indices are relative to the first vertex of the mesh, and are stored as 16 bit when every index fits.
+     *
+     * @param vertices interleaved vertices in the layout of the pool
+     */
+    public Model createModel(float[] vertices, int[] indices)
+    {
+        VertexLayout layout = geometryPool.getLayout();
+        checkVertexLayout(layout, (long) vertices.length * Float.BYTES);
+        
+        int   indexType = fitsShortIndices(indices, 0, indices.length) ? VK_INDEX_TYPE_UINT16 : VK_INDEX_TYPE_UINT32;
+        Model model     = geometryPool.allocate(vertices.length / layout.getFloatsPerVertex(), indices.length, indexType);
+        
+        StagedBuffer buffer = model.getBuffer();
+        setFloatBufferData(buffer, vertices, 0, vertices.length, geometryPool.getVertexDataOffset(model));
+        if (indexType == VK_INDEX_TYPE_UINT16)
+        {
+            setShortBufferData(buffer, indices, 0, indices.length, geometryPool.getIndexDataOffset(model));
+        } else
+        {
+            setIntBufferData(buffer, indices, 0, indices.length, geometryPool.getIndexDataOffset(model));
+        }
+        swapHostToDevice(buffer);
+        
+        return model;
+    }
+    
+    /**
+     * Packs a mesh file into the geometry pool. The blobs are copied straight from the mapping into staging memory, without being parsed.
+     */
+    public Model createModel(MeshFile mesh)
+    {
+        if (!mesh.getLayout().equals(geometryPool.getLayout()))
+        {
+            throw new IllegalArgumentException("The mesh does not have the vertex layout of the geometry pool");
+        }
+        
+        Model        model  = geometryPool.allocate(mesh.getVertexCount(), mesh.getIndexCount(), mesh.getIndexType());
+        StagedBuffer buffer = model.getBuffer();
+        setBufferData(buffer, mesh.getVertexData(), geometryPool.getVertexDataOffset(model));
+        setBufferData(buffer, mesh.getIndexData(), geometryPool.getIndexDataOffset(model));
+        swapHostToDevice(buffer);
+        
+        return model;
+    }
+    
+    public Model createModel(List<Vector3f> pos, List<Vector4f> color, List<Integer> indecies)
+    {
+        int     size     = 3 + 4;
+        float[] vertices = new float[pos.size() * size];
+        for (int i = 0; i < pos.size(); i++)
+        {
+            Vector3f loc = pos.get(i);
+            Vector4f col = color.get(i);
+            
+            vertices[(i * size) + 0] = loc.x();
+            vertices[(i * size) + 1] = loc.y();
+            vertices[(i * size) + 2] = loc.z();
+            
+            vertices[(i * size) + 3] = col.x();
+            vertices[(i * size) + 4] = col.y();
+            vertices[(i * size) + 5] = col.z();
+            vertices[(i * size) + 6] = col.w();
+        }
+        
+        int[] indices = new int[indecies.size()];
+        for (int i = 0; i < indecies.size(); i++)
+        {
+            indices[i] = indecies.get(i);
+        }
+        
+        return createModel(vertices, indices);
+    }
+    
+    private void checkVertexLayout(VertexLayout layout, long size)
+    {
+        // Layouts with the same stride can still split it into other attributes, so the whole layout has to match
+        if (!layout.equals(VertexLayout.POSITION_COLOR))
+        {
+            throw new IllegalArgumentException("The vertex data does not have the vertex layout of the pipeline");
+        }
+        
+        if (size % layout.getStride() != 0)
+        {
+            throw new IllegalArgumentException("Vertex data is not a whole number of vertices: " + size + " bytes");
+        }
+    }
+    
     public void saveScreenshot(Path output)
     {
         boolean blitSupport = true;
@@ -1884,10 +2655,7 @@ public class VulkanRenderer
         VkSubresourceLayout subResourceLayout = VkSubresourceLayout.calloc();
         vkGetImageSubresourceLayout(deviceFamily.getDevice(), dstImage, subResource, subResourceLayout);
         
-        PointerBuffer pointerBuffer = memAllocPointer(1);
-        EngineUtils.checkError(vkMapMemory(deviceFamily.getDevice(), memoryBlock.getMemory(), memoryBlock.getOffset(), memoryBlock.getSize(), 0, pointerBuffer));
-        long pointer = pointerBuffer.get(0);
-        memFree(pointerBuffer);
+        long pointer = memoryBlock.getMappedPointer();
         
         boolean swizzle = false;
         if (!blitSupport)
@@ -1899,11 +2667,10 @@ public class VulkanRenderer
         
         FloatBuffer data = memFloatBuffer(pointer, width * height);
         EngineUtils.floatBufferToImage(data, output, width, height, swizzle);
-        memFree(data);
         
         
-        memoryBlock.free();
         vkDestroyImage(deviceFamily.getDevice(), dstImage, null);
+        MemoryAllocator.getInstance().deallocate(memoryBlock);
         subResourceLayout.free();
         subResource.free();
         copyRegion.free();
@@ -1944,7 +2711,7 @@ public class VulkanRenderer
                                                .height(height)
                                                .width(width)
                                                .depth(1);
-            
+                 
                  VkImageCreateInfo createInfo = VkImageCreateInfo.calloc()
                                                                  .sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO)
                                                                  .imageType(VK_IMAGE_TYPE_2D)
@@ -2009,11 +2776,11 @@ public class VulkanRenderer
                             
                             try (VkImageSubresourceLayers srcLayer = VkImageSubresourceLayers.calloc().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).layerCount(1);
                                  VkImageSubresourceLayers destLayer = VkImageSubresourceLayers.calloc().aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).layerCount(1);
-                            
+                                 
                                  // should this be 0 and 0 or 0 and 1 instead of 1 and 1 for the offsets index?
                                  VkOffset3D blitSize = VkOffset3D.calloc().x(width).y(height).z(1);
                                  VkImageBlit.Buffer blitRegion = VkImageBlit.calloc(1).srcSubresource(srcLayer).srcOffsets(0, blitSize).dstSubresource(destLayer).dstOffsets(0, blitSize);
-                            
+                                 
                                  VkImageCopy.Buffer copyRegion = VkImageCopy.calloc(1).srcSubresource(srcLayer).dstSubresource(destLayer).extent(extent))
                             {
                                 if (blitSupport)
@@ -0,0 +1,82 @@
+package no.stelar7.vulkan.engine.spec;
+
+import java.util.Arrays;
+
+/**
+ * Describes interleaved float vertex data, as a float count for every attribute in binding order
+ */
+public final class VertexLayout
+{
+    /**
+     * The layout of VertexSpec, a vec3 position followed by a vec4 color
+     */
+    public static final VertexLayout POSITION_COLOR = new VertexLayout(3, 4);
+    
+    private final int[] components;
+    private final int   floatsPerVertex;
+    
+    public VertexLayout(int... components)
+    {
+        if (components.length == 0)
+        {
+            throw new IllegalArgumentException("A vertex layout needs at least one attribute");
+        }
+        
+        this.components = components.clone();
+        
+        int floats = 0;
+        for (int count : components)
+        {
+            if (count <= 0 || count > 4)
+            {
+                throw new IllegalArgumentException("An attribute has 1 to 4 components, got " + count);
+            }
+            floats += count;
+        }
+        this.floatsPerVertex = floats;
+    }
+    
+    public int getAttributeCount()
+    {
+        return components.length;
+    }
+    
+    public int getComponentCount(int attribute)
+    {
+        return components[attribute];
+    }
+    
+    public int getFloatsPerVertex()
+    {
+        return floatsPerVertex;
+    }
+    
+    /**
+     * Gets the size of one vertex (In bytes)
+     */
+    public int getStride()
+    {
+        return floatsPerVertex * Float.BYTES;
+    }
+    
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass())
+        {
+            return false;
+        }
+        
+        return Arrays.equals(components, ((VertexLayout) o).components);
+    }
+    
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(components);
+    }
+}
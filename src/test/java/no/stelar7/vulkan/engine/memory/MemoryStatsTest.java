@@ -0,0 +1,111 @@
+package no.stelar7.vulkan.engine.memory;
+
+import com.google.gson.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MemoryStatsTest
+{
+    private static final long HEAP_SIZE = 64 * 1024 * 1024;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private MemoryAllocator allocator;
+    
+    @Before
+    public void create()
+    {
+        Map<Integer, AllocationStrategy> strategies = new HashMap<>();
+        strategies.put(0, AllocationStrategy.TLSF);
+        strategies.put(2, AllocationStrategy.BUDDY);
+        
+        allocator = new MemoryAllocator(new OffHeapMemoryBackend(3, HEAP_SIZE), strategies);
+    }
+    
+    @After
+    public void destroy()
+    {
+        allocator.free();
+    }
+    
+    @Test
+    public void jsonMatchesSnapshot()
+    {
+        long kept  = allocator.allocateHandle(100 * 1024, 256, 0);
+        long freed = allocator.allocateHandle(300, 16, 0);
+        allocator.deallocateHandle(freed);
+        allocator.allocateHandle(4096, 4096, 2);
+        
+        MemoryStats stats = allocator.getStats();
+        JsonObject  json  = new JsonParser().parse(stats.toJson()).getAsJsonObject();
+        
+        assertEquals(stats.getCommittedSize(), json.get("committedSize").getAsLong());
+        assertEquals(stats.getReclaimedSize(), json.get("reclaimedSize").getAsLong());
+        assertEquals(stats.getReclaimedChunkCount(), json.get("reclaimedChunkCount").getAsInt());
+        
+        // Memory type 1 was never used, so it is left out
+        JsonArray types = json.getAsJsonArray("memoryTypes");
+        assertEquals(2, types.size());
+        
+        for (JsonElement element : types)
+        {
+            JsonObject          type        = element.getAsJsonObject();
+            int                 memoryIndex = type.get("memoryIndex").getAsInt();
+            FragmentationReport report      = stats.getReport(memoryIndex);
+            
+            assertEquals(report.getStrategy().toString(), type.get("strategy").getAsString());
+            assertEquals(report.getChunkCount(), type.get("chunkCount").getAsInt());
+            assertEquals(report.getUsedSize(), type.get("usedSize").getAsLong());
+            assertEquals(report.getFreeSize(), type.get("freeSize").getAsLong());
+            assertEquals(stats.getAllocationCount(memoryIndex), type.get("allocationCount").getAsLong());
+            assertEquals(stats.getFreeCount(memoryIndex), type.get("freeCount").getAsLong());
+            assertEquals(report.getExternalFragmentation(), type.get("externalFragmentation").getAsDouble(), 1e-4);
+            assertEquals(stats.getMeanAllocationNanos(memoryIndex), type.get("meanAllocationNanos").getAsDouble(), 1e-4);
+            
+            long[]     histogram = stats.getSizeHistogram(memoryIndex);
+            JsonObject buckets   = type.getAsJsonObject("sizeHistogram");
+            for (int bucket = 0; bucket < histogram.length; bucket++)
+            {
+                JsonElement count = buckets.get(String.valueOf(1L << bucket));
+                assertEquals(histogram[bucket], (count == null) ? 0 : count.getAsLong());
+            }
+        }
+        
+        JsonObject first = types.get(0).getAsJsonObject();
+        assertEquals(0, first.get("memoryIndex").getAsInt());
+        assertEquals(2, first.get("allocationCount").getAsLong());
+        assertEquals(1, first.get("freeCount").getAsLong());
+        
+        allocator.deallocateHandle(kept);
+    }
+    
+    @Test
+    public void writtenFileParses() throws IOException
+    {
+        allocator.allocateHandle(1024, 16, 0);
+        
+        Path path = folder.getRoot().toPath().resolve("memory-stats.json");
+        allocator.getStats().writeJson(path);
+        
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8))
+        {
+            JsonObject json = new JsonParser().parse(reader).getAsJsonObject();
+            assertEquals(1, json.getAsJsonArray("memoryTypes").size());
+        }
+    }
+    
+    @Test(expected = UncheckedIOException.class)
+    public void failedWriteThrows() throws IOException
+    {
+        // A directory can not be opened for writing
+        allocator.getStats().writeJson(folder.newFolder().toPath());
+    }
+}